@@ -0,0 +1,157 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of requests through the devserver, for each of its request paths.
+ *
+ * <p>The CodeServer and the {@code -proxyTo} server are stood in for by {@link MockWebServer}s, as in the tests,
+ * and the client runs in the same JVM; results are thus only meaningful relative to one another,
+ * e.g. before and after a Jetty or GWT upgrade.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+  private static final String MODULE_NAME = "net.ltgt.gwt.devserver.bench.Bench";
+  /** Some 16KB of JavaScript, compressible as is compiler output. */
+  private static final byte[] SCRIPT;
+
+  static {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 16 * 1024; i++) {
+      sb.append("function f").append(i).append("(a, b) { return a.g").append(i).append("(b) + ").append(i).append("; }\n");
+    }
+    SCRIPT = sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** The request path being measured. */
+  @Param({ "stub", "codeserver", "proxy", "static" })
+  public String route;
+
+  /** Whether the client accepts gzip-compressed responses. */
+  @Param({ "true", "false" })
+  public boolean gzip;
+
+  private MockWebServer mockCodeServer;
+  private MockWebServer mockWebServer;
+  private Path baseDir;
+  private Server server;
+  private OkHttpClient client;
+  private Request request;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    mockCodeServer = newMockServer();
+    mockWebServer = newMockServer();
+    baseDir = Files.createTempDirectory("devserver-benchmark");
+    Files.write(baseDir.resolve("app.js"), SCRIPT);
+
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    if (route.equals("proxy")) {
+      options.proxyTo = mockWebServer.url("").toString();
+    } else {
+      options.baseDir = baseDir.toFile();
+    }
+    options.moduleNames.add(MODULE_NAME);
+    server = DevServer.start(options);
+
+    String path;
+    switch (route) {
+      case "stub":
+        path = "bench/bench.nocache.js";
+        break;
+      case "codeserver":
+        path = "bench/app.js";
+        break;
+      case "proxy":
+      case "static":
+        path = "app.js";
+        break;
+      default:
+        throw new IllegalArgumentException(route);
+    }
+    client = new OkHttpClient.Builder().build();
+    request = new Request.Builder()
+        .url(new HttpUrl.Builder()
+            .scheme("http")
+            .host(options.connectAddress)
+            .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+            .addPathSegments(path)
+            .build())
+        // Setting the header explicitly also disables OkHttp's transparent decompression.
+        .header("Accept-Encoding", gzip ? "gzip" : "identity")
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    server.stop();
+    mockCodeServer.shutdown();
+    mockWebServer.shutdown();
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+    Files.deleteIfExists(baseDir.resolve("app.js"));
+    Files.deleteIfExists(baseDir);
+  }
+
+  /** Returns the number of response body bytes, so the work can't be eliminated. */
+  @Benchmark
+  public long request() throws IOException {
+    try (Response response = client.newCall(request).execute()) {
+      if (!response.isSuccessful()) {
+        throw new IOException("Unexpected response: " + response);
+      }
+      return response.body().bytes().length;
+    }
+  }
+
+  private static MockWebServer newMockServer() throws IOException {
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse()
+            .setHeader("Content-Type", "application/javascript")
+            .setBody(new Buffer().write(SCRIPT));
+      }
+    });
+    server.start();
+    return server;
+  }
+}
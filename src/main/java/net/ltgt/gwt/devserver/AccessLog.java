@@ -0,0 +1,346 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * An access log, written to a file by a background thread.
+ *
+ * <p>Request threads never block nor take a lock: entries go into a fixed-size ring buffer of pre-allocated slots
+ * (a bounded multi-producer single-consumer queue), and are dropped when it's full. The background thread drains
+ * the ring in batches, formatting and appending them to the file with a single write per batch.
+ * The file is rolled over once it exceeds its maximum size, keeping {@link #BACKUPS} previous files
+ * ({@code file.1} being the most recent.)
+ *
+ * <p>The format is made of placeholders in braces (see {@link Field}) and literal text;
+ * durations are in milliseconds, and {@code -} stands for unknown values.
+ */
+class AccessLog extends AbstractLifeCycle {
+  static final String DEFAULT_FORMAT =
+      "{time} {remote} \"{method} {uri} {protocol}\" {status} {bytes} {route} {duration}ms ttfb={ttfb}ms upstream={upstream}ms";
+  static final int BACKUPS = 5;
+  static final int CAPACITY = 8192;
+  private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  enum Field {
+    /** When the request was received, in ISO-8601 format. */
+    TIME,
+    REMOTE,
+    METHOD,
+    /** The request's path and query string. */
+    URI,
+    PROTOCOL,
+    STATUS,
+    /** The response body bytes. */
+    BYTES,
+    /** The route that handled the request. */
+    ROUTE,
+    /** The time to handle the request. */
+    DURATION,
+    /** The time until the response headers were sent. */
+    TTFB,
+    /** For proxied routes, the time until the upstream server sent its response headers. */
+    UPSTREAM;
+
+    final String placeholder = "{" + name().toLowerCase(Locale.ROOT) + "}";
+  }
+
+  private static final class Slot {
+    /** The position this slot can be claimed at by producers (if equal), or read at by the consumer (if one more.) */
+    volatile long sequence;
+    long timestamp;
+    String remote;
+    String method;
+    String uri;
+    String protocol;
+    int status;
+    long bytes;
+    String route;
+    long durationNanos;
+    long ttfbNanos;
+    long upstreamNanos;
+  }
+
+  private final Path file;
+  private final List<Object> parts;
+  private final long slowThresholdNanos;
+  private final long maxSize;
+  private final TreeLogger logger;
+  private final DateTimeFormatter timeFormatter = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.systemDefault());
+
+  private final Slot[] slots = new Slot[CAPACITY];
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  // Only accessed by the background thread.
+  private long head;
+  private OutputStream out;
+  private long size;
+
+  private volatile boolean running;
+  private Thread drainer;
+
+  /**
+   * Creates an access log, only logging requests that took at least {@code slowThresholdNanos} if positive,
+   * and rolling the file over once bigger than {@code maxSize} bytes if positive.
+   *
+   * @throws IllegalArgumentException if the format has an unknown placeholder
+   */
+  AccessLog(Path file, String format, long slowThresholdNanos, long maxSize, TreeLogger logger) {
+    this.file = file;
+    this.parts = parseFormat(format);
+    this.slowThresholdNanos = slowThresholdNanos;
+    this.maxSize = maxSize;
+    this.logger = logger;
+    for (int i = 0; i < CAPACITY; i++) {
+      slots[i] = new Slot();
+      slots[i].sequence = i;
+    }
+  }
+
+  /**
+   * Parses the format into literal strings and {@link Field}s.
+   *
+   * @throws IllegalArgumentException if the format has an unknown placeholder
+   */
+  static List<Object> parseFormat(String format) {
+    List<Object> parsed = new ArrayList<>();
+    int start = 0;
+    for (int open = format.indexOf('{'); open >= 0; open = format.indexOf('{', start)) {
+      int close = format.indexOf('}', open);
+      Field field = null;
+      for (Field f : Field.values()) {
+        if (close > open && f.placeholder.equals(format.substring(open, close + 1))) {
+          field = f;
+        }
+      }
+      if (field == null) {
+        throw new IllegalArgumentException("Unknown placeholder at " + open + " in " + format);
+      }
+      if (open > start) {
+        parsed.add(format.substring(start, open));
+      }
+      parsed.add(field);
+      start = close + 1;
+    }
+    if (start < format.length()) {
+      parsed.add(format.substring(start));
+    }
+    return parsed;
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    size = Files.size(file);
+    running = true;
+    drainer = new Thread(this::drain, "AccessLog");
+    drainer.setDaemon(true);
+    drainer.start();
+    logger.log(TreeLogger.INFO, "Logging requests to " + file);
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    running = false;
+    LockSupport.unpark(drainer);
+    // Drains what's left before exiting.
+    drainer.join();
+    out.close();
+    if (dropped.get() > 0) {
+      logger.log(TreeLogger.WARN, dropped.get() + " requests weren't logged as the access log couldn't keep up");
+    }
+  }
+
+  /**
+   * Logs a completed request, unless it was faster than the threshold, or the ring buffer is full;
+   * {@code upstreamNanos} is negative when not applicable.
+   */
+  void log(Request request, String route, long startNanos, long endNanos, long bytes, long upstreamNanos) {
+    long durationNanos = endNanos - startNanos;
+    if (durationNanos < slowThresholdNanos || !running) {
+      return;
+    }
+    long position = tail.get();
+    Slot slot;
+    for (;;) {
+      slot = slots[(int) (position & (CAPACITY - 1))];
+      long available = slot.sequence - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (available < 0) {
+        // Not yet consumed since the previous round: full.
+        dropped.incrementAndGet();
+        return;
+      } else {
+        // Claimed by another producer.
+        position = tail.get();
+      }
+    }
+    long commitNanos = TimingHttpConnectionFactory.getCommitNanos(request);
+    slot.timestamp = request.getTimeStamp();
+    slot.remote = request.getRemoteAddr();
+    slot.method = request.getMethod();
+    slot.uri = request.getQueryString() == null
+        ? request.getRequestURI()
+        : request.getRequestURI() + '?' + request.getQueryString();
+    slot.protocol = request.getProtocol();
+    slot.status = request.getResponse().getStatus();
+    slot.bytes = bytes;
+    slot.route = route;
+    slot.durationNanos = durationNanos;
+    slot.ttfbNanos = commitNanos == 0 ? -1 : Math.max(commitNanos - startNanos, 0);
+    slot.upstreamNanos = upstreamNanos;
+    // Publishes the slot to the consumer.
+    slot.sequence = position + 1;
+  }
+
+  private void drain() {
+    StringBuilder batch = new StringBuilder();
+    for (;;) {
+      // Read before draining, so that nothing's left behind once stopped.
+      boolean stopping = !running;
+      batch.setLength(0);
+      for (Slot slot = slots[(int) (head & (CAPACITY - 1))]; slot.sequence == head + 1;
+          slot = slots[(int) (head & (CAPACITY - 1))]) {
+        format(slot, batch);
+        slot.remote = slot.method = slot.uri = slot.protocol = slot.route = null;
+        // Hands the slot back to producers, for the next round.
+        slot.sequence = head + CAPACITY;
+        head++;
+      }
+      if (batch.length() > 0) {
+        write(batch.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      if (stopping) {
+        return;
+      }
+      LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+    }
+  }
+
+  private void format(Slot slot, StringBuilder sb) {
+    for (Object part : parts) {
+      if (!(part instanceof Field)) {
+        sb.append((String) part);
+        continue;
+      }
+      switch ((Field) part) {
+        case TIME:
+          timeFormatter.formatTo(Instant.ofEpochMilli(slot.timestamp), sb);
+          break;
+        case REMOTE:
+          sb.append(slot.remote);
+          break;
+        case METHOD:
+          sb.append(slot.method);
+          break;
+        case URI:
+          sb.append(slot.uri);
+          break;
+        case PROTOCOL:
+          sb.append(slot.protocol);
+          break;
+        case STATUS:
+          sb.append(slot.status);
+          break;
+        case BYTES:
+          sb.append(slot.bytes);
+          break;
+        case ROUTE:
+          sb.append(slot.route);
+          break;
+        case DURATION:
+          appendMillis(sb, slot.durationNanos);
+          break;
+        case TTFB:
+          appendMillis(sb, slot.ttfbNanos);
+          break;
+        case UPSTREAM:
+          appendMillis(sb, slot.upstreamNanos);
+          break;
+        default:
+          throw new AssertionError(part);
+      }
+    }
+    sb.append('\n');
+  }
+
+  /** Appends milliseconds with 3 decimals, or {@code -} if negative. */
+  private static void appendMillis(StringBuilder sb, long nanos) {
+    if (nanos < 0) {
+      sb.append('-');
+      return;
+    }
+    long micros = nanos / 1000;
+    sb.append(micros / 1000).append('.');
+    long fraction = micros % 1000;
+    if (fraction < 100) {
+      sb.append('0');
+    }
+    if (fraction < 10) {
+      sb.append('0');
+    }
+    sb.append(fraction);
+  }
+
+  private void write(byte[] bytes) {
+    try {
+      if (maxSize > 0 && size > 0 && size + bytes.length > maxSize) {
+        try {
+          roll();
+        } catch (IOException e) {
+          logger.log(TreeLogger.WARN, "Cannot roll over the access log " + file, e);
+        }
+      }
+      out.write(bytes);
+      size += bytes.length;
+    } catch (IOException e) {
+      logger.log(TreeLogger.WARN, "Cannot write to the access log " + file, e);
+    }
+  }
+
+  private void roll() throws IOException {
+    out.close();
+    try {
+      for (int i = BACKUPS - 1; i >= 1; i--) {
+        Path backup = backup(i);
+        if (Files.exists(backup)) {
+          Files.move(backup, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      // Keeps logging to the current file if it couldn't be moved, until it grows by maxSize again.
+      out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      size = 0;
+    }
+  }
+
+  private Path backup(int index) {
+    return file.resolveSibling(file.getFileName() + "." + index);
+  }
+}
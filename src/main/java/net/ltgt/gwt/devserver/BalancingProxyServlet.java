@@ -0,0 +1,135 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpMethod;
+
+/**
+ * Proxies requests to one of several {@link Upstreams}.
+ *
+ * <p>The {@code proxyTo} init parameter must be set to any of the upstreams' origins, as the path of the
+ * target URL is computed the same as with a single origin.
+ *
+ * <p>Upstreams are ejected after a connection error, and actively health-checked when given a path to check.
+ */
+class BalancingProxyServlet extends UpstreamProxyServlet {
+  static final long HEALTH_CHECK_INTERVAL_SECONDS = 5;
+
+  private static final String UPSTREAM_ATTRIBUTE = BalancingProxyServlet.class.getName() + ".upstream";
+  private static final String RESPONDED_ATTRIBUTE = BalancingProxyServlet.class.getName() + ".responded";
+
+  private final Upstreams upstreams;
+  private final String healthCheckPath;
+  private final TreeLogger logger;
+  private ScheduledExecutorService healthChecker;
+
+  BalancingProxyServlet(Metrics.Route route, Upstreams upstreams, String healthCheckPath, Options options,
+      TreeLogger logger) {
+    super(route, options);
+    this.upstreams = upstreams;
+    this.healthCheckPath = healthCheckPath;
+    this.logger = logger;
+  }
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    if (healthCheckPath != null) {
+      healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "BalancingProxyServlet health checks");
+        thread.setDaemon(true);
+        return thread;
+      });
+      // runs until shut down
+      Object unused = healthChecker.scheduleWithFixedDelay(this::checkHealth,
+          0, HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (healthChecker != null) {
+      healthChecker.shutdownNow();
+    }
+    super.destroy();
+  }
+
+  private void checkHealth() {
+    for (Upstreams.Upstream upstream : upstreams.getAll()) {
+      getHttpClient().newRequest(upstream.origin + healthCheckPath)
+          .method(HttpMethod.GET)
+          .timeout(HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS)
+          .send(result -> {
+            boolean healthy = !result.isFailed() && result.getResponse().getStatus() < 400;
+            if (healthy != upstream.healthy) {
+              logger.log(healthy ? TreeLogger.INFO : TreeLogger.WARN,
+                  upstream + (healthy ? " is healthy again" : " failed its health check"), result.getFailure());
+            }
+            upstreams.setHealthy(upstream, healthy);
+          });
+    }
+  }
+
+  @Override
+  protected URI rewriteURI(HttpServletRequest request) {
+    URI target = super.rewriteURI(request);
+    if (target == null) {
+      return null;
+    }
+    Upstreams.Upstream upstream = upstreams.acquire();
+    request.setAttribute(UPSTREAM_ATTRIBUTE, upstream);
+    return withOrigin(target, upstream.origin);
+  }
+
+  @Override
+  protected void onServerResponseHeaders(HttpServletRequest request, HttpServletResponse response,
+      Response proxyResponse) {
+    request.setAttribute(RESPONDED_ATTRIBUTE, Boolean.TRUE);
+    super.onServerResponseHeaders(request, response, proxyResponse);
+  }
+
+  @Override
+  protected void onProxyResponseSuccess(HttpServletRequest request, HttpServletResponse response,
+      Response proxyResponse) {
+    release(request, false);
+    super.onProxyResponseSuccess(request, response, proxyResponse);
+  }
+
+  @Override
+  protected void onProxyResponseFailure(HttpServletRequest request, HttpServletResponse response,
+      Response proxyResponse, Throwable failure) {
+    // Failing before the response headers means the upstream couldn't be reached (or timed out),
+    // unless the request was rejected without being sent.
+    release(request, request.getAttribute(RESPONDED_ATTRIBUTE) == null
+        && !(failure instanceof RejectedExecutionException));
+    super.onProxyResponseFailure(request, response, proxyResponse, failure);
+  }
+
+  @Override
+  protected void onTunnelResponse(HttpServletRequest request, Throwable failure) {
+    // Tunnels aren't counted as in flight once established.
+    release(request, failure != null);
+  }
+
+  private void release(HttpServletRequest request, boolean eject) {
+    Upstreams.Upstream upstream = (Upstreams.Upstream) request.getAttribute(UPSTREAM_ATTRIBUTE);
+    if (upstream == null) {
+      return;
+    }
+    request.removeAttribute(UPSTREAM_ATTRIBUTE);
+    upstreams.release(upstream);
+    if (eject) {
+      logger.log(TreeLogger.WARN, "Cannot proxy to " + upstream + ", ejecting it for "
+          + TimeUnit.MILLISECONDS.toSeconds(Upstreams.EJECTION_MILLIS) + "s");
+      upstreams.eject(upstream);
+    }
+  }
+}
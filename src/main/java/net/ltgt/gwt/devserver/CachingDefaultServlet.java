@@ -0,0 +1,79 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.eclipse.jetty.util.URIUtil;
+
+/**
+ * A {@link StreamingFileServlet} that serves regular files out of a {@link StaticFileCache}.
+ *
+ * <p>Precompressed {@code .br} and {@code .gz} sidecar files are served to clients that accept them.
+ * Otherwise, compressible files are gzipped once and served from the {@link CompressedResponseCache}.
+ * Range requests are served out of the cache as well.
+ *
+ * <p>Files that aren't cacheable are left to the {@link StreamingFileServlet}.
+ */
+class CachingDefaultServlet extends StreamingFileServlet {
+  private final StaticFileCache cache;
+  private final CompressedResponseCache compressedResponseCache;
+
+  CachingDefaultServlet(Path root, long streamThreshold, StaticFileCache cache,
+      CompressedResponseCache compressedResponseCache) {
+    super(root, streamThreshold);
+    this.cache = cache;
+    this.compressedResponseCache = compressedResponseCache;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    String pathInContext = getPathInContext(request);
+    if (pathInContext != null && !pathInContext.endsWith("/")) {
+      StaticFileCache.Entry entry = cache.get(pathInContext.substring(1));
+      if (entry != null) {
+        send(request, response, pathInContext, entry);
+        return;
+      }
+    }
+    super.doGet(request, response);
+  }
+
+  private void send(HttpServletRequest request, HttpServletResponse response, String pathInContext,
+      StaticFileCache.Entry entry) throws IOException {
+    String mimeType = getServletContext().getMimeType(pathInContext);
+
+    String contentEncoding = null;
+    String etag = entry.etag;
+    ByteBuffer content = entry.content;
+    StaticFileCache.Entry sidecar;
+    if (HttpUtil.accepts(request, "br") && (sidecar = cache.get(pathInContext.substring(1) + ".br")) != null) {
+      contentEncoding = "br";
+      etag = sidecar.etag;
+      content = sidecar.content;
+    } else if (HttpUtil.acceptsGzip(request)) {
+      if ((sidecar = cache.get(pathInContext.substring(1) + ".gz")) != null) {
+        contentEncoding = "gzip";
+        etag = sidecar.etag;
+        content = sidecar.content;
+      } else if (compressedResponseCache.isCompressible(mimeType, entry.content.remaining())) {
+        contentEncoding = "gzip";
+        etag = CompressedResponseCache.etag(entry.etag, contentEncoding);
+        // Keyed by the full path, as servlets for different directories share the cache.
+        content = compressedResponseCache.gzip(URIUtil.addPaths(request.getServletPath(), request.getPathInfo()),
+            entry.etag, () -> entry.content);
+      }
+    }
+
+    ByteBuffer selected = content;
+    send(request, response, mimeType, contentEncoding, etag, entry.lastModified, selected.remaining(),
+        (out, offset, length) -> {
+          ByteBuffer region = selected.duplicate();
+          region.position(region.position() + (int) offset);
+          region.limit(region.position() + (int) length);
+          HttpUtil.write(out, region);
+        });
+  }
+}
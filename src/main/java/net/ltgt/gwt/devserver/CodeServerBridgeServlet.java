@@ -0,0 +1,114 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * Serves the CodeServer's compiler output for a module straight from its current war directory,
+ * when the CodeServer runs in the same JVM.
+ *
+ * <p>Anything that isn't a compiler output file (module page, missing files, non-GET requests)
+ * falls back to proxying to the CodeServer over HTTP.
+ */
+class CodeServerBridgeServlet extends UpstreamProxyServlet {
+  // Same as the CodeServer's WebServer.SAFE_FILE_PATH, relative to the module directory.
+  private static final Pattern SAFE_FILE_PATH =
+      Pattern.compile("/(?:[a-zA-Z0-9_-]+/)*(?:[a-zA-Z0-9_-]+\\.)+[a-zA-Z0-9_-]+");
+  private static final Pattern CACHE_JS_FILE = Pattern.compile("/([\\dA-F]{32})\\.cache\\.js");
+  private static final String TIME_IN_THE_PAST = "Mon, 01 Jan 1990 00:00:00 GMT";
+
+  private final String outputModuleName;
+  private final Function<String, File> warDirs;
+  private final Supplier<String> codeServerOrigin;
+  private final CompressedResponseCache compressedResponseCache;
+
+  CodeServerBridgeServlet(Metrics.Route route, String outputModuleName, Function<String, File> warDirs,
+      CompressedResponseCache compressedResponseCache, Options options) {
+    super(route, options);
+    this.outputModuleName = outputModuleName;
+    this.warDirs = warDirs;
+    this.codeServerOrigin = options.origin;
+    this.compressedResponseCache = compressedResponseCache;
+  }
+
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    if (!serveFromWarDir(req, resp)) {
+      super.service(req, resp);
+    }
+  }
+
+  private boolean serveFromWarDir(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String pathInfo = req.getPathInfo();
+    if (!"GET".equals(req.getMethod()) || pathInfo == null || !SAFE_FILE_PATH.matcher(pathInfo).matches()) {
+      return false;
+    }
+    File warDir = warDirs.apply(outputModuleName);
+    if (warDir == null) {
+      return false;
+    }
+    File file = new File(warDir, outputModuleName + pathInfo);
+    boolean gzipped = false;
+    if (!file.isFile()) {
+      // perhaps it's compressed
+      file = new File(warDir, outputModuleName + pathInfo + ".gz");
+      if (!file.isFile() || !HttpUtil.acceptsGzip(req)) {
+        return false;
+      }
+      gzipped = true;
+    }
+
+    resp.setHeader("Access-Control-Allow-Origin", "*");
+    Matcher cacheJs = CACHE_JS_FILE.matcher(pathInfo);
+    if (cacheJs.matches()) {
+      String sourceMapUrl = codeServerOrigin.get() + "/sourcemaps/" + outputModuleName + "/" + cacheJs.group(1) + "_sourcemap.json";
+      resp.setHeader("X-SourceMap", sourceMapUrl);
+      resp.setHeader("SourceMap", sourceMapUrl);
+    } else {
+      resp.setHeader("Cache-Control", "no-cache, no-store, max-age=0, must-revalidate");
+      resp.setHeader("Pragma", "no-cache");
+      resp.setHeader("Expires", TIME_IN_THE_PAST);
+    }
+    String mimeType = getServletContext().getMimeType(pathInfo);
+    resp.setContentType(mimeType == null ? "application/octet-stream" : mimeType);
+    if (gzipped) {
+      // Clients that don't accept gzip get the CodeServer's response instead.
+      resp.addHeader("Vary", "Accept-Encoding");
+      resp.setHeader("Content-Encoding", "gzip");
+    } else if (HttpUtil.acceptsGzip(req) && compressedResponseCache.isCompressible(mimeType, file.length())) {
+      // Compiler output never changes in place, but war dirs are reused across compiles.
+      Path path = file.toPath();
+      ByteBuffer content = compressedResponseCache.gzip(path.toString(),
+          file.lastModified() + "-" + file.length(), () -> ByteBuffer.wrap(Files.readAllBytes(path)));
+      resp.addHeader("Vary", "Accept-Encoding");
+      resp.setHeader("Content-Encoding", "gzip");
+      resp.setContentLength(content.remaining());
+      HttpUtil.send(resp, content);
+      return true;
+    }
+    resp.setContentLengthLong(file.length());
+
+    ServletOutputStream out = resp.getOutputStream();
+    if (out instanceof HttpOutput) {
+      // Jetty closes the channel once it has been fully written.
+      ((HttpOutput) out).sendContent(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    } else {
+      Files.copy(file.toPath(), out);
+    }
+    return true;
+  }
+}
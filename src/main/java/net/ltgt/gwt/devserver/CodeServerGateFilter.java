@@ -0,0 +1,91 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds requests for the modules until the CodeServer has started, so that the devserver can serve
+ * other content in the meantime.
+ *
+ * <p>Waiting requests are suspended, and dispatched again once the CodeServer is ready.
+ * They fail with 503 Service Unavailable after a timeout, or if the CodeServer failed to start.
+ * The filter must be mapped for both the {@code REQUEST} and {@code ASYNC} dispatcher types.
+ */
+class CodeServerGateFilter implements Filter {
+  private final CompletableFuture<?> codeServerReady;
+  private final long timeoutSeconds;
+
+  CodeServerGateFilter(CompletableFuture<?> codeServerReady, long timeoutSeconds) {
+    this.codeServerReady = codeServerReady;
+    this.timeoutSeconds = timeoutSeconds;
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (codeServerReady.isDone()) {
+      if (codeServerReady.isCompletedExceptionally()) {
+        ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "The CodeServer failed to start");
+      } else {
+        chain.doFilter(request, response);
+      }
+      return;
+    }
+
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+    // Either the timeout or the CodeServer's readiness resumes the request, whichever comes first.
+    AtomicBoolean resumed = new AtomicBoolean();
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        if (resumed.compareAndSet(false, true)) {
+          HttpServletResponse httpResponse = (HttpServletResponse) event.getSuppliedResponse();
+          httpResponse.setHeader("Retry-After", "5");
+          httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The CodeServer is still starting");
+          asyncContext.complete();
+        }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    // Never completed exceptionally.
+    Object unused = codeServerReady.handle((result, failure) -> {
+      if (resumed.compareAndSet(false, true)) {
+        asyncContext.dispatch();
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
@@ -0,0 +1,175 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.dev.codeserver.JobChangeListener;
+import com.google.gwt.dev.json.JsonException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * Runs a CodeServer in a child JVM (see {@link ForkedCodeServer}), so that compiles have their own heap
+ * and garbage collections don't stall the devserver.
+ *
+ * <p>The child JVM is restarted whenever it exits unexpectedly, on the same port as the first time so that
+ * already-loaded pages keep working. If it exits before it ever was ready, the {@link #getPort() port}
+ * fails instead.
+ *
+ * <p>The child's job events are relayed to the given {@link JobChangeListener}.
+ */
+class CodeServerProcess extends AbstractLifeCycle {
+  static final long RESTART_DELAY_MILLIS = 2000;
+
+  private final String name;
+  private final String mainClass;
+  private final List<String> jvmArgs;
+  private final List<String> codeServerArgs;
+  private final JobChangeListener jobChangeListener;
+  private final TreeLogger logger;
+  private final CompletableFuture<Integer> port = new CompletableFuture<>();
+
+  /** The port to pass to the CodeServer, 0 for "auto". */
+  private volatile int requestedPort;
+  private volatile Process process;
+  private Thread supervisor;
+
+  /**
+   * Creates a process running a CodeServer with the given arguments, except {@code -port} that is
+   * passed separately.
+   */
+  CodeServerProcess(String name, List<String> jvmArgs, int port, List<String> codeServerArgs,
+      JobChangeListener jobChangeListener, TreeLogger logger) {
+    this(name, ForkedCodeServer.class.getName(), jvmArgs, port, codeServerArgs, jobChangeListener, logger);
+  }
+
+  /**
+   * Creates a process running {@code mainClass} rather than {@link ForkedCodeServer}; it must follow
+   * the same protocol.
+   */
+  CodeServerProcess(String name, String mainClass, List<String> jvmArgs, int port, List<String> codeServerArgs,
+      JobChangeListener jobChangeListener, TreeLogger logger) {
+    this.name = name;
+    this.mainClass = mainClass;
+    this.jvmArgs = jvmArgs;
+    this.requestedPort = port;
+    this.codeServerArgs = codeServerArgs;
+    this.jobChangeListener = jobChangeListener;
+    this.logger = logger;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /** Returns the CodeServer's port, known once it's ready. */
+  CompletableFuture<Integer> getPort() {
+    return port;
+  }
+
+  /** Returns the current child process, or {@code null} if it's not been launched yet. */
+  Process getProcess() {
+    return process;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    supervisor = new Thread(this::supervise, "CodeServer supervisor for " + name);
+    supervisor.setDaemon(true);
+    supervisor.start();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    supervisor.interrupt();
+    Process process = this.process;
+    if (process != null) {
+      process.destroy();
+      if (!process.waitFor(5, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    }
+    supervisor.join(TimeUnit.SECONDS.toMillis(5));
+  }
+
+  private void supervise() {
+    try {
+      while (isRunning()) {
+        Process process = launch();
+        this.process = process;
+        readMessages(process);
+        int exitValue = process.waitFor();
+        if (!isRunning()) {
+          return;
+        }
+        if (!port.isDone()) {
+          port.completeExceptionally(new IOException("CodeServer for " + name + " exited with status " + exitValue));
+          return;
+        }
+        logger.log(TreeLogger.WARN, "CodeServer for " + name + " exited with status " + exitValue + ", restarting");
+        Thread.sleep(RESTART_DELAY_MILLIS);
+      }
+    } catch (IOException e) {
+      if (!port.completeExceptionally(e)) {
+        logger.log(TreeLogger.ERROR, "Cannot restart the CodeServer for " + name, e);
+      }
+    } catch (InterruptedException e) {
+      // stopping
+    }
+  }
+
+  private Process launch() throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.addAll(jvmArgs);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(mainClass);
+    command.add("-port");
+    command.add(String.valueOf(requestedPort == 0 ? findFreePort() : requestedPort));
+    command.addAll(codeServerArgs);
+    // The child's standard input is left open; it exits when it's closed, i.e. when we go away.
+    return new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+  }
+
+  /** Returns a port that's free at the time of the call, as the CodeServer can't choose one itself. */
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private void readMessages(Process process) {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(ForkedCodeServer.PORT_MESSAGE)) {
+          int port = Integer.parseInt(line.substring(ForkedCodeServer.PORT_MESSAGE.length()));
+          // Restarts reuse the same port.
+          requestedPort = port;
+          logger.log(TreeLogger.INFO, "CodeServer for " + name + " is ready on port " + port);
+          this.port.complete(port);
+        } else if (line.startsWith(ForkedCodeServer.EVENT_MESSAGE)) {
+          try {
+            jobChangeListener.onJobChange(
+                ForkedCodeServer.fromJson(line.substring(ForkedCodeServer.EVENT_MESSAGE.length())));
+          } catch (IOException | JsonException | RuntimeException e) {
+            logger.log(TreeLogger.WARN, "Invalid job event from the CodeServer for " + name, e);
+          }
+        }
+      }
+    } catch (IOException e) {
+      // the child is gone
+    }
+  }
+}
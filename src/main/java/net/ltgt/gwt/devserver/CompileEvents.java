@@ -0,0 +1,260 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.codeserver.JobChangeListener;
+import com.google.gwt.dev.codeserver.JobEvent;
+import com.google.gwt.dev.json.JsonObject;
+import com.google.gwt.thirdparty.guava.common.base.Charsets;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * Pushes the CodeServer's job events, per output module, to Server-Sent Events subscribers.
+ *
+ * <p>Events are {@code compiling}, {@code done}, and {@code failed}; their data is a JSON object
+ * with the {@code jobId}, {@code status}, {@code message}, and {@code compileStrategy} (for {@code done} events.)
+ * A subscriber joining during a compile is sent the latest {@code compiling} event.
+ *
+ * <p>Events are written on a dedicated thread, so a slow subscriber never holds up the compiler,
+ * and each subscriber is written to from its own pooled thread, so it doesn't hold up other subscribers either.
+ * A subscriber has a bounded queue of pending events, and is dropped when it overflows
+ * (an {@code EventSource} will then reconnect.)
+ *
+ * <p>This also remembers the binding properties of the latest compile of each module,
+ * and emits {@link FlightRecorderEvents} for compiles.
+ */
+class CompileEvents extends AbstractLifeCycle implements JobChangeListener {
+  private static final long HEARTBEAT_SECONDS = 15;
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(Charsets.UTF_8);
+  static final int MAX_PENDING = 64;
+
+  private static class Channel {
+    final ConcurrentMap<AsyncContext, Subscriber> subscribers = new ConcurrentHashMap<>();
+    /** The latest event if it's a {@code compiling} one, {@code null} otherwise. */
+    volatile byte[] compiling;
+    volatile Map<String, String> bindings;
+    /** The compile's flight recorder event, if being recorded. */
+    volatile Object compileEvent;
+  }
+
+  private final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<>();
+  private volatile ScheduledExecutorService executor;
+  private volatile ExecutorService writers;
+  private ScheduledFuture<?> heartbeat;
+
+  @Override
+  protected void doStart() throws Exception {
+    writers = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "CompileEvents-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "CompileEvents");
+      thread.setDaemon(true);
+      return thread;
+    });
+    heartbeat = executor.scheduleWithFixedDelay(() -> {
+      for (Channel channel : channels.values()) {
+        broadcast(channel, HEARTBEAT);
+      }
+    }, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    heartbeat.cancel(false);
+    executor.shutdownNow();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    writers.shutdownNow();
+    for (Channel channel : channels.values()) {
+      for (Subscriber subscriber : channel.subscribers.values()) {
+        subscriber.close();
+      }
+    }
+  }
+
+  @Override
+  public void onJobChange(JobEvent event) {
+    if (event.getOutputModuleName() == null) {
+      // only known once the module has been loaded
+      return;
+    }
+    String type;
+    switch (event.getStatus()) {
+      case COMPILING:
+        type = "compiling";
+        break;
+      case SERVING:
+        type = "done";
+        break;
+      case ERROR:
+        type = "failed";
+        break;
+      default:
+        return;
+    }
+    byte[] message = format(type, event);
+    Channel channel = channel(event.getOutputModuleName());
+    channel.bindings = event.getBindings();
+    channel.compiling = event.getStatus() == JobEvent.Status.COMPILING ? message : null;
+    if (event.getStatus() == JobEvent.Status.COMPILING) {
+      channel.compileEvent = FlightRecorderEvents.INSTANCE.beginCompile();
+    } else {
+      FlightRecorderEvents.INSTANCE.endCompile(
+          channel.compileEvent, event.getOutputModuleName(), event.getJobId(), type);
+      channel.compileEvent = null;
+    }
+    execute(() -> broadcast(channel, message));
+  }
+
+  /** Adds a subscriber whose response headers have already been set. */
+  void subscribe(String outputModuleName, AsyncContext context) {
+    Channel channel = channel(outputModuleName);
+    Subscriber subscriber = new Subscriber(channel, context);
+    execute(() -> {
+      channel.subscribers.put(context, subscriber);
+      byte[] compiling = channel.compiling;
+      subscriber.send(compiling == null ? HEARTBEAT : compiling);
+    });
+  }
+
+  /** Returns the binding properties of the latest compile of the module, or {@code null} if it never compiled. */
+  Map<String, String> getLatestBindings(String outputModuleName) {
+    return channel(outputModuleName).bindings;
+  }
+
+  void unsubscribe(String outputModuleName, AsyncContext context) {
+    channel(outputModuleName).subscribers.remove(context);
+  }
+
+  private Channel channel(String outputModuleName) {
+    return channels.computeIfAbsent(outputModuleName, k -> new Channel());
+  }
+
+  private void execute(Runnable task) {
+    ScheduledExecutorService executor = this.executor;
+    if (executor == null) {
+      // not started yet, so there can't be subscribers either
+      return;
+    }
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // stopping
+    }
+  }
+
+  private static void broadcast(Channel channel, byte[] message) {
+    for (Subscriber subscriber : channel.subscribers.values()) {
+      subscriber.send(message);
+    }
+  }
+
+  /**
+   * Queues events for a subscriber, and writes them from a pooled thread of its own,
+   * so a stalled connection only holds up that one thread (until the idle timeout.)
+   */
+  private class Subscriber {
+    private final Channel channel;
+    private final AsyncContext context;
+    private final Queue<byte[]> pending = new ArrayDeque<>(); // guarded by this
+    private boolean writing; // guarded by this
+
+    Subscriber(Channel channel, AsyncContext context) {
+      this.channel = channel;
+      this.context = context;
+    }
+
+    void send(byte[] message) {
+      synchronized (this) {
+        if (pending.size() >= MAX_PENDING) {
+          // too slow to keep up
+          pending.clear();
+          message = null;
+        } else {
+          pending.add(message);
+          if (writing) {
+            return;
+          }
+          writing = true;
+        }
+      }
+      if (message == null) {
+        close();
+        return;
+      }
+      try {
+        writers.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // stopping
+      }
+    }
+
+    private void drain() {
+      try {
+        ServletOutputStream out = context.getResponse().getOutputStream();
+        for (;;) {
+          byte[] message;
+          synchronized (this) {
+            message = pending.poll();
+            if (message == null) {
+              writing = false;
+              return;
+            }
+          }
+          out.write(message);
+          out.flush();
+        }
+      } catch (IOException | IllegalStateException e) {
+        // disconnected (or already completed)
+        close();
+      }
+    }
+
+    void close() {
+      channel.subscribers.remove(context);
+      synchronized (this) {
+        pending.clear();
+      }
+      try {
+        context.complete();
+      } catch (IllegalStateException ignored) {
+        // already completed
+      }
+    }
+  }
+
+  private static byte[] format(String type, JobEvent event) {
+    JsonObject data = JsonObject.create();
+    data.put("jobId", event.getJobId());
+    data.put("status", event.getStatus().name().toLowerCase());
+    if (event.getMessage() != null) {
+      data.put("message", event.getMessage());
+    }
+    if (event.getCompileStrategy() != null) {
+      data.put("compileStrategy", event.getCompileStrategy().getJsonName());
+    }
+    StringWriter sw = new StringWriter();
+    try {
+      data.write(sw);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    // JSON never contains raw newlines, so it fits on a single data line.
+    return ("id: " + event.getJobId() + "\nevent: " + type + "\ndata: " + sw + "\n\n").getBytes(Charsets.UTF_8);
+  }
+}
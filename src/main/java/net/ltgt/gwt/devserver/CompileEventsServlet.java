@@ -0,0 +1,62 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Set;
+
+/** Subscribes clients to a module's {@link CompileEvents} as a {@code text/event-stream}. */
+class CompileEventsServlet extends HttpServlet {
+  private final CompileEvents compileEvents;
+  private final Set<String> outputModuleNames;
+
+  CompileEventsServlet(CompileEvents compileEvents, Set<String> outputModuleNames) {
+    this.compileEvents = compileEvents;
+    this.outputModuleNames = outputModuleNames;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    String pathInfo = req.getPathInfo();
+    String outputModuleName = pathInfo == null ? null : pathInfo.substring(1);
+    if (outputModuleName == null || !outputModuleNames.contains(outputModuleName)) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    resp.setContentType("text/event-stream; charset=UTF-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.setHeader("Access-Control-Allow-Origin", "*");
+    // Have browsers reconnect quickly, e.g. when the devserver is restarted.
+    resp.getOutputStream().print("retry: 1000\n\n");
+    resp.flushBuffer();
+
+    AsyncContext subscriber = req.startAsync();
+    subscriber.setTimeout(0);
+    subscriber.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) {
+        compileEvents.unsubscribe(outputModuleName, subscriber);
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        compileEvents.unsubscribe(outputModuleName, subscriber);
+        subscriber.complete();
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    compileEvents.subscribe(outputModuleName, subscriber);
+  }
+}
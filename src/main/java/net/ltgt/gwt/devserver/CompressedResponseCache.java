@@ -0,0 +1,176 @@
+package net.ltgt.gwt.devserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.eclipse.jetty.http.MimeTypes;
+
+/**
+ * Decides which responses are worth compressing, and keeps the gzipped bodies of cacheable ones
+ * so they're compressed only once per version (as identified by their ETag.)
+ *
+ * <p>The cache is bounded by the total byte size of the compressed bodies, with LRU eviction.
+ */
+class CompressedResponseCache {
+  /** Already-compressed types that aren't worth compressing again. */
+  static final Set<String> DEFAULT_EXCLUDED_MIME_TYPES = new TreeSet<>();
+
+  static {
+    // Same as AsyncGzipFilter defaults
+    DEFAULT_EXCLUDED_MIME_TYPES.add("image/*");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("audio/*");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("video/*");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("application/compress");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("application/zip");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("application/gzip");
+    // Fonts using compressed formats
+    DEFAULT_EXCLUDED_MIME_TYPES.add("font/woff");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("font/woff2");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("application/font-woff");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("application/font-woff2");
+    DEFAULT_EXCLUDED_MIME_TYPES.add("application/x-font-woff");
+  }
+
+  private static class Entry {
+    final String etag;
+    final ByteBuffer content;
+
+    Entry(String etag, ByteBuffer content) {
+      this.etag = etag;
+      this.content = content;
+    }
+  }
+
+  private final int minSize;
+  private final Set<String> excludedMimeTypes;
+  private final long maxSize;
+
+  // Guarded by itself.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  CompressedResponseCache(int minSize, Set<String> excludedMimeTypes, long maxSize) {
+    this.minSize = minSize;
+    this.excludedMimeTypes = excludedMimeTypes;
+    this.maxSize = maxSize;
+  }
+
+  int getMinSize() {
+    return minSize;
+  }
+
+  /**
+   * Returns the excluded MIME types in a form suitable for {@code AsyncGzipFilter}'s {@code excludedMimeTypes},
+   * i.e. with wildcards expanded to known MIME types.
+   */
+  String getExcludedMimeTypesInitParameter() {
+    Set<String> expanded = new TreeSet<>();
+    for (String excluded : excludedMimeTypes) {
+      if (excluded.endsWith("/*")) {
+        String prefix = excluded.substring(0, excluded.length() - 1);
+        for (String type : MimeTypes.getKnownMimeTypes()) {
+          if (type.startsWith(prefix) && !type.equals("image/svg+xml")) {
+            expanded.add(type);
+          }
+        }
+      } else {
+        expanded.add(excluded);
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String type : expanded) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(type);
+    }
+    return sb.toString();
+  }
+
+  boolean isCompressible(String mimeType, long length) {
+    if (length < minSize) {
+      return false;
+    }
+    if (mimeType == null) {
+      return true;
+    }
+    mimeType = MimeTypes.getContentTypeWithoutCharset(mimeType).toLowerCase(Locale.ROOT);
+    if (mimeType.equals("image/svg+xml")) {
+      // always compressible
+      return true;
+    }
+    return !excludedMimeTypes.contains(mimeType)
+        && !excludedMimeTypes.contains(mimeType.substring(0, mimeType.indexOf('/') + 1) + "*");
+  }
+
+  /**
+   * Returns the gzipped body for the given key and ETag, compressing the body (and caching the result) if needed.
+   */
+  ByteBuffer gzip(String key, String etag, Callable<ByteBuffer> body) throws IOException {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.etag.equals(etag)) {
+        hits.incrementAndGet();
+        return entry.content;
+      }
+    }
+    misses.incrementAndGet();
+    ByteBuffer content;
+    try {
+      content = gzip(body.call());
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+    if (content.remaining() <= maxSize) {
+      synchronized (entries) {
+        Entry previous = entries.put(key, new Entry(etag, content));
+        if (previous != null) {
+          size -= previous.content.capacity();
+        }
+        size += content.capacity();
+        for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+          size -= it.next().content.capacity();
+          it.remove();
+        }
+      }
+    }
+    return content;
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  static ByteBuffer gzip(ByteBuffer body) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(32, body.remaining() / 4));
+    try (GZIPOutputStream out = new GZIPOutputStream(baos);
+         WritableByteChannel channel = Channels.newChannel(out)) {
+      channel.write(body.duplicate());
+    }
+    return ByteBuffer.wrap(baos.toByteArray()).asReadOnlyBuffer();
+  }
+
+  /** Derives the entity-tag of an encoded representation from the one of the identity representation. */
+  static String etag(String etag, String contentEncoding) {
+    return etag.substring(0, etag.length() - 1) + "-" + contentEncoding + '"';
+  }
+}
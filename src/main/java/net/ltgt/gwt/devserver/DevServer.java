@@ -3,40 +3,74 @@ package net.ltgt.gwt.devserver;
 import com.google.gwt.core.ext.TreeLogger;
 import com.google.gwt.core.ext.UnableToCompleteException;
 import com.google.gwt.dev.ArgProcessorBase;
+import com.google.gwt.dev.cfg.ModuleDef;
 import com.google.gwt.dev.cfg.ModuleDefLoader;
 import com.google.gwt.dev.codeserver.CodeServer;
+import com.google.gwt.dev.codeserver.JobChangeListener;
 import com.google.gwt.dev.codeserver.Recompiler;
 import com.google.gwt.dev.codeserver.WebServer;
 import com.google.gwt.dev.jjs.JsOutputOption;
 import com.google.gwt.dev.util.arg.*;
 import com.google.gwt.dev.util.log.PrintWriterTreeLogger;
 import com.google.gwt.thirdparty.guava.common.base.Charsets;
+import com.google.gwt.thirdparty.guava.common.base.Throwables;
 import com.google.gwt.thirdparty.guava.common.io.Resources;
 import com.google.gwt.util.regexfilter.WhitelistRegexFilter;
 import com.google.gwt.util.tools.ArgHandlerDir;
+import com.google.gwt.util.tools.ArgHandlerFile;
 import com.google.gwt.util.tools.ArgHandlerFlag;
 import com.google.gwt.util.tools.ArgHandlerString;
 import javax.servlet.DispatcherType;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import org.eclipse.jetty.proxy.AsyncProxyServlet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlets.AsyncGzipFilter;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import static com.google.gwt.thirdparty.guava.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 
 public class DevServer {
+  /** Context path of the devserver's own endpoints. */
+  static final String RESERVED_CONTEXT_PATH = "/__devserver";
 
   static class ArgProcessor extends ArgProcessorBase {
     ArgProcessor(final Options options) {
@@ -172,6 +206,190 @@ public class DevServer {
           return true;
         }
       });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.minThreads = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of threads must be an integer");
+            return false;
+          }
+          return options.minThreads >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the minimum number of threads of the web server (defaults to 8)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-minThreads";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.maxThreads = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of threads must be an integer");
+            return false;
+          }
+          return options.maxThreads >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum number of threads of the web server (defaults to 200)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-maxThreads";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.threadQueueSize = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A queue size must be an integer");
+            return false;
+          }
+          return options.threadQueueSize >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum number of jobs waiting for a web server thread, 0 for unbounded (defaults to 0)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-threadQueueSize";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"jobs"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.threadIdleTimeout = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A timeout must be an integer");
+            return false;
+          }
+          return options.threadIdleTimeout >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the time in milliseconds after which idle web server threads are stopped (defaults to 60000)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-threadIdleTimeout";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"millis"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.acceptors = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of threads must be an integer");
+            return false;
+          }
+          return options.acceptors >= -1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the number of threads accepting connections, -1 to choose based on the number of CPUs (defaults to -1)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-acceptors";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.selectors = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of threads must be an integer");
+            return false;
+          }
+          return options.selectors >= -1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the number of threads selecting connections for I/O, -1 to choose based on the number of CPUs (defaults to -1)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-selectors";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "virtualThreads";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.virtualThreads;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Handles requests on virtual threads, when the JVM supports them";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.virtualThreads = value;
+          return true;
+        }
+      });
       registerHandler(new ArgHandlerString() {
         @Override
         public String[] getDefaultArgs() {
@@ -209,17 +427,50 @@ public class DevServer {
           return true;
         }
       });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.codeServerStartTimeout = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A timeout must be an integer");
+            return false;
+          }
+          return options.codeServerStartTimeout > 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the time in seconds that module requests wait for the code server to start (defaults to 120)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-codeServerStartTimeout";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"seconds"};
+        }
+      });
       registerHandler(new ArgHandlerString() {
         @Override
         public boolean setString(String s) {
-          // TODO: validate (http or https, no path, query or hash)
+          try {
+            Upstreams.parseOrigins(s);
+          } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+          }
           options.proxyTo = s;
           return true;
         }
 
         @Override
         public String getPurpose() {
-          return "Specifies an origin (scheme, host, and optional port) to proxy to.";
+          return "Specifies an origin (scheme, host, and optional port) to proxy to, "
+              + "or a comma-separated list of origins to balance requests between.";
         }
 
         @Override
@@ -229,10 +480,68 @@ public class DevServer {
 
         @Override
         public String[] getTagArgs() {
-          return new String[] { "origin" };
+          return new String[] { "origin[,origin...]" };
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String s) {
+          try {
+            options.proxyBalancer = Upstreams.Strategy.parse(s);
+          } catch (IllegalArgumentException e) {
+            System.err.println("The balancing strategy must be one of \"roundRobin\" or \"leastInFlight\"");
+            return false;
+          }
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies how requests are balanced between -proxyTo origins (defaults to leastInFlight)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyBalancer";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "roundRobin | leastInFlight" };
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String s) {
+          if (!s.startsWith("/")) {
+            System.err.println("The health check path must start with a /");
+            return false;
+          }
+          options.proxyHealthCheck = s;
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies a path on the -proxyTo origins to periodically check their health with.";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyHealthCheck";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "path" };
         }
       });
       registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "preserveHost";
+        }
+
         @Override
         public boolean getDefaultValue() {
           return options.preserveHost;
@@ -249,113 +558,1066 @@ public class DevServer {
           return true;
         }
       });
-      registerHandler(new ArgHandlerDir() {
+      registerHandler(new ArgHandlerFlag() {
         @Override
-        public void setDir(File dir) {
-          options.baseDir = dir;
+        public String getLabel() {
+          return "proxyCoalesce";
         }
 
         @Override
-        public String getPurpose() {
-          return "Specifies the directory to serve (as static files only)";
+        public boolean getDefaultValue() {
+          return options.proxyCoalesce;
         }
 
         @Override
-        public String getTag() {
-          return "-baseDir";
+        public String getPurposeSnippet() {
+          return "Proxies concurrent identical GET requests to the -proxyTo origins only once, sharing the response";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.proxyCoalesce = value;
+          return true;
         }
       });
       registerHandler(new ArgHandlerString() {
         @Override
-        public boolean setString(String s) {
-          options.contextPath = s;
-          return true;
+        public boolean setString(String value) {
+          try {
+            options.coalesceBufferSize = Math.multiplyExact(Integer.parseInt(value), 1024 * 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A buffer size must be an integer, less than 2048");
+            return false;
+          }
+          return options.coalesceBufferSize >= 0;
         }
 
         @Override
         public String getPurpose() {
-          return "Specifies the prefix to prepend to URLs when serving -baseDir.";
+          return "Specifies the maximum size in megabytes of a response shared between identical concurrent requests, "
+              + "0 to disable sharing (defaults to 8)";
         }
 
         @Override
         public String getTag() {
-          return "-contextPath";
+          return "-coalesceBufferSize";
         }
 
         @Override
         public String[] getTagArgs() {
-          return new String[]{"path"};
+          return new String[]{"megabytes"};
         }
       });
       registerHandler(new ArgHandlerString() {
         @Override
-        public boolean setString(String s) {
-          if (s.startsWith("/")) {
-            s = s.substring(1);
-          }
-          if (s.endsWith("/")) {
-            s = s.substring(0, s.length() - 1);
+        public boolean setString(String value) {
+          try {
+            options.proxyCacheSize = Math.multiplyExact(Long.parseLong(value), 1024 * 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A cache size must be an integer");
+            return false;
           }
-          options.modulePathPrefix = s;
-          return true;
+          return options.proxyCacheSize >= 0;
         }
 
         @Override
         public String getPurpose() {
-          return "The path inside -contextPath where modules are served.";
+          return "Specifies the maximum size in megabytes of the in-memory HTTP cache of -proxyTo responses (defaults to 0, disabled)";
         }
 
         @Override
         public String getTag() {
-          return "-modulePathPrefix";
+          return "-proxyCacheSize";
         }
 
         @Override
         public String[] getTagArgs() {
-          return new String[]{"prefix"};
+          return new String[]{"megabytes"};
         }
       });
-      registerHandler(new ArgHandlerModuleName(new OptionModuleName() {
+      registerHandler(new ArgHandlerFile() {
         @Override
-        public List<String> getModuleNames() {
-          return Collections.unmodifiableList(options.moduleNames);
+        public void setFile(File file) {
+          options.proxyRecord = file;
         }
 
         @Override
-        public void addModuleName(String moduleName) {
-          options.moduleNames.add(moduleName);
+        public String getPurpose() {
+          return "Records the responses of the -proxyTo origins to an archive file, appending to it if it exists";
         }
 
         @Override
-        public void setModuleNames(List<String> moduleNames) {
-          options.moduleNames.clear();
-          options.moduleNames.addAll(moduleNames);
+        public String getTag() {
+          return "-proxyRecord";
         }
-      }));
-    }
 
-    @Override
-    protected String getName() {
-      return DevServer.class.getName();
-    }
-  }
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "file" };
+        }
+      });
+      registerHandler(new ArgHandlerFile() {
+        @Override
+        public void setFile(File file) {
+          options.proxyReplay = file;
+        }
 
-  static class Options {
-    File workDir;
-    TreeLogger.Type logLevel;
-    boolean generateExports;
-    OptionMethodNameDisplayMode.Mode methodNameDisplayMode;
-    JsOutputOption style;
-    boolean failOnError;
-    String bindAddress;
-    String connectAddress;
-    int port;
-    int codeServerPort;
-    String proxyTo;
+        @Override
+        public String getPurpose() {
+          return "Serves the responses recorded with -proxyRecord, never contacting the -proxyTo origins";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyReplay";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "file" };
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          options.proxyArchiveIgnoredParams.clear();
+          for (String param : value.split(",")) {
+            if (!param.trim().isEmpty()) {
+              options.proxyArchiveIgnoredParams.add(param.trim());
+            }
+          }
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the comma-separated query parameters that are ignored when matching recorded requests";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyArchiveIgnoreParams";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"params"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          options.proxyArchiveMatchedHeaders.clear();
+          for (String header : value.split(",")) {
+            if (!header.trim().isEmpty()) {
+              options.proxyArchiveMatchedHeaders.add(header.trim());
+            }
+          }
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the comma-separated request headers that must match for recorded requests "
+              + "(defaults to Accept and Accept-Language; credentials are only recorded as digests)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyArchiveMatchHeaders";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"headers"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyMaxConnections = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of connections must be an integer");
+            return false;
+          }
+          return options.proxyMaxConnections >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum number of connections to each CodeServer and -proxyTo origin (defaults to 256)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyMaxConnections";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyMaxQueued = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A queue size must be an integer");
+            return false;
+          }
+          return options.proxyMaxQueued >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum number of proxied requests waiting for a connection to each origin, "
+              + "rejected with a 503 beyond that (defaults to 1024)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyMaxQueued";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyConnectTimeout = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A timeout must be an integer");
+            return false;
+          }
+          return options.proxyConnectTimeout >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the time in milliseconds to connect to the CodeServer and -proxyTo origins (defaults to 15000)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyConnectTimeout";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"millis"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyIdleTimeout = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A timeout must be an integer");
+            return false;
+          }
+          return options.proxyIdleTimeout >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the time in milliseconds after which idle connections to the CodeServer and -proxyTo origins are "
+              + "closed (defaults to 30000)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyIdleTimeout";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"millis"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyTimeout = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A timeout must be an integer");
+            return false;
+          }
+          return options.proxyTimeout >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the time in milliseconds for the CodeServer and -proxyTo origins to completely respond, "
+              + "0 for no timeout (defaults to 60000)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyTimeout";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"millis"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyBufferSize = Math.multiplyExact(Integer.parseInt(value), 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A buffer size must be an integer, less than 2097152");
+            return false;
+          }
+          return options.proxyBufferSize >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the size in kilobytes of the buffer for the responses of the CodeServer and -proxyTo origins "
+              + "(defaults to 16)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyBufferSize";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"kilobytes"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyBreakerFailures = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of failures must be an integer");
+            return false;
+          }
+          return options.proxyBreakerFailures >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the number of consecutive failures after which requests to an origin are rejected with a 503, "
+              + "0 to disable circuit breaking (defaults to 5)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyBreakerFailures";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.proxyBreakerDelay = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A delay must be an integer");
+            return false;
+          }
+          return options.proxyBreakerDelay >= 1;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the time in seconds during which requests to an origin are rejected, before a request is let "
+              + "through to probe it (defaults to 10)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-proxyBreakerDelay";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"seconds"};
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "inProcessCodeServer";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.inProcessCodeServer;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Serves the modules' compiler output directly from the CodeServer's output directory rather than proxying to it over HTTP";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.inProcessCodeServer = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "reloadOnCompile";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.reloadOnCompile;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Reloads pages when the CodeServer produced new output for a compile they didn't request themselves";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.reloadOnCompile = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "preloadHints";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.preloadHints;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Injects hints into HTML pages for browsers to preload the modules and connect to the CodeServer early";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.preloadHints = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "eagerRecompile";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.eagerRecompile;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Recompiles modules in the background as soon as their sources change";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.eagerRecompile = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "forkCodeServer";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.forkCodeServer;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Runs the code server in a child JVM, restarted if it crashes";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.forkCodeServer = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "forkPerModule";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.forkPerModule;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Runs one code server per module, each in its own child JVM (implies -forkCodeServer)";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.forkPerModule = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          options.codeServerJvmArgs.add(value);
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Adds a JVM argument to forked code servers, e.g. \"-Xmx2g\" (can be repeated)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-codeServerJvmArg";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"arg"};
+        }
+      });
+      registerHandler(new ArgHandlerFlag() {
+        @Override
+        public String getLabel() {
+          return "precompile";
+        }
+
+        @Override
+        public boolean getDefaultValue() {
+          return options.precompile;
+        }
+
+        @Override
+        public String getPurposeSnippet() {
+          return "Compiles all modules in the background as soon as the code server has started";
+        }
+
+        @Override
+        public boolean setFlag(boolean value) {
+          options.precompile = value;
+          return true;
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.precompileWorkers = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A number of workers must be an integer");
+            return false;
+          }
+          return options.precompileWorkers > 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum number of modules being precompiled concurrently (defaults to the number of CPUs)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-precompileWorkers";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"count"};
+        }
+      });
+      registerHandler(new ArgHandlerDir() {
+        @Override
+        public void setDir(File dir) {
+          options.baseDir = dir;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the directory to serve (as static files only)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-baseDir";
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String s) {
+          try {
+            return addRoute(options, PrefixRoute.parse(s));
+          } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+          }
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Serves a path prefix from a directory, or proxies it to a comma-separated list of origins "
+              + "(can be repeated; the longest matching prefix wins)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-route";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "/prefix=dir|origin[,origin...]" };
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String s) {
+          try {
+            for (PrefixRoute route : PrefixRoute.parseFile(new File(s))) {
+              if (!addRoute(options, route)) {
+                return false;
+              }
+            }
+            return true;
+          } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+          }
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Reads -route entries from a file, one per line";
+        }
+
+        @Override
+        public String getTag() {
+          return "-routes";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "file" };
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.staticCacheSize = Math.multiplyExact(Long.parseLong(value), 1024 * 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A cache size must be an integer");
+            return false;
+          }
+          return options.staticCacheSize >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum size in megabytes of the in-memory cache of -baseDir files, 0 to disable (defaults to 64)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-staticCacheSize";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"megabytes"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.staticStreamThreshold = Math.multiplyExact(Long.parseLong(value), 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A threshold must be an integer");
+            return false;
+          }
+          return options.staticStreamThreshold >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the size in kilobytes from which -baseDir files are streamed through direct buffers rather than cached (defaults to 1024)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-staticStreamThreshold";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"kilobytes"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.compressMinSize = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A size must be an integer");
+            return false;
+          }
+          return options.compressMinSize >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the minimum size in bytes for a response to be compressed (defaults to 256)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-compressMinSize";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"bytes"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          options.compressExcludedMimeTypes.clear();
+          for (String type : value.split(",")) {
+            if (!type.trim().isEmpty()) {
+              options.compressExcludedMimeTypes.add(type.trim().toLowerCase());
+            }
+          }
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the comma-separated MIME types (possibly ending with /*) that are never compressed "
+              + "(defaults to images, audio, video, archives, and WOFF fonts)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-compressExcludedTypes";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"types"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.compressCacheSize = Math.multiplyExact(Long.parseLong(value), 1024 * 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A cache size must be an integer");
+            return false;
+          }
+          return options.compressCacheSize >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the maximum size in megabytes of the cache of compressed responses (defaults to 16)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-compressCacheSize";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"megabytes"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String s) {
+          options.contextPath = s;
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the prefix to prepend to URLs when serving -baseDir.";
+        }
+
+        @Override
+        public String getTag() {
+          return "-contextPath";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"path"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String s) {
+          if (s.startsWith("/")) {
+            s = s.substring(1);
+          }
+          if (s.endsWith("/")) {
+            s = s.substring(0, s.length() - 1);
+          }
+          options.modulePathPrefix = s;
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "The path inside -contextPath where modules are served.";
+        }
+
+        @Override
+        public String getTag() {
+          return "-modulePathPrefix";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"prefix"};
+        }
+      });
+      registerHandler(new ArgHandlerFile() {
+        @Override
+        public void setFile(File file) {
+          options.accessLog = file;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Logs every request to a file, appending to it if it exists";
+        }
+
+        @Override
+        public String getTag() {
+          return "-accessLog";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[] { "file" };
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            AccessLog.parseFormat(value);
+          } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+          }
+          options.accessLogFormat = value;
+          return true;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the format of -accessLog entries, with {time}, {remote}, {method}, {uri}, {protocol}, "
+              + "{status}, {bytes}, {route}, {duration}, {ttfb} and {upstream} placeholders";
+        }
+
+        @Override
+        public String getTag() {
+          return "-accessLogFormat";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"format"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.accessLogSlowThreshold = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            System.err.println("A threshold must be an integer");
+            return false;
+          }
+          return options.accessLogSlowThreshold >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Only logs requests taking at least that many milliseconds to -accessLog (defaults to 0, logging all requests)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-accessLogSlowThreshold";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"millis"};
+        }
+      });
+      registerHandler(new ArgHandlerString() {
+        @Override
+        public boolean setString(String value) {
+          try {
+            options.accessLogMaxSize = Math.multiplyExact(Long.parseLong(value), 1024 * 1024);
+          } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("A file size must be an integer");
+            return false;
+          }
+          return options.accessLogMaxSize >= 0;
+        }
+
+        @Override
+        public String getPurpose() {
+          return "Specifies the size in megabytes after which the -accessLog file is rolled over, "
+              + "keeping " + AccessLog.BACKUPS + " previous files, 0 to never roll it over (defaults to 64)";
+        }
+
+        @Override
+        public String getTag() {
+          return "-accessLogMaxSize";
+        }
+
+        @Override
+        public String[] getTagArgs() {
+          return new String[]{"megabytes"};
+        }
+      });
+      registerHandler(new ArgHandlerModuleName(new OptionModuleName() {
+        @Override
+        public List<String> getModuleNames() {
+          return Collections.unmodifiableList(options.moduleNames);
+        }
+
+        @Override
+        public void addModuleName(String moduleName) {
+          options.moduleNames.add(moduleName);
+        }
+
+        @Override
+        public void setModuleNames(List<String> moduleNames) {
+          options.moduleNames.clear();
+          options.moduleNames.addAll(moduleNames);
+        }
+      }));
+    }
+
+    @Override
+    protected String getName() {
+      return DevServer.class.getName();
+    }
+
+    private static boolean addRoute(Options options, PrefixRoute route) {
+      for (PrefixRoute existing : options.routes) {
+        if (existing.prefix.equals(route.prefix)) {
+          System.err.println("Duplicate route for " + route.prefix);
+          return false;
+        }
+      }
+      options.routes.add(route);
+      return true;
+    }
+  }
+
+  static class Options {
+    File workDir;
+    TreeLogger.Type logLevel;
+    boolean generateExports;
+    OptionMethodNameDisplayMode.Mode methodNameDisplayMode;
+    JsOutputOption style;
+    boolean failOnError;
+    String bindAddress;
+    String connectAddress;
+    int port;
+    int minThreads = 8;
+    int maxThreads = 200;
+    int threadQueueSize;
+    int threadIdleTimeout = 60_000;
+    int acceptors = -1;
+    int selectors = -1;
+    boolean virtualThreads;
+    int codeServerPort;
+    int codeServerStartTimeout = 120;
+    boolean inProcessCodeServer;
+    boolean forkCodeServer;
+    boolean forkPerModule;
+    final List<String> codeServerJvmArgs = new ArrayList<>();
+    boolean reloadOnCompile;
+    boolean preloadHints;
+    boolean eagerRecompile;
+    boolean precompile;
+    int precompileWorkers = Runtime.getRuntime().availableProcessors();
+    String proxyTo;
+    Upstreams.Strategy proxyBalancer = Upstreams.Strategy.LEAST_IN_FLIGHT;
+    String proxyHealthCheck;
     boolean preserveHost;
+    boolean proxyCoalesce;
+    int coalesceBufferSize = 8 * 1024 * 1024;
+    long proxyCacheSize;
+    File proxyRecord;
+    File proxyReplay;
+    final Set<String> proxyArchiveIgnoredParams = new TreeSet<>();
+    final List<String> proxyArchiveMatchedHeaders = new ArrayList<>(UpstreamArchive.DEFAULT_MATCHED_HEADERS);
+    int proxyMaxConnections = 256;
+    int proxyMaxQueued = 1024;
+    int proxyConnectTimeout = 15_000;
+    int proxyIdleTimeout = 30_000;
+    int proxyTimeout = 60_000;
+    int proxyBufferSize = 16 * 1024;
+    int proxyBreakerFailures = 5;
+    int proxyBreakerDelay = 10;
     File baseDir;
+    final List<PrefixRoute> routes = new ArrayList<>();
+    long staticCacheSize = 64 * 1024 * 1024;
+    long staticStreamThreshold = 1024 * 1024;
+    int compressMinSize = 256;
+    final Set<String> compressExcludedMimeTypes = new TreeSet<>(CompressedResponseCache.DEFAULT_EXCLUDED_MIME_TYPES);
+    long compressCacheSize = 16 * 1024 * 1024;
     String contextPath;
     String modulePathPrefix;
+    File accessLog;
+    String accessLogFormat = AccessLog.DEFAULT_FORMAT;
+    int accessLogSlowThreshold;
+    long accessLogMaxSize = 64 * 1024 * 1024;
     final List<String> moduleNames = new ArrayList<>();
     final WhitelistRegexFilter jsInteropExportFilter = new WhitelistRegexFilter();
   }
@@ -373,32 +1635,176 @@ public class DevServer {
       System.err.println("At least one module must be supplied");
       System.exit(1);
     }
+    if (options.minThreads > options.maxThreads) {
+      System.err.println("-minThreads cannot be greater than -maxThreads");
+      System.exit(1);
+    }
     if (options.baseDir != null && options.proxyTo != null) {
       System.err.println("-baseDir and -proxyTo are mutually exclusive");
       System.exit(1);
-    } else if (options.baseDir == null && options.proxyTo == null) {
-      System.err.println("One of -baseDir or -proxyTo must be specified");
+    } else if (options.baseDir == null && options.proxyTo == null && options.routes.isEmpty()) {
+      System.err.println("One of -baseDir, -proxyTo, or -route must be specified");
+      System.exit(1);
+    }
+    if (options.baseDir != null || options.proxyTo != null) {
+      for (PrefixRoute route : options.routes) {
+        if (route.prefix.equals("/")) {
+          System.err.println("A route for / cannot be used along with -baseDir or -proxyTo");
+          System.exit(1);
+        }
+      }
+    }
+    boolean proxies = options.proxyTo != null || options.routes.stream().anyMatch(route -> route.origins != null);
+    if (!proxies && options.preserveHost) {
+      System.err.println("-preserveHost is only meaningful along with -proxyTo or a proxy -route; ignoring.");
+    }
+    if (!proxies && options.proxyCoalesce) {
+      System.err.println("-proxyCoalesce is only meaningful along with -proxyTo or a proxy -route; ignoring.");
+    }
+    if (!proxies && options.proxyCacheSize > 0) {
+      System.err.println("-proxyCacheSize is only meaningful along with -proxyTo or a proxy -route; ignoring.");
+    }
+    if (options.proxyRecord != null && options.proxyReplay != null) {
+      System.err.println("-proxyRecord and -proxyReplay are mutually exclusive");
       System.exit(1);
     }
-    if (options.proxyTo == null && options.preserveHost) {
-      System.err.println("-preserveHost is only meaningful along with -proxyTo; ignoring.");
+    if (!proxies && (options.proxyRecord != null || options.proxyReplay != null)) {
+      System.err.println("-proxyRecord and -proxyReplay are only meaningful along with -proxyTo or a proxy -route; ignoring.");
+    }
+    if (!proxies && options.proxyHealthCheck != null) {
+      System.err.println("-proxyHealthCheck is only meaningful along with -proxyTo or a proxy -route; ignoring.");
     }
-    if (options.baseDir == null && options.contextPath != null) {
-      System.err.println("-contextPath is only meaningful along with -baseDir; ignoring.");
+    if (options.baseDir == null && options.routes.isEmpty() && options.contextPath != null) {
+      System.err.println("-contextPath is only meaningful along with -baseDir or -route; ignoring.");
       options.contextPath = null;
     }
-    WebServer codeServer = startCodeServer(options);
-    options.codeServerPort = codeServer.getPort(); // account for "auto"
-    start(options);
+    if (options.forkPerModule) {
+      options.forkCodeServer = true;
+    }
+    if (options.forkCodeServer && options.inProcessCodeServer) {
+      System.err.println("-inProcessCodeServer cannot be used along with -forkCodeServer or -forkPerModule");
+      System.exit(1);
+    }
+    if (!options.forkCodeServer && !options.codeServerJvmArgs.isEmpty()) {
+      System.err.println("-codeServerJvmArg is only meaningful along with -forkCodeServer or -forkPerModule; ignoring.");
+    }
+    StartupTimings timings = new StartupTimings();
+    CompileEvents compileEvents = new CompileEvents();
+    if (options.forkCodeServer) {
+      forkCodeServers(options, compileEvents, timings);
+      return;
+    }
+    // The web server is started right away, holding module requests until the code server is ready.
+    CompletableFuture<WebServer> codeServer = new CompletableFuture<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.execute(() -> {
+        try {
+          codeServer.complete(timings.time("code server", () -> startCodeServer(options, compileEvents)));
+        } catch (Throwable t) {
+          codeServer.completeExceptionally(t);
+        }
+      });
+      // account for "auto"
+      Server server = start(options, codeServer.thenApply(WebServer::getPort),
+          options.inProcessCodeServer ? moduleName -> {
+            WebServer webServer = codeServer.getNow(null);
+            return webServer == null ? null : webServer.getCurrentWarDir(moduleName);
+          } : null,
+          compileEvents, timings);
+      try {
+        await(codeServer);
+      } catch (Exception e) {
+        server.stop();
+        throw e;
+      }
+    } finally {
+      executor.shutdown();
+    }
+    timings.log(new PrintWriterTreeLogger());
+  }
+
+  /**
+   * Starts the web server and the CodeServer, or one CodeServer per module, in child JVMs, supervised
+   * by the web server.
+   */
+  private static void forkCodeServers(Options options, CompileEvents compileEvents, StartupTimings timings)
+      throws Exception {
+    TreeLogger logger = new PrintWriterTreeLogger();
+    List<CodeServerProcess> processes = new ArrayList<>();
+    Map<String, CodeServerProcess> processByModule = new HashMap<>();
+    if (options.forkPerModule) {
+      for (int i = 0; i < options.moduleNames.size(); i++) {
+        String moduleName = options.moduleNames.get(i);
+        CodeServerProcess process = new CodeServerProcess(moduleName, options.codeServerJvmArgs,
+            options.codeServerPort == 0 ? 0 : options.codeServerPort + i,
+            codeServerArgs(options, Collections.singletonList(moduleName)), compileEvents, logger);
+        processes.add(process);
+        processByModule.put(moduleName, process);
+      }
+    } else {
+      CodeServerProcess process = new CodeServerProcess(String.join(", ", options.moduleNames),
+          options.codeServerJvmArgs, options.codeServerPort, codeServerArgs(options, options.moduleNames),
+          compileEvents, logger);
+      processes.add(process);
+      for (String moduleName : options.moduleNames) {
+        processByModule.put(moduleName, process);
+      }
+    }
+    long start = System.nanoTime();
+    for (CodeServerProcess process : processes) {
+      String phase = options.forkPerModule ? "code server " + process.getName() : "code server";
+      // Never completed exceptionally.
+      Object unused = process.getPort().handle((port, failure) -> {
+        timings.record(phase, start);
+        return null;
+      });
+      process.start();
+    }
+    Server server;
+    try {
+      server = start(options, moduleName -> processByModule.get(moduleName).getPort(), null, compileEvents, timings);
+    } catch (Exception e) {
+      for (CodeServerProcess process : processes) {
+        process.stop();
+      }
+      throw e;
+    }
+    for (CodeServerProcess process : processes) {
+      // Stopped along with the web server.
+      server.addBean(process, true);
+    }
+    try {
+      for (CodeServerProcess process : processes) {
+        await(process.getPort());
+      }
+    } catch (Exception e) {
+      server.stop();
+      throw e;
+    }
+    timings.log(logger);
   }
 
-  private static WebServer startCodeServer(Options options) throws Exception {
+  private static WebServer startCodeServer(Options options, JobChangeListener jobChangeListener) throws Exception {
     ArrayList<String> args = new ArrayList<>();
-    args.add("-noprecompile");
     if (options.codeServerPort >= 0) {
       args.add("-port");
       args.add(options.codeServerPort == 0 ? "auto" : String.valueOf(options.codeServerPort));
     }
+    args.addAll(codeServerArgs(options, options.moduleNames));
+
+    com.google.gwt.dev.codeserver.Options codeServerOptions = new com.google.gwt.dev.codeserver.Options();
+    if (!codeServerOptions.parseArgs(args.toArray(new String[args.size()]))) {
+      System.exit(1);
+    }
+    codeServerOptions.setJobChangeListener(jobChangeListener);
+    return CodeServer.start(codeServerOptions);
+  }
+
+  /** Returns the arguments to a CodeServer serving the given modules, except for its {@code -port}. */
+  private static List<String> codeServerArgs(Options options, List<String> moduleNames) {
+    ArrayList<String> args = new ArrayList<>();
+    args.add("-noprecompile");
     if (options.bindAddress != null) {
       args.add("-bindAddress");
       args.add(options.bindAddress);
@@ -425,66 +1831,250 @@ public class DevServer {
     if (options.failOnError) {
       args.add("-failOnError");
     }
-    args.addAll(options.moduleNames);
+    args.addAll(moduleNames);
+    return args;
+  }
 
-    com.google.gwt.dev.codeserver.Options codeServerOptions = new com.google.gwt.dev.codeserver.Options();
-    if (!codeServerOptions.parseArgs(args.toArray(new String[args.size()]))) {
-      System.exit(1);
-    }
-    return CodeServer.start(codeServerOptions);
+  static Server start(Options options) throws Exception {
+    return start(options, CompletableFuture.completedFuture(options.codeServerPort), null, new CompileEvents(),
+        new StartupTimings());
+  }
+
+  /**
+   * Starts the web server, resolving module names and binding the connector concurrently,
+   * without waiting for the {@code codeServerPort}: module requests are held until it's known
+   * (for at most {@link Options#codeServerStartTimeout} seconds.)
+   *
+   * <p>When {@code warDirs} is non-null, module requests are served from the in-process CodeServer's
+   * output directories, falling back to proxying to the CodeServer.
+   *
+   * <p>{@code compileEvents} should be the CodeServer's {@link JobChangeListener}.
+   */
+  static Server start(Options options, CompletableFuture<Integer> codeServerPort,
+      Function<String, File> warDirs, CompileEvents compileEvents, StartupTimings timings) throws Exception {
+    return start(options, moduleName -> codeServerPort, warDirs, compileEvents, timings);
   }
 
-  static Server start(final Options options) throws Exception {
+  /**
+   * Starts the web server, like {@link #start(Options, CompletableFuture, Function, CompileEvents, StartupTimings)},
+   * with each module possibly served by a different CodeServer: {@code codeServerPorts} is called with each module name.
+   */
+  static Server start(Options options, Function<String, CompletableFuture<Integer>> codeServerPorts,
+      Function<String, File> warDirs, CompileEvents compileEvents, StartupTimings timings) throws Exception {
     TreeLogger logger = new PrintWriterTreeLogger();
 
-    Server server = new Server();
-    ServerConnector connector = new ServerConnector(server);
+    ExecutorService virtualThreads = null;
+    if (options.virtualThreads) {
+      virtualThreads = ServerThreadPool.newVirtualThreadExecutor();
+      if (virtualThreads == null) {
+        logger.log(TreeLogger.WARN, "-virtualThreads requires Java 21 or later; ignoring.");
+      }
+    }
+    ServerThreadPool threadPool = new ServerThreadPool(options.minThreads, options.maxThreads,
+        options.threadIdleTimeout, options.threadQueueSize, virtualThreads);
+    Server server = new Server(threadPool);
+    ServerConnector connector = options.accessLog == null
+        ? new ServerConnector(server, options.acceptors, options.selectors)
+        // Records when responses are committed, for the time to first byte.
+        : new ServerConnector(server, options.acceptors, options.selectors,
+            new TimingHttpConnectionFactory(new HttpConfiguration()));
     connector.setHost(options.bindAddress);
     connector.setPort(options.port);
     connector.setReuseAddress(false);
     connector.setSoLingerTime(0);
     server.addConnector(connector);
 
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(options.moduleNames.size() + 1, Runtime.getRuntime().availableProcessors() + 1));
+    List<String> outputModuleNames = new ArrayList<>(options.moduleNames.size());
+    try {
+      Future<?> bind = executor.submit(() -> timings.time("bind connector", () -> {
+        connector.open();
+        return null;
+      }));
+      List<Future<String>> moduleNameFutures = new ArrayList<>(options.moduleNames.size());
+      for (String moduleName : options.moduleNames) {
+        moduleNameFutures.add(executor.submit(() ->
+            timings.time("module " + moduleName, () -> resolveOutputModuleName(logger, moduleName))));
+      }
+      for (Future<String> moduleNameFuture : moduleNameFutures) {
+        outputModuleNames.add(await(moduleNameFuture));
+      }
+      await(bind);
+    } catch (Exception e) {
+      connector.close();
+      throw e;
+    } finally {
+      executor.shutdown();
+    }
+
     ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.NO_SECURITY | ServletContextHandler.NO_SESSIONS);
     handler.setContextPath(options.contextPath == null ? "/" : "/" + options.contextPath);
+    handler.getMimeTypes().addMimeMapping("woff", "font/woff");
+    handler.getMimeTypes().addMimeMapping("woff2", "font/woff2");
+    handler.getMimeTypes().addMimeMapping("webp", "image/webp");
+
+    CompressedResponseCache compressedResponseCache = new CompressedResponseCache(
+        options.compressMinSize, options.compressExcludedMimeTypes, options.compressCacheSize);
+
+    UpstreamCache upstreamCache = options.proxyCacheSize > 0 ? new UpstreamCache(options.proxyCacheSize) : null;
+    UpstreamArchive upstreamArchive = null;
+    if (options.proxyRecord != null || options.proxyReplay != null) {
+      upstreamArchive = new UpstreamArchive(
+          (options.proxyReplay != null ? options.proxyReplay : options.proxyRecord).toPath(),
+          options.proxyReplay != null ? UpstreamArchive.Mode.REPLAY : UpstreamArchive.Mode.RECORD,
+          options.proxyArchiveIgnoredParams, options.proxyArchiveMatchedHeaders, logger);
+      // Started before the servlets.
+      server.addBean(upstreamArchive);
+    }
+
+    UpstreamClients upstreamClients = new UpstreamClients(options.proxyMaxConnections, options.proxyMaxQueued,
+        options.proxyConnectTimeout, options.proxyIdleTimeout, options.proxyTimeout, options.proxyBufferSize,
+        options.proxyBreakerFailures, TimeUnit.SECONDS.toMillis(options.proxyBreakerDelay), logger);
+    WebSocketTunnel webSocketTunnel = null;
+    if (options.proxyTo != null || options.routes.stream().anyMatch(route -> route.origins != null)) {
+      webSocketTunnel = new WebSocketTunnel(threadPool, connector.getScheduler(), connector.getByteBufferPool(),
+          options.proxyConnectTimeout, options.proxyBufferSize);
+      server.addBean(webSocketTunnel);
+    }
+    AccessLog accessLog = null;
+    if (options.accessLog != null) {
+      accessLog = new AccessLog(options.accessLog.toPath(), options.accessLogFormat,
+          TimeUnit.MILLISECONDS.toNanos(options.accessLogSlowThreshold), options.accessLogMaxSize, logger);
+      server.addBean(accessLog);
+    }
+    Metrics metrics = new Metrics(threadPool, compressedResponseCache, upstreamCache, upstreamClients, accessLog);
 
     URL url = Resources.getResource(Recompiler.class, "stub.nocache.js");
-    final String template = Resources.toString(url, Charsets.UTF_8);
-    for (String moduleName : options.moduleNames) {
-      final String outputModuleName = ModuleDefLoader.loadFromClassPath(logger, moduleName).getName();
-      final String script = template
-          .replace("__MODULE_NAME__", outputModuleName)
-          .replace("__SUPERDEV_PORT__", String.valueOf(options.codeServerPort));
-      handler.addServlet(new ServletHolder(new HttpServlet() {
-        @Override
-        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-          resp.setContentType("application/javascript; charset=UTF-8");
-          resp.setHeader("Cache-Control", "no-cache");
-          resp.getWriter().write(script);
-        }
-      }), "/" + (options.modulePathPrefix == null ? "" : options.modulePathPrefix + "/") + outputModuleName + "/" + outputModuleName + ".nocache.js");
-      final ServletHolder proxyToCodeServer = new ServletHolder(new AsyncProxyServlet.Transparent());
-      proxyToCodeServer.setInitParameter("proxyTo", "http://" + options.connectAddress + ":" + options.codeServerPort);
+    String template = Resources.toString(url, Charsets.UTF_8);
+    if (options.reloadOnCompile) {
+      template += Resources.toString(Resources.getResource(DevServer.class, "reload_on_compile.js"), Charsets.UTF_8)
+          .replace("__EVENTS_URL__", RESERVED_CONTEXT_PATH + "/events/__MODULE_NAME__");
+    }
+    SingleFlight codeServerSingleFlight = options.coalesceBufferSize > 0
+        ? new SingleFlight(SingleFlight.CODE_SERVER_VARY_HEADERS, options.coalesceBufferSize)
+        : null;
+    Map<String, CompletableFuture<String>> codeServerOrigins = new LinkedHashMap<>();
+    for (int i = 0; i < outputModuleNames.size(); i++) {
+      String outputModuleName = outputModuleNames.get(i);
+      CompletableFuture<Integer> codeServerPort = codeServerPorts.apply(options.moduleNames.get(i));
+      CompletableFuture<String> codeServerOrigin =
+          codeServerPort.thenApply(port -> "http://" + options.connectAddress + ":" + port);
+      codeServerOrigins.put(outputModuleName, codeServerOrigin);
+      Supplier<String> currentCodeServerOrigin = () -> codeServerOrigin.getNow(null);
+
+      final String stubTemplate = template.replace("__MODULE_NAME__", outputModuleName);
+      StubServlet stubServlet = new StubServlet(
+          codeServerPort.thenApply(port -> stubTemplate.replace("__SUPERDEV_PORT__", String.valueOf(port))));
+      ServletHolder stub = new ServletHolder(stubServlet);
+      addServlet(handler, stub,
+          "/" + (options.modulePathPrefix == null ? "" : options.modulePathPrefix + "/") + outputModuleName + "/" + outputModuleName + ".nocache.js",
+          metrics.route("stub", outputModuleName, false));
+      Metrics.Route codeServerRoute = metrics.route("codeserver", outputModuleName, true);
+      UpstreamProxyServlet.Options codeServerProxyOptions = new UpstreamProxyServlet.Options()
+          .origin(currentCodeServerOrigin)
+          .singleFlight(codeServerSingleFlight)
+          .clients(upstreamClients);
+      final ServletHolder proxyToCodeServer = new ServletHolder(warDirs == null
+          ? new UpstreamProxyServlet(codeServerRoute, codeServerProxyOptions)
+          : new CodeServerBridgeServlet(codeServerRoute, outputModuleName, warDirs, compressedResponseCache,
+              codeServerProxyOptions));
+      // Only a placeholder, the port isn't known yet.
+      proxyToCodeServer.setInitParameter("proxyTo", "http://" + options.connectAddress);
       if (options.modulePathPrefix != null) {
         proxyToCodeServer.setInitParameter("prefix", "/" + options.modulePathPrefix);
       }
-      handler.addServlet(proxyToCodeServer, "/" + (options.modulePathPrefix == null ? "" : options.modulePathPrefix + "/") + outputModuleName + "/*");
+      addServlet(handler, proxyToCodeServer,
+          "/" + (options.modulePathPrefix == null ? "" : options.modulePathPrefix + "/") + outputModuleName + "/*",
+          codeServerRoute);
+
+      FilterHolder codeServerGate = new FilterHolder(new CodeServerGateFilter(
+          CompletableFuture.allOf(codeServerOrigin, stubServlet.ready()), options.codeServerStartTimeout));
+      codeServerGate.setName("code server gate " + outputModuleName);
+      FilterMapping codeServerGateMapping = new FilterMapping();
+      codeServerGateMapping.setFilterName(codeServerGate.getName());
+      codeServerGateMapping.setServletNames(new String[] { stub.getName(), proxyToCodeServer.getName() });
+      codeServerGateMapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+      handler.getServletHandler().addFilter(codeServerGate, codeServerGateMapping);
+
+      if (options.eagerRecompile) {
+        List<Path> dirs = resolveModuleDirs(logger, options.moduleNames.get(i));
+        if (dirs.isEmpty()) {
+          logger.log(TreeLogger.WARN, "No source directory to watch for " + options.moduleNames.get(i));
+        } else {
+          server.addBean(new EagerRecompiler(outputModuleName, dirs, currentCodeServerOrigin, compileEvents, logger));
+        }
+      }
+    }
+    if (options.precompile) {
+      server.addBean(new Precompiler(codeServerOrigins, options.precompileWorkers, logger));
     }
 
+    SingleFlight upstreamSingleFlight = options.proxyCoalesce && options.coalesceBufferSize > 0
+        ? new SingleFlight(SingleFlight.UPSTREAM_VARY_HEADERS, options.coalesceBufferSize)
+        : null;
     if (options.proxyTo != null) {
-      ServletHolder proxyTo = new ServletHolder(new AsyncProxyServlet.Transparent());
-      proxyTo.setInitParameter("proxyTo", options.proxyTo);
-      proxyTo.setInitParameter("preserveHost", Boolean.toString(options.preserveHost));
-      handler.addServlet(proxyTo, "/*");
+      addProxyServlet(handler, Upstreams.parseOrigins(options.proxyTo), "/*",
+          metrics.route("upstream", null, true), upstreamSingleFlight, upstreamCache, upstreamArchive,
+          upstreamClients, webSocketTunnel, options, logger);
     } else if (options.baseDir != null) {
       handler.setResourceBase(options.baseDir.getAbsolutePath());
-      handler.addServlet(new ServletHolder(new DefaultServlet()), "/*");
+      addStaticServlet(server, handler, options.baseDir, "/*", metrics.route("static", null, false),
+          metrics, options, compressedResponseCache, logger);
+    }
+    // The servlet handler matches path specs by longest prefix, looking them up in a trie built at startup.
+    List<String> modulePaths = new ArrayList<>(outputModuleNames.size());
+    for (String outputModuleName : outputModuleNames) {
+      modulePaths.add("/" + (options.modulePathPrefix == null ? "" : options.modulePathPrefix + "/") + outputModuleName);
+    }
+    for (PrefixRoute route : options.routes) {
+      if (modulePaths.stream().anyMatch(path -> route.prefix.equals(path) || route.prefix.startsWith(path + "/"))) {
+        logger.log(TreeLogger.WARN, "Ignoring route " + route + ", modules take precedence");
+        continue;
+      }
+      if (route.origins != null) {
+        addProxyServlet(handler, route.origins, route.getPathSpec(),
+            metrics.prefixRoute("upstream", route.prefix, true), upstreamSingleFlight, upstreamCache,
+            upstreamArchive, upstreamClients, webSocketTunnel, options, logger);
+      } else {
+        addStaticServlet(server, handler, route.dir, route.getPathSpec(),
+            metrics.prefixRoute("static", route.prefix, false), metrics, options, compressedResponseCache, logger);
+      }
+    }
+
+    // Only compresses what hasn't been compressed already by our servlets, i.e. proxied responses.
+    FilterHolder gzipFilter = handler.addFilter(AsyncGzipFilter.class, "/*", EnumSet.allOf(DispatcherType.class));
+    gzipFilter.setInitParameter("minGzipSize", String.valueOf(compressedResponseCache.getMinSize()));
+    gzipFilter.setInitParameter("excludedMimeTypes", compressedResponseCache.getExcludedMimeTypesInitParameter());
+    if (options.preloadHints) {
+      // Mapped after the gzip filter, so it runs inside it.
+      List<String> stubPaths = new ArrayList<>(outputModuleNames.size());
+      for (String modulePath : modulePaths) {
+        stubPaths.add((options.contextPath == null ? "" : "/" + options.contextPath)
+            + modulePath + modulePath.substring(modulePath.lastIndexOf('/')) + ".nocache.js");
+      }
+      handler.addFilter(new FilterHolder(new PreloadHintsFilter(stubPaths, codeServerOrigins.values())), "/*",
+          EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
     }
 
-    handler.addFilter(AsyncGzipFilter.class, "/*", EnumSet.allOf(DispatcherType.class));
-    server.setHandler(handler);
+    // Reserved path, outside the -contextPath and taking precedence over -proxyTo.
+    ServletContextHandler devServerHandler = new ServletContextHandler(ServletContextHandler.NO_SECURITY | ServletContextHandler.NO_SESSIONS);
+    devServerHandler.setContextPath(RESERVED_CONTEXT_PATH);
+    devServerHandler.addServlet(new ServletHolder(new MetricsServlet(metrics)), "/metrics");
+    ServletHolder compileEventsServlet = new ServletHolder(
+        new CompileEventsServlet(compileEvents, new HashSet<>(outputModuleNames)));
+    compileEventsServlet.setAsyncSupported(true);
+    devServerHandler.addServlet(compileEventsServlet, "/events/*");
+    server.addBean(compileEvents);
+
+    ContextHandlerCollection contexts = new ContextHandlerCollection();
+    contexts.setHandlers(new Handler[] { devServerHandler, handler });
+    server.setHandler(contexts);
     try {
-      server.start();
+      timings.time("start web server", () -> {
+        server.start();
+        return null;
+      });
     } catch (Exception e) {
       logger.log(TreeLogger.ERROR, "cannot start web server", e);
       throw new UnableToCompleteException();
@@ -492,4 +2082,230 @@ public class DevServer {
 
     return server;
   }
+
+  private static void addProxyServlet(ServletContextHandler handler, List<String> origins, String pathSpec,
+      Metrics.Route route, SingleFlight singleFlight, UpstreamCache cache, UpstreamArchive archive,
+      UpstreamClients clients, WebSocketTunnel webSocketTunnel, Options options, TreeLogger logger) {
+    Upstreams upstreams = new Upstreams(origins, options.proxyBalancer);
+    // Replaying must not contact the origins at all.
+    String healthCheckPath = archive != null && archive.isReplaying() ? null : options.proxyHealthCheck;
+    UpstreamProxyServlet.Options proxyOptions = new UpstreamProxyServlet.Options()
+        .singleFlight(singleFlight)
+        .cache(cache)
+        .archive(archive)
+        .clients(clients)
+        .tunnel(webSocketTunnel);
+    ServletHolder proxyTo = new ServletHolder(
+        new BalancingProxyServlet(route, upstreams, healthCheckPath, proxyOptions, logger));
+    proxyTo.setInitParameter("proxyTo", origins.get(0));
+    proxyTo.setInitParameter("preserveHost", Boolean.toString(options.preserveHost));
+    addServlet(handler, proxyTo, pathSpec, route);
+  }
+
+  /**
+   * Adds a servlet serving files out of {@code dir}; unless mapped to {@code /*}, the servlet path
+   * (i.e. the route prefix) isn't part of the file path.
+   */
+  private static void addStaticServlet(Server server, ServletContextHandler handler, File dir, String pathSpec,
+      Metrics.Route route, Metrics metrics, Options options, CompressedResponseCache compressedResponseCache,
+      TreeLogger logger) {
+    ServletHolder holder;
+    if (options.staticCacheSize > 0) {
+      // Files from the threshold are streamed rather than cached.
+      StaticFileCache cache = new StaticFileCache(dir.toPath(), options.staticCacheSize,
+          Math.min(options.staticCacheSize / 8, options.staticStreamThreshold - 1), logger);
+      server.addBean(cache);
+      metrics.staticFileCache(route, cache);
+      holder = new ServletHolder(
+          new CachingDefaultServlet(dir.toPath(), options.staticStreamThreshold, cache, compressedResponseCache));
+    } else {
+      holder = new ServletHolder(new StreamingFileServlet(dir.toPath(), options.staticStreamThreshold));
+      holder.setInitParameter("gzip", "true");
+    }
+    holder.setInitParameter("resourceBase", dir.getAbsolutePath());
+    holder.setInitParameter("pathInfoOnly", "true");
+    addServlet(handler, holder, pathSpec, route);
+  }
+
+  /** Adds a servlet whose requests are recorded into the given route. */
+  private static void addServlet(ServletContextHandler handler, ServletHolder holder, String pathSpec,
+      Metrics.Route route) {
+    holder.setName(pathSpec);
+    handler.addServlet(holder, pathSpec);
+    FilterHolder filter = new FilterHolder(new MetricsFilter(route));
+    filter.setName("metrics " + pathSpec);
+    FilterMapping mapping = new FilterMapping();
+    mapping.setFilterName(filter.getName());
+    mapping.setServletName(holder.getName());
+    mapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST));
+    handler.getServletHandler().addFilter(filter, mapping);
+  }
+
+  /**
+   * Reads the name a module is served under (its {@code rename-to}, or its name) straight from its
+   * {@code .gwt.xml}, without going through {@link ModuleDefLoader} whose caches aren't thread-safe.
+   *
+   * <p>This is equivalent as the output module name is only ever set by the top-level module.
+   */
+  static String resolveOutputModuleName(TreeLogger logger, String moduleName) throws UnableToCompleteException {
+    if (!ModuleDef.isValidModuleName(moduleName)) {
+      logger.log(TreeLogger.ERROR, "Invalid module name: '" + moduleName + "'");
+      throw new UnableToCompleteException();
+    }
+    String resName = moduleName.replace('.', '/') + ModuleDefLoader.GWT_MODULE_XML_SUFFIX;
+    URL moduleURL = Thread.currentThread().getContextClassLoader().getResource(resName);
+    if (moduleURL == null) {
+      logger.log(TreeLogger.ERROR, ModuleDefLoader.formatUnableToFindModuleMessage(resName));
+      throw new UnableToCompleteException();
+    }
+    final String[] renameTo = new String[1];
+    parseModule(logger, moduleURL, new DefaultHandler() {
+      @Override
+      public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        renameTo[0] = attributes.getValue("rename-to");
+        // Only the root element is of interest.
+        throw new StopParsingException();
+      }
+    });
+    return renameTo[0] == null || renameTo[0].isEmpty() ? moduleName : renameTo[0];
+  }
+
+  private static void parseModule(TreeLogger logger, URL moduleURL, DefaultHandler handler)
+      throws UnableToCompleteException {
+    try (InputStream in = moduleURL.openStream()) {
+      SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setNamespaceAware(false);
+      factory.setValidating(false);
+      SAXParser parser = factory.newSAXParser();
+      parser.getXMLReader().setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      parser.parse(in, handler);
+    } catch (StopParsingException expected) {
+      // fall through
+    } catch (IOException | ParserConfigurationException | SAXException e) {
+      logger.log(TreeLogger.ERROR, "Unexpected error while processing XML", e);
+      throw new UnableToCompleteException();
+    }
+  }
+
+  /**
+   * Returns the directories of the source, super-source and public paths of the module and the modules it inherits,
+   * read straight from their {@code .gwt.xml} (see {@link #resolveOutputModuleName}.)
+   *
+   * <p>Modules and paths in JARs are ignored, and so are directories directly holding compiled classes, which are
+   * build output. Modules in the default package are ignored too, as their paths would span the whole classpath.
+   * Skipped directories and modules are logged. The paths' include and exclude patterns aren't applied: they'd only
+   * narrow down which changes trigger a compile.
+   */
+  static List<Path> resolveModuleDirs(TreeLogger logger, String moduleName) throws UnableToCompleteException {
+    TreeSet<Path> dirs = new TreeSet<>();
+    collectModuleDirs(logger, moduleName, new HashSet<>(), dirs);
+    // Directories are watched recursively.
+    List<Path> roots = new ArrayList<>();
+    for (Path dir : dirs) {
+      if (roots.isEmpty() || !dir.startsWith(roots.get(roots.size() - 1))) {
+        roots.add(dir);
+      }
+    }
+    return roots;
+  }
+
+  private static void collectModuleDirs(TreeLogger logger, String moduleName, Set<String> visited, Set<Path> dirs)
+      throws UnableToCompleteException {
+    if (!visited.add(moduleName)) {
+      return;
+    }
+    int lastDot = moduleName.lastIndexOf('.');
+    if (lastDot <= 0) {
+      logger.log(TreeLogger.INFO, "Not watching the sources of " + moduleName + ", it's in the default package");
+      return;
+    }
+    String packagePath = moduleName.substring(0, lastDot).replace('.', '/');
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    URL moduleURL = classLoader.getResource(moduleName.replace('.', '/') + ModuleDefLoader.GWT_MODULE_XML_SUFFIX);
+    if (moduleURL == null) {
+      // Missing modules are reported by the CodeServer.
+      return;
+    }
+    if (!"file".equals(moduleURL.getProtocol())) {
+      logger.log(TreeLogger.DEBUG, "Not watching the sources of " + moduleName + ", it's in " + moduleURL);
+      return;
+    }
+    List<String> inherits = new ArrayList<>();
+    List<String> sourcePaths = new ArrayList<>();
+    List<String> publicPaths = new ArrayList<>();
+    parseModule(logger, moduleURL, new DefaultHandler() {
+      @Override
+      public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        String value = attributes.getValue(qName.equals("inherits") ? "name" : "path");
+        if (value == null) {
+          return;
+        }
+        switch (qName) {
+          case "inherits":
+            inherits.add(value);
+            break;
+          case "source":
+          case "super-source":
+            sourcePaths.add(value);
+            break;
+          case "public":
+            publicPaths.add(value);
+            break;
+          default:
+            break;
+        }
+      }
+    });
+    // Same defaults as ModuleDefLoader.
+    if (sourcePaths.isEmpty()) {
+      sourcePaths.add("client");
+    }
+    if (publicPaths.isEmpty()) {
+      publicPaths.add("public");
+    }
+    List<String> paths = new ArrayList<>(sourcePaths);
+    paths.addAll(publicPaths);
+    for (String path : paths) {
+      String resourcePath = path.isEmpty() ? packagePath : packagePath + "/" + path;
+      try {
+        for (URL url : Collections.list(classLoader.getResources(resourcePath))) {
+          if (!"file".equals(url.getProtocol())) {
+            logger.log(TreeLogger.DEBUG, "Not watching " + url + " for " + moduleName + ", it's not a directory");
+            continue;
+          }
+          Path dir = Paths.get(url.toURI());
+          if (containsClasses(dir)) {
+            logger.log(TreeLogger.INFO, "Not watching " + dir + " for " + moduleName
+                + ", it contains compiled classes");
+          } else {
+            dirs.add(dir);
+          }
+        }
+      } catch (IOException | UncheckedIOException | URISyntaxException e) {
+        logger.log(TreeLogger.WARN, "Cannot resolve " + resourcePath + " for " + moduleName, e);
+      }
+    }
+    for (String inherited : inherits) {
+      collectModuleDirs(logger, inherited, visited, dirs);
+    }
+  }
+
+  /** Returns whether the directory itself (not its subdirectories) contains {@code .class} files. */
+  private static boolean containsClasses(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.anyMatch(file -> file.getFileName().toString().endsWith(".class"));
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    try {
+      return getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), Exception.class);
+      throw e;
+    }
+  }
+
+  private static class StopParsingException extends SAXException {
+  }
 }
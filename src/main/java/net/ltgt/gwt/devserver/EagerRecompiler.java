@@ -0,0 +1,165 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.thirdparty.guava.common.base.Charsets;
+import com.google.gwt.thirdparty.guava.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * Asks the CodeServer to recompile a module as soon as its sources change, rather than waiting for
+ * the browser to ask for it on reload.
+ *
+ * <p>Changes are debounced, so a burst of saves results in a single compile, and compiles never overlap:
+ * changes made during a compile result in another compile once it's done.
+ * The module is recompiled with the binding properties of its latest compile, so nothing happens
+ * until a browser loaded it at least once.
+ */
+class EagerRecompiler extends AbstractLifeCycle {
+  static final long DEBOUNCE_MILLIS = 300;
+
+  private final String outputModuleName;
+  private final List<Path> dirs;
+  private final Supplier<String> codeServerOrigin;
+  private final CompileEvents compileEvents;
+  private final TreeLogger logger;
+
+  private WatchService watchService;
+  private Thread watcher;
+  private ScheduledExecutorService executor;
+  // Guarded by this.
+  private ScheduledFuture<?> pending;
+
+  EagerRecompiler(String outputModuleName, List<Path> dirs, Supplier<String> codeServerOrigin, CompileEvents compileEvents,
+      TreeLogger logger) {
+    this.outputModuleName = outputModuleName;
+    this.dirs = dirs;
+    this.codeServerOrigin = codeServerOrigin;
+    this.compileEvents = compileEvents;
+    this.logger = logger;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "EagerRecompiler for " + outputModuleName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    watchService = FileSystems.getDefault().newWatchService();
+    for (Path dir : dirs) {
+      registerAll(dir);
+    }
+    watcher = new Thread(this::watch, "EagerRecompiler watcher for " + outputModuleName);
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    watchService.close();
+    watcher.join();
+    // A running compile can't be interrupted, but it's a daemon thread.
+    executor.shutdownNow();
+  }
+
+  private void registerAll(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void watch() {
+    try {
+      for (;;) {
+        WatchKey key = watchService.take();
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            Path path = dir.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+              try {
+                registerAll(path);
+              } catch (IOException e) {
+                logger.log(TreeLogger.WARN, "Cannot watch " + path + " for changes", e);
+              }
+            }
+          }
+        }
+        key.reset();
+        schedule();
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      // stopping
+    }
+  }
+
+  /** (Re)starts the quiet period after which the module will be recompiled. */
+  private synchronized void schedule() {
+    if (pending != null) {
+      // Only cancels it if it hasn't started yet, as compiles must not be interrupted.
+      pending.cancel(false);
+    }
+    pending = executor.schedule(this::recompile, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void recompile() {
+    Map<String, String> bindings = compileEvents.getLatestBindings(outputModuleName);
+    if (bindings == null) {
+      return;
+    }
+    logger.log(TreeLogger.INFO, "Sources changed, recompiling " + outputModuleName);
+    try {
+      logger.log(TreeLogger.DEBUG, requestRecompile(codeServerOrigin.get(), outputModuleName, bindings));
+    } catch (IOException e) {
+      logger.log(TreeLogger.WARN, "Cannot recompile " + outputModuleName, e);
+    }
+  }
+
+  /**
+   * Asks the CodeServer to recompile a module with the given binding properties,
+   * and returns its JSON response once the compile is done.
+   */
+  static String requestRecompile(String codeServerOrigin, String outputModuleName, Map<String, String> bindings)
+      throws IOException {
+    StringBuilder url = new StringBuilder(codeServerOrigin).append("/recompile/").append(outputModuleName);
+    char sep = '?';
+    for (Map.Entry<String, String> binding : bindings.entrySet()) {
+      url.append(sep).append(URLEncoder.encode(binding.getKey(), "UTF-8"))
+          .append('=').append(URLEncoder.encode(binding.getValue(), "UTF-8"));
+      sep = '&';
+    }
+    HttpURLConnection connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+    // The CodeServer only responds once the compile is done.
+    try (InputStream in = connection.getInputStream()) {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package net.ltgt.gwt.devserver;
+
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Emits Java Flight Recorder events for requests, upstream connections, and compiles,
+ * so they line up with the GC and CPU activity in the same recording.
+ *
+ * <p>JFR is only available on Java 11 and later, and Java 8 since update 262, so the events are defined in
+ * {@link JfrEvents}, that is only loaded if the JVM has the {@code jdk.jfr} API; otherwise, this does nothing.
+ *
+ * <p>The {@code begin*} methods return {@code null} (without allocating anything) unless the event is enabled
+ * in a running recording; the result is passed back to the matching {@code end*} method that commits it.
+ */
+class FlightRecorderEvents {
+  static final FlightRecorderEvents INSTANCE = load();
+
+  private static FlightRecorderEvents load() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+    } catch (ClassNotFoundException | LinkageError e) {
+      return new FlightRecorderEvents();
+    }
+    return new JfrEvents();
+  }
+
+  /** Begins a request event, handled by a {@link Metrics.Route}. */
+  Object beginRequest() {
+    return null;
+  }
+
+  void endRequest(Object event, String route, Request request, long responseBytes) {
+  }
+
+  /** Begins an event for a proxied request waiting for a connection to the upstream server. */
+  Object beginConnectionAcquisition() {
+    return null;
+  }
+
+  void endConnectionAcquisition(Object event, String destination) {
+  }
+
+  /** Begins a compile event, as the CodeServer starts compiling a module. */
+  Object beginCompile() {
+    return null;
+  }
+
+  /** Ends a compile event, with its outcome being {@code done} or {@code failed}. */
+  void endCompile(Object event, String outputModuleName, String jobId, String outcome) {
+  }
+}
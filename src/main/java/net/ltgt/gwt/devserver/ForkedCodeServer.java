@@ -0,0 +1,116 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.UnableToCompleteException;
+import com.google.gwt.dev.codeserver.CodeServer;
+import com.google.gwt.dev.codeserver.JobEvent;
+import com.google.gwt.dev.codeserver.Options;
+import com.google.gwt.dev.codeserver.WebServer;
+import com.google.gwt.dev.json.JsonException;
+import com.google.gwt.dev.json.JsonObject;
+import com.google.gwt.dev.json.JsonValue;
+import com.google.gwt.dev.json.Pair;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The main class of a CodeServer running in a child JVM, supervised by a {@link CodeServerProcess}.
+ *
+ * <p>The standard output is reserved for reporting to the devserver, one message per line:
+ * the CodeServer's port once it's ready, then its job events. Everything else goes to the standard error.
+ * The child JVM exits as soon as its standard input is closed, i.e. when the devserver goes away.
+ */
+class ForkedCodeServer {
+  static final String PORT_MESSAGE = "port ";
+  static final String EVENT_MESSAGE = "event ";
+
+  public static void main(String[] args) throws Exception {
+    PrintStream messages = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+    System.setOut(System.err);
+
+    Thread watchdog = new Thread(() -> {
+      try {
+        while (System.in.read() != -1) {
+          // the devserver never writes anything
+        }
+      } catch (IOException e) {
+        // same as closed
+      }
+      System.exit(0);
+    }, "devserver watchdog");
+    watchdog.setDaemon(true);
+    watchdog.start();
+
+    Options options = new Options();
+    if (!options.parseArgs(args)) {
+      System.exit(1);
+    }
+    options.setJobChangeListener(event -> messages.println(EVENT_MESSAGE + toJson(event)));
+    WebServer webServer;
+    try {
+      webServer = CodeServer.start(options);
+    } catch (UnableToCompleteException e) {
+      // Already logged.
+      System.exit(1);
+      return;
+    }
+    messages.println(PORT_MESSAGE + webServer.getPort());
+  }
+
+  static String toJson(JobEvent event) {
+    JsonObject json = JsonObject.create();
+    json.put("jobId", event.getJobId());
+    json.put("inputModuleName", event.getInputModuleName());
+    if (event.getOutputModuleName() != null) {
+      json.put("outputModuleName", event.getOutputModuleName());
+    }
+    JsonObject bindings = JsonObject.create();
+    for (Map.Entry<String, String> binding : event.getBindings().entrySet()) {
+      bindings.put(binding.getKey(), binding.getValue());
+    }
+    json.put("bindings", bindings);
+    json.put("status", event.getStatus().name());
+    json.put("message", event.getMessage());
+    if (event.getCompileStrategy() != null) {
+      json.put("compileStrategy", event.getCompileStrategy().name());
+    }
+    StringWriter sw = new StringWriter();
+    try {
+      json.write(sw);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    // JSON never contains raw newlines, so it fits on a single line.
+    return sw.toString();
+  }
+
+  static JobEvent fromJson(String line) throws IOException, JsonException {
+    JsonObject json = JsonObject.parse(new StringReader(line));
+    JobEvent.Builder builder = new JobEvent.Builder();
+    builder.setJobId(getString(json, "jobId"));
+    builder.setInputModuleName(getString(json, "inputModuleName"));
+    builder.setOutputModuleName(getString(json, "outputModuleName"));
+    Map<String, String> bindings = new HashMap<>();
+    for (Pair<String, JsonValue> binding : json.get("bindings").asObject()) {
+      bindings.put(binding.getA(), binding.getB().asString().getString());
+    }
+    builder.setBindings(bindings);
+    builder.setStatus(JobEvent.Status.valueOf(getString(json, "status")));
+    builder.setMessage(getString(json, "message"));
+    String compileStrategy = getString(json, "compileStrategy");
+    if (compileStrategy != null) {
+      builder.setCompileStrategy(JobEvent.CompileStrategy.valueOf(compileStrategy));
+    }
+    return builder.build();
+  }
+
+  private static String getString(JsonObject json, String key) {
+    JsonValue value = json.get(key);
+    return value == null ? null : value.asString().getString();
+  }
+}
@@ -0,0 +1,114 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jetty.server.HttpOutput;
+
+final class HttpUtil {
+  private HttpUtil() {
+  }
+
+  static boolean acceptsGzip(HttpServletRequest req) {
+    return accepts(req, "gzip") || accepts(req, "x-gzip");
+  }
+
+  static boolean accepts(HttpServletRequest req, String contentCoding) {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      int semi = coding.indexOf(';');
+      String name = (semi < 0 ? coding : coding.substring(0, semi)).trim();
+      if (name.equalsIgnoreCase(contentCoding)) {
+        return semi < 0 || !coding.substring(semi + 1).replace(" ", "").matches("(?i)q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the {@code If-None-Match} request header matches the given entity-tag, using the weak
+   * comparison (i.e. ignoring {@code W/} on both sides) as {@code If-None-Match} requires.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaqueTag = opaqueTag(etag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || opaqueTag(candidate).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaqueTag(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  /** Parses an HTTP date, returning -1 if it's invalid. */
+  static long parseDate(String value) {
+    try {
+      return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  /** Sets the given headers, replacing those possibly already set by filters, such as Vary. */
+  static void setHeaders(HttpServletResponse resp, List<Map.Entry<String, String>> headers) {
+    Set<String> seen = new HashSet<>();
+    for (Map.Entry<String, String> header : headers) {
+      if (seen.add(header.getKey())) {
+        resp.setHeader(header.getKey(), header.getValue());
+      } else {
+        resp.addHeader(header.getKey(), header.getValue());
+      }
+    }
+  }
+
+  /**
+   * Writes the buffer's remaining bytes to the response, without copying them when possible.
+   * The buffer's position is left untouched.
+   */
+  static void send(HttpServletResponse resp, ByteBuffer content) throws IOException {
+    ServletOutputStream out = resp.getOutputStream();
+    if (out instanceof HttpOutput) {
+      ((HttpOutput) out).sendContent(content.duplicate());
+    } else {
+      write(out, content);
+    }
+  }
+
+  /**
+   * Writes the buffer's remaining bytes to the output, without copying them when possible, leaving it open.
+   * The buffer's position is left untouched.
+   */
+  static void write(ServletOutputStream out, ByteBuffer content) throws IOException {
+    if (out instanceof HttpOutput) {
+      ((HttpOutput) out).write(content.duplicate());
+    } else {
+      // Copies through a small buffer, as the content may be a big memory-mapped file.
+      ByteBuffer buffer = content.duplicate();
+      byte[] bytes = new byte[Math.min(buffer.remaining(), 8192)];
+      while (buffer.hasRemaining()) {
+        int length = Math.min(buffer.remaining(), bytes.length);
+        buffer.get(bytes, 0, length);
+        out.write(bytes, 0, length);
+      }
+    }
+  }
+}
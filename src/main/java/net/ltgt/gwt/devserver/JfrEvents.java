@@ -0,0 +1,146 @@
+package net.ltgt.gwt.devserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * The {@link FlightRecorderEvents} when the JVM supports JFR.
+ *
+ * <p>Whether an event is enabled is checked against a shared instance, as it only depends on the event type;
+ * this way events are only allocated when being recorded.
+ */
+class JfrEvents extends FlightRecorderEvents {
+  private static final String CATEGORY = "GWT DevServer";
+
+  @Name("net.ltgt.gwt.devserver.Request")
+  @Label("Request")
+  @Description("A request handled by the devserver")
+  @Category(CATEGORY)
+  static class RequestEvent extends Event {
+    @Label("Route")
+    @Description("The route that handled the request, as in the metrics")
+    String route;
+
+    @Label("Method")
+    String method;
+
+    @Label("Path")
+    String path;
+
+    @Label("Status")
+    int status;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+  }
+
+  @Name("net.ltgt.gwt.devserver.UpstreamConnectionAcquisition")
+  @Label("Upstream Connection Acquisition")
+  @Description("A proxied request waiting for a connection to the upstream server (CodeServer or -proxyTo origin)")
+  @Category(CATEGORY)
+  static class ConnectionAcquisitionEvent extends Event {
+    @Label("Destination")
+    String destination;
+  }
+
+  @Name("net.ltgt.gwt.devserver.Compile")
+  @Label("Compile")
+  @Description("A compile of a module by the CodeServer")
+  @Category(CATEGORY)
+  static class CompileEvent extends Event {
+    @Label("Module")
+    String module;
+
+    @Label("Job")
+    String jobId;
+
+    @Label("Outcome")
+    @Description("done or failed")
+    String outcome;
+  }
+
+  private static final RequestEvent REQUEST = new RequestEvent();
+  private static final ConnectionAcquisitionEvent CONNECTION_ACQUISITION = new ConnectionAcquisitionEvent();
+  private static final CompileEvent COMPILE = new CompileEvent();
+
+  @Override
+  Object beginRequest() {
+    if (!REQUEST.isEnabled()) {
+      return null;
+    }
+    RequestEvent event = new RequestEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endRequest(Object event, String route, Request request, long responseBytes) {
+    if (event == null) {
+      return;
+    }
+    RequestEvent requestEvent = (RequestEvent) event;
+    requestEvent.end();
+    if (requestEvent.shouldCommit()) {
+      requestEvent.route = route;
+      requestEvent.method = request.getMethod();
+      requestEvent.path = request.getRequestURI();
+      requestEvent.status = request.getResponse().getStatus();
+      requestEvent.responseBytes = responseBytes;
+      requestEvent.commit();
+    }
+  }
+
+  @Override
+  Object beginConnectionAcquisition() {
+    if (!CONNECTION_ACQUISITION.isEnabled()) {
+      return null;
+    }
+    ConnectionAcquisitionEvent event = new ConnectionAcquisitionEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endConnectionAcquisition(Object event, String destination) {
+    if (event == null) {
+      return;
+    }
+    ConnectionAcquisitionEvent connectionEvent = (ConnectionAcquisitionEvent) event;
+    connectionEvent.end();
+    if (connectionEvent.shouldCommit()) {
+      connectionEvent.destination = destination;
+      connectionEvent.commit();
+    }
+  }
+
+  @Override
+  Object beginCompile() {
+    if (!COMPILE.isEnabled()) {
+      return null;
+    }
+    CompileEvent event = new CompileEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endCompile(Object event, String outputModuleName, String jobId, String outcome) {
+    if (event == null) {
+      return;
+    }
+    CompileEvent compileEvent = (CompileEvent) event;
+    compileEvent.end();
+    if (compileEvent.shouldCommit()) {
+      compileEvent.module = outputModuleName;
+      compileEvent.jobId = jobId;
+      compileEvent.outcome = outcome;
+      compileEvent.commit();
+    }
+  }
+}
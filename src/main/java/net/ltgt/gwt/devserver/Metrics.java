@@ -0,0 +1,333 @@
+package net.ltgt.gwt.devserver;
+
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-route request metrics, exported in the Prometheus text format.
+ *
+ * <p>Recording never allocates: counters are atomics and latencies go to fixed exponential buckets.
+ */
+class Metrics {
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final ServerThreadPool threadPool;
+  private final CompressedResponseCache compressedResponseCache;
+  private final UpstreamCache upstreamCache;
+  private final UpstreamClients upstreamClients;
+  private final AccessLog accessLog;
+  private final List<Route> routes = new CopyOnWriteArrayList<>();
+  /** Static file caches, by the labels of their route. */
+  private final List<Map.Entry<String, StaticFileCache>> staticFileCaches = new CopyOnWriteArrayList<>();
+
+  Metrics(ServerThreadPool threadPool) {
+    this(threadPool, null, null, null, null);
+  }
+
+  /**
+   * Creates metrics also reporting on the given caches of compressed and proxied responses, and on the given
+   * clients' connection pools and circuit breakers, if not {@code null}; requests are also logged to the given
+   * access log, if not {@code null}.
+   */
+  Metrics(ServerThreadPool threadPool, CompressedResponseCache compressedResponseCache, UpstreamCache upstreamCache,
+      UpstreamClients upstreamClients, AccessLog accessLog) {
+    this.threadPool = threadPool;
+    this.compressedResponseCache = compressedResponseCache;
+    this.upstreamCache = upstreamCache;
+    this.upstreamClients = upstreamClients;
+    this.accessLog = accessLog;
+  }
+
+  /**
+   * Registers a route; {@code module} is {@code null} for routes that aren't specific to a module,
+   * and {@code proxied} tells whether upstream metrics are relevant.
+   */
+  Route route(String name, String module, boolean proxied) {
+    Route route = new Route(module == null ? name : name + ":" + module, module == null
+        ? "route=\"" + name + "\""
+        : "route=\"" + name + "\",module=\"" + module + "\"", proxied, accessLog);
+    routes.add(route);
+    return route;
+  }
+
+  /** Registers a route of the {@code -route} table, labelled with its path prefix. */
+  Route prefixRoute(String name, String prefix, boolean proxied) {
+    Route route = new Route(name + ":" + prefix, "route=\"" + name + "\",prefix=\"" + escape(prefix) + "\"", proxied,
+        accessLog);
+    routes.add(route);
+    return route;
+  }
+
+  /** Also reports on the cache of the static files served by the given route. */
+  void staticFileCache(Route route, StaticFileCache cache) {
+    staticFileCaches.add(new AbstractMap.SimpleImmutableEntry<>(route.labels, cache));
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /** Writes all metrics; lines are always terminated by {@code \n}, as required by the format. */
+  void write(PrintWriter out) {
+    out.append("# HELP devserver_requests_total Requests handled, by route.\n");
+    out.append("# TYPE devserver_requests_total counter\n");
+    for (Route route : routes) {
+      sample(out, "devserver_requests_total", route.labels, route.requests.get());
+    }
+    out.append("# HELP devserver_requests_in_flight Requests being handled, by route.\n");
+    out.append("# TYPE devserver_requests_in_flight gauge\n");
+    for (Route route : routes) {
+      sample(out, "devserver_requests_in_flight", route.labels, route.inFlight.get());
+    }
+    out.append("# HELP devserver_request_bytes_total Request body bytes read, by route.\n");
+    out.append("# TYPE devserver_request_bytes_total counter\n");
+    for (Route route : routes) {
+      sample(out, "devserver_request_bytes_total", route.labels, route.bytesIn.get());
+    }
+    out.append("# HELP devserver_response_bytes_total Response body bytes written, by route.\n");
+    out.append("# TYPE devserver_response_bytes_total counter\n");
+    for (Route route : routes) {
+      sample(out, "devserver_response_bytes_total", route.labels, route.bytesOut.get());
+    }
+    out.append("# HELP devserver_request_duration_seconds Time to handle requests, by route.\n");
+    out.append("# TYPE devserver_request_duration_seconds histogram\n");
+    for (Route route : routes) {
+      route.duration.write(out, "devserver_request_duration_seconds", route.labels);
+    }
+    out.append("# HELP devserver_upstream_duration_seconds Time until the upstream server sent response headers, by route.\n");
+    out.append("# TYPE devserver_upstream_duration_seconds histogram\n");
+    for (Route route : routes) {
+      if (route.proxied) {
+        route.upstreamDuration.write(out, "devserver_upstream_duration_seconds", route.labels);
+      }
+    }
+    out.append("# HELP devserver_upstream_failures_total Failed upstream requests, by route.\n");
+    out.append("# TYPE devserver_upstream_failures_total counter\n");
+    for (Route route : routes) {
+      if (route.proxied) {
+        sample(out, "devserver_upstream_failures_total", route.labels, route.upstreamFailures.get());
+      }
+    }
+    out.append("# HELP devserver_upstream_rejected_total Requests not sent upstream, as their destination's circuit was open or its queue full, by route.\n");
+    out.append("# TYPE devserver_upstream_rejected_total counter\n");
+    for (Route route : routes) {
+      if (route.proxied) {
+        sample(out, "devserver_upstream_rejected_total", route.labels, route.upstreamRejected.get());
+      }
+    }
+    out.append("# HELP devserver_coalesced_requests_total Requests served the response of an identical concurrent request, by route.\n");
+    out.append("# TYPE devserver_coalesced_requests_total counter\n");
+    for (Route route : routes) {
+      if (route.proxied) {
+        sample(out, "devserver_coalesced_requests_total", route.labels, route.coalesced.get());
+      }
+    }
+    if (upstreamClients != null) {
+      Map<String, UpstreamClients.PoolStats> pools = upstreamClients.getPoolStats();
+      out.append("# HELP devserver_upstream_connections Connections to upstream servers, by destination and state.\n");
+      out.append("# TYPE devserver_upstream_connections gauge\n");
+      for (Map.Entry<String, UpstreamClients.PoolStats> pool : pools.entrySet()) {
+        String labels = "destination=\"" + escape(pool.getKey()) + "\"";
+        sample(out, "devserver_upstream_connections", labels + ",state=\"active\"", pool.getValue().active);
+        sample(out, "devserver_upstream_connections", labels + ",state=\"idle\"", pool.getValue().idle);
+      }
+      out.append("# HELP devserver_upstream_connections_max Maximum number of connections to upstream servers, by destination.\n");
+      out.append("# TYPE devserver_upstream_connections_max gauge\n");
+      for (Map.Entry<String, UpstreamClients.PoolStats> pool : pools.entrySet()) {
+        sample(out, "devserver_upstream_connections_max", "destination=\"" + escape(pool.getKey()) + "\"",
+            pool.getValue().max);
+      }
+      out.append("# HELP devserver_upstream_queued_requests Requests waiting for a connection to an upstream server, by destination.\n");
+      out.append("# TYPE devserver_upstream_queued_requests gauge\n");
+      for (Map.Entry<String, UpstreamClients.PoolStats> pool : pools.entrySet()) {
+        sample(out, "devserver_upstream_queued_requests", "destination=\"" + escape(pool.getKey()) + "\"",
+            pool.getValue().queued);
+      }
+      Map<String, UpstreamClients.Breaker> breakers = upstreamClients.getBreakers();
+      out.append("# HELP devserver_upstream_circuit_state Whether the circuit breaker of an upstream server is in a given state, by destination.\n");
+      out.append("# TYPE devserver_upstream_circuit_state gauge\n");
+      for (UpstreamClients.Breaker breaker : breakers.values()) {
+        UpstreamClients.Breaker.State current = breaker.getState();
+        for (UpstreamClients.Breaker.State state : UpstreamClients.Breaker.State.values()) {
+          sample(out, "devserver_upstream_circuit_state", "destination=\"" + escape(breaker.origin) + "\",state=\""
+              + state.name().toLowerCase(Locale.ROOT) + "\"", state == current ? 1 : 0);
+        }
+      }
+      out.append("# HELP devserver_upstream_circuit_rejected_total Requests rejected while the circuit breaker of an upstream server was open, by destination.\n");
+      out.append("# TYPE devserver_upstream_circuit_rejected_total counter\n");
+      for (UpstreamClients.Breaker breaker : breakers.values()) {
+        sample(out, "devserver_upstream_circuit_rejected_total", "destination=\"" + escape(breaker.origin) + "\"",
+            breaker.rejected.get());
+      }
+    }
+    if (upstreamCache != null) {
+      long hits = upstreamCache.getHits();
+      long revalidations = upstreamCache.getRevalidations();
+      long misses = upstreamCache.getMisses();
+      out.append("# HELP devserver_upstream_cache_requests_total Cacheable upstream requests, by result.\n");
+      out.append("# TYPE devserver_upstream_cache_requests_total counter\n");
+      sample(out, "devserver_upstream_cache_requests_total", "result=\"hit\"", hits);
+      sample(out, "devserver_upstream_cache_requests_total", "result=\"revalidated\"", revalidations);
+      sample(out, "devserver_upstream_cache_requests_total", "result=\"miss\"", misses);
+      long total = hits + revalidations + misses;
+      out.append("# HELP devserver_upstream_cache_hit_ratio Ratio of cacheable upstream requests served without contacting the upstream.\n");
+      out.append("# TYPE devserver_upstream_cache_hit_ratio gauge\n");
+      out.append("devserver_upstream_cache_hit_ratio ")
+          .append(String.valueOf(total == 0 ? 0 : (double) hits / total)).append('\n');
+      out.append("# HELP devserver_upstream_cache_bytes Size of the cached upstream responses.\n");
+      out.append("# TYPE devserver_upstream_cache_bytes gauge\n");
+      sample(out, "devserver_upstream_cache_bytes", upstreamCache.getSize());
+      out.append("# HELP devserver_upstream_cache_evictions_total Cached upstream responses evicted to make room for others.\n");
+      out.append("# TYPE devserver_upstream_cache_evictions_total counter\n");
+      sample(out, "devserver_upstream_cache_evictions_total", upstreamCache.getEvictions());
+    }
+
+    if (!staticFileCaches.isEmpty()) {
+      out.append("# HELP devserver_static_cache_requests_total Static file lookups, by route and result.\n");
+      out.append("# TYPE devserver_static_cache_requests_total counter\n");
+      for (Map.Entry<String, StaticFileCache> cache : staticFileCaches) {
+        sample(out, "devserver_static_cache_requests_total", cache.getKey() + ",result=\"hit\"",
+            cache.getValue().getHits());
+        sample(out, "devserver_static_cache_requests_total", cache.getKey() + ",result=\"miss\"",
+            cache.getValue().getMisses());
+      }
+      out.append("# HELP devserver_static_cache_bytes Size of the cached static files, by route.\n");
+      out.append("# TYPE devserver_static_cache_bytes gauge\n");
+      for (Map.Entry<String, StaticFileCache> cache : staticFileCaches) {
+        sample(out, "devserver_static_cache_bytes", cache.getKey(), cache.getValue().getSize());
+      }
+      out.append("# HELP devserver_static_cache_evictions_total Cached static files evicted to make room for others, by route.\n");
+      out.append("# TYPE devserver_static_cache_evictions_total counter\n");
+      for (Map.Entry<String, StaticFileCache> cache : staticFileCaches) {
+        sample(out, "devserver_static_cache_evictions_total", cache.getKey(), cache.getValue().getEvictions());
+      }
+    }
+
+    if (compressedResponseCache != null) {
+      out.append("# HELP devserver_compressed_cache_requests_total Responses compressed on the fly, by whether their compressed body was cached.\n");
+      out.append("# TYPE devserver_compressed_cache_requests_total counter\n");
+      sample(out, "devserver_compressed_cache_requests_total", "result=\"hit\"", compressedResponseCache.getHits());
+      sample(out, "devserver_compressed_cache_requests_total", "result=\"miss\"", compressedResponseCache.getMisses());
+    }
+
+    if (accessLog != null) {
+      out.append("# HELP devserver_access_log_dropped_total Requests not logged as the access log couldn't keep up.\n");
+      out.append("# TYPE devserver_access_log_dropped_total counter\n");
+      sample(out, "devserver_access_log_dropped_total", accessLog.getDropped());
+    }
+
+    int busyThreads = threadPool.getBusyThreads();
+    out.append("# HELP devserver_threads Threads of the web server's pool, by state.\n");
+    out.append("# TYPE devserver_threads gauge\n");
+    sample(out, "devserver_threads", "state=\"busy\"", busyThreads);
+    sample(out, "devserver_threads", "state=\"idle\"", threadPool.getIdleThreads());
+    out.append("# HELP devserver_threads_max Maximum number of threads of the web server's pool.\n");
+    out.append("# TYPE devserver_threads_max gauge\n");
+    sample(out, "devserver_threads_max", threadPool.getMaxThreads());
+    out.append("# HELP devserver_threads_utilization Ratio of busy threads to the maximum number of threads.\n");
+    out.append("# TYPE devserver_threads_utilization gauge\n");
+    out.append("devserver_threads_utilization ")
+        .append(String.valueOf((double) busyThreads / threadPool.getMaxThreads())).append('\n');
+    out.append("# HELP devserver_threads_queue_size Jobs waiting for a thread of the web server's pool.\n");
+    out.append("# TYPE devserver_threads_queue_size gauge\n");
+    sample(out, "devserver_threads_queue_size", threadPool.getQueueSize());
+    if (threadPool.isUsingVirtualThreads()) {
+      out.append("# HELP devserver_virtual_threads_in_flight Jobs running on virtual threads.\n");
+      out.append("# TYPE devserver_virtual_threads_in_flight gauge\n");
+      sample(out, "devserver_virtual_threads_in_flight", threadPool.getVirtualThreadsInFlight());
+    }
+  }
+
+  private static void sample(PrintWriter out, String name, long value) {
+    out.append(name).append(' ').append(String.valueOf(value)).append('\n');
+  }
+
+  private static void sample(PrintWriter out, String name, String labels, long value) {
+    out.append(name).append('{').append(labels).append("} ").append(String.valueOf(value)).append('\n');
+  }
+
+  static class Route {
+    /** The route's name in the access log. */
+    final String name;
+    final String labels;
+    final boolean proxied;
+    /** Where requests are logged, if not {@code null}. */
+    final AccessLog accessLog;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong inFlight = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final Histogram duration = new Histogram();
+    final Histogram upstreamDuration = new Histogram();
+    final AtomicLong upstreamFailures = new AtomicLong();
+    final AtomicLong upstreamRejected = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+
+    Route(String name, String labels, boolean proxied, AccessLog accessLog) {
+      this.name = name;
+      this.labels = labels;
+      this.proxied = proxied;
+      this.accessLog = accessLog;
+    }
+
+    void begin() {
+      requests.incrementAndGet();
+      inFlight.incrementAndGet();
+    }
+
+    void end(long startNanos, long endNanos, long requestBytes, long responseBytes) {
+      duration.record(endNanos - startNanos);
+      bytesIn.addAndGet(requestBytes);
+      bytesOut.addAndGet(responseBytes);
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * A latency histogram with exponential buckets, from 16µs to about 33s, doubling at each bucket.
+   *
+   * <p>This is HdrHistogram's layout without the linear sub-buckets: the bucket index is computed
+   * from the number of leading zeros of the value, so recording is a couple of atomic increments.
+   */
+  static class Histogram {
+    private static final int MIN_BUCKET_SHIFT = 4; // 16µs
+    private static final int BUCKETS = 23; // 22 bounded ones, then +Inf
+    private static final String[] BOUNDS = new String[BUCKETS];
+
+    static {
+      for (int i = 0; i < BUCKETS - 1; i++) {
+        BOUNDS[i] = BigDecimal.valueOf(1L << (i + MIN_BUCKET_SHIFT), 6).stripTrailingZeros().toPlainString();
+      }
+      BOUNDS[BUCKETS - 1] = "+Inf";
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    void record(long nanos) {
+      long micros = Math.max(nanos, 0) / 1000;
+      // ceil(log2(micros)), so that each bucket counts values less than or equal to its bound
+      int log2 = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+      counts.incrementAndGet(Math.min(Math.max(log2 - MIN_BUCKET_SHIFT, 0), BUCKETS - 1));
+      sumNanos.addAndGet(nanos);
+    }
+
+    void write(PrintWriter out, String name, String labels) {
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        cumulative += counts.get(i);
+        out.append(name).append("_bucket{").append(labels).append(",le=\"").append(BOUNDS[i]).append("\"} ")
+            .append(String.valueOf(cumulative)).append('\n');
+      }
+      out.append(name).append("_sum{").append(labels).append("} ").append(String.valueOf(sumNanos.get() / 1e9)).append('\n');
+      out.append(name).append("_count{").append(labels).append("} ").append(String.valueOf(cumulative)).append('\n');
+    }
+  }
+}
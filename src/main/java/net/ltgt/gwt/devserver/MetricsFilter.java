@@ -0,0 +1,152 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+
+/**
+ * Records the requests handled by a servlet into a {@link Metrics.Route}, and its access log if any,
+ * along with {@link FlightRecorderEvents}.
+ *
+ * <p>Asynchronous requests (i.e. proxied ones) are recorded once they complete, by a listener shared by all of them.
+ * Their timings are kept in holders that are reused once recorded, so that measuring requests doesn't allocate.
+ */
+class MetricsFilter implements Filter {
+  private static final String TIMING_ATTRIBUTE = MetricsFilter.class.getName() + ".timing";
+  private static final int POOL_SIZE = 64;
+
+  /** Sets the time until the upstream server sent its response headers, in nanoseconds, for the access log. */
+  static void upstreamDuration(ServletRequest request, long nanos) {
+    Timing timing = (Timing) request.getAttribute(TIMING_ATTRIBUTE);
+    if (timing != null) {
+      timing.upstreamDuration = nanos;
+    }
+  }
+
+  /** The state of a request being measured. */
+  private static class Timing {
+    Request baseRequest;
+    long start;
+    Object recorderEvent;
+    long upstreamDuration;
+  }
+
+  private final Metrics.Route route;
+  /** Reusable timings; empty slots are {@code null}. */
+  private final AtomicReferenceArray<Timing> pool = new AtomicReferenceArray<>(POOL_SIZE);
+  private final AsyncListener completionListener = new AsyncListener() {
+    @Override
+    public void onComplete(AsyncEvent event) {
+      Timing timing = (Timing) event.getAsyncContext().getRequest().getAttribute(TIMING_ATTRIBUTE);
+      if (timing != null) {
+        end(timing);
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+  };
+
+  MetricsFilter(Metrics.Route route) {
+    this.route = route;
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    Timing timing = acquire();
+    timing.start = System.nanoTime();
+    timing.baseRequest = request instanceof Request
+        ? (Request) request
+        : HttpChannel.getCurrentHttpChannel().getRequest();
+    timing.recorderEvent = FlightRecorderEvents.INSTANCE.beginRequest();
+    timing.upstreamDuration = -1;
+    request.setAttribute(TIMING_ATTRIBUTE, timing);
+    route.begin();
+    boolean async = false;
+    try {
+      chain.doFilter(request, response);
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(completionListener);
+        async = true;
+      }
+    } finally {
+      if (!async) {
+        end(timing);
+      }
+    }
+  }
+
+  private Timing acquire() {
+    for (int i = 0; i < POOL_SIZE; i++) {
+      Timing timing = pool.get(i);
+      if (timing != null && pool.compareAndSet(i, timing, null)) {
+        return timing;
+      }
+    }
+    return new Timing();
+  }
+
+  private void release(Timing timing) {
+    timing.baseRequest = null;
+    timing.recorderEvent = null;
+    for (int i = 0; i < POOL_SIZE; i++) {
+      if (pool.get(i) == null && pool.compareAndSet(i, null, timing)) {
+        return;
+      }
+    }
+  }
+
+  private void end(Timing timing) {
+    long end = System.nanoTime();
+    Request baseRequest = timing.baseRequest;
+    // So that the timing is no longer reachable once reused.
+    baseRequest.removeAttribute(TIMING_ATTRIBUTE);
+    long responseBytes = responseBytes(baseRequest);
+    route.end(timing.start, end, baseRequest.getContentRead(), responseBytes);
+    FlightRecorderEvents.INSTANCE.endRequest(timing.recorderEvent, route.name, baseRequest, responseBytes);
+    if (route.accessLog != null) {
+      route.accessLog.log(baseRequest, route.name, timing.start, end, responseBytes, timing.upstreamDuration);
+    }
+    release(timing);
+  }
+  /**
+   * Jetty only counts bytes written through the output stream, not those passed to {@code HttpOutput.sendContent},
+   * so fall back to the {@code Content-Length} in that case.
+   */
+  private static long responseBytes(Request request) {
+    Response response = request.getResponse();
+    if ("HEAD".equals(request.getMethod()) || response.getStatus() == HttpServletResponse.SC_NOT_MODIFIED) {
+      return 0;
+    }
+    return Math.max(response.getContentCount(), response.getLongContentLength());
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
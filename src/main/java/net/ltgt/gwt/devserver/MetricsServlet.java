@@ -0,0 +1,25 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/** Exposes {@link Metrics} in the Prometheus text format. */
+class MetricsServlet extends HttpServlet {
+  private final Metrics metrics;
+
+  MetricsServlet(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    resp.setContentType(Metrics.CONTENT_TYPE);
+    resp.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = resp.getWriter();
+    metrics.write(out);
+  }
+}
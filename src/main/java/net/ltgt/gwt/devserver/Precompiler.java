@@ -0,0 +1,107 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.dev.json.JsonException;
+import com.google.gwt.dev.json.JsonObject;
+import com.google.gwt.dev.json.JsonValue;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * Compiles all the modules in the background as soon as their CodeServer is ready, so that the first load of
+ * each module doesn't have to wait for a full compile.
+ *
+ * <p>Modules are compiled with the same binding properties as the CodeServer's own precompile;
+ * compiles for other binding properties start from the module's warm caches.
+ *
+ * <p>At most {@code workers} compiles are requested concurrently. A CodeServer runs one compile at a time
+ * (modules only compile in parallel when each has its own CodeServer) and queues the others,
+ * along with the compiles requested by browsers in the meantime: a browser asking for a module being
+ * precompiled gets the precompiled output, as its compile is then skipped for lack of changes.
+ * The compile times that are logged thus include the time spent waiting in that queue.
+ */
+class Precompiler extends AbstractLifeCycle {
+  /** The binding properties that the CodeServer precompiles modules with. */
+  static final Map<String, String> BINDINGS;
+  static {
+    Map<String, String> bindings = new LinkedHashMap<>();
+    bindings.put("user.agent", "safari");
+    bindings.put("locale", "en");
+    BINDINGS = Collections.unmodifiableMap(bindings);
+  }
+
+  private final Map<String, CompletableFuture<String>> codeServerOrigins;
+  private final int workers;
+  private final TreeLogger logger;
+
+  private volatile ExecutorService executor;
+
+  /** Creates a precompiler for the given modules, keyed by output module name, and their CodeServer's origin. */
+  Precompiler(Map<String, CompletableFuture<String>> codeServerOrigins, int workers, TreeLogger logger) {
+    this.codeServerOrigins = codeServerOrigins;
+    this.workers = workers;
+    this.logger = logger;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, codeServerOrigins.size()), r -> {
+      Thread thread = new Thread(r, "Precompiler-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.executor = executor;
+    for (Map.Entry<String, CompletableFuture<String>> entry : codeServerOrigins.entrySet()) {
+      // Nothing to do if the CodeServer failed to start, which is reported elsewhere.
+      Object unused = entry.getValue().thenAccept(origin -> {
+        try {
+          executor.execute(() -> precompile(origin, entry.getKey()));
+        } catch (RejectedExecutionException e) {
+          // stopping
+        }
+      });
+    }
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    // A running compile can't be interrupted, but those are daemon threads.
+    executor.shutdownNow();
+  }
+
+  private void precompile(String codeServerOrigin, String outputModuleName) {
+    logger.log(TreeLogger.INFO, "Precompiling " + outputModuleName);
+    long start = System.nanoTime();
+    try {
+      String response = EagerRecompiler.requestRecompile(codeServerOrigin, outputModuleName, BINDINGS);
+      long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      if (isOk(response)) {
+        logger.log(TreeLogger.INFO, "Precompiled " + outputModuleName + " in " + millis + "ms");
+      } else {
+        logger.log(TreeLogger.WARN, "Precompile of " + outputModuleName + " failed after " + millis + "ms");
+      }
+    } catch (IOException e) {
+      logger.log(TreeLogger.WARN, "Cannot precompile " + outputModuleName, e);
+    }
+  }
+
+  private static boolean isOk(String response) {
+    try {
+      JsonValue status = JsonObject.parse(new StringReader(response)).get("status");
+      return status != null && status.isString() && "ok".equals(status.asString().getString());
+    } catch (IOException | JsonException e) {
+      return false;
+    }
+  }
+}
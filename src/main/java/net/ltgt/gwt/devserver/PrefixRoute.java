@@ -0,0 +1,100 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.thirdparty.guava.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An entry of the {@code -route} table: a path prefix, and either a directory or the origins it's served from.
+ *
+ * <p>Static routes serve the path that follows the prefix out of their directory, whereas proxy routes
+ * keep the whole path. Routes are matched by longest prefix, with whole path segments: {@code /api} matches
+ * {@code /api} and {@code /api/users} but not {@code /apis}.
+ */
+class PrefixRoute {
+  final String prefix;
+  /** The directory to serve, or {@code null} for proxy routes. */
+  final File dir;
+  /** The origins to balance requests between, or {@code null} for static routes. */
+  final List<String> origins;
+
+  private PrefixRoute(String prefix, File dir, List<String> origins) {
+    this.prefix = prefix;
+    this.dir = dir;
+    this.origins = origins;
+  }
+
+  /** Returns the servlet path spec matching the prefix and everything below it. */
+  String getPathSpec() {
+    return prefix.equals("/") ? "/*" : prefix + "/*";
+  }
+
+  /**
+   * Parses a {@code /prefix=target} route, where the target is either a comma-separated list of
+   * HTTP or HTTPS origins, or a directory.
+   *
+   * @throws IllegalArgumentException if the value is malformed or the directory doesn't exist
+   */
+  static PrefixRoute parse(String value) {
+    return parse(value, null);
+  }
+
+  /** Parses a route, resolving a relative directory against {@code baseDir} if non-null. */
+  private static PrefixRoute parse(String value, File baseDir) {
+    int eq = value.indexOf('=');
+    if (eq < 0) {
+      throw new IllegalArgumentException("A route must be of the form /prefix=target: " + value);
+    }
+    String prefix = value.substring(0, eq).trim();
+    String target = value.substring(eq + 1).trim();
+    if (!prefix.startsWith("/") || prefix.contains("*") || prefix.contains("//")) {
+      throw new IllegalArgumentException("A route prefix must be a path starting with a /: " + prefix);
+    }
+    if (prefix.length() > 1 && prefix.endsWith("/")) {
+      prefix = prefix.substring(0, prefix.length() - 1);
+    }
+    if (target.startsWith("http://") || target.startsWith("https://")) {
+      return new PrefixRoute(prefix, null, Upstreams.parseOrigins(target));
+    }
+    File dir = new File(target);
+    if (baseDir != null && !dir.isAbsolute()) {
+      dir = new File(baseDir, target);
+    }
+    if (!dir.isDirectory()) {
+      throw new IllegalArgumentException("A route target must be an origin or an existing directory: " + target);
+    }
+    return new PrefixRoute(prefix, dir, null);
+  }
+
+  /**
+   * Reads routes from a file, one {@code /prefix=target} per line.
+   * Blank lines and lines starting with {@code #} are ignored, and relative directories are resolved
+   * against the file's directory.
+   *
+   * @throws IllegalArgumentException if a route is invalid, with the offending line number
+   */
+  static List<PrefixRoute> parseFile(File file) throws IOException {
+    List<PrefixRoute> routes = new ArrayList<>();
+    List<String> lines = Files.readAllLines(file.toPath(), Charsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        routes.add(parse(line, file.getAbsoluteFile().getParentFile()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(file + ":" + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+    return routes;
+  }
+
+  @Override
+  public String toString() {
+    return prefix + "=" + (dir != null ? dir : String.join(",", origins));
+  }
+}
@@ -0,0 +1,374 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Injects {@code <link rel=preconnect>} and {@code <link rel=preload>} hints right after the {@code <head>} start tag
+ * of HTML pages, so that browsers fetch the modules' stubs, and connect to the CodeServer, while the page is still
+ * being parsed.
+ *
+ * <p>Only responses to requests accepting {@code text/html} are looked at, i.e. page navigations. The response
+ * is rewritten as it's being streamed, without buffering: only the first {@link #MAX_SCAN_BYTES} are scanned for the
+ * {@code <head>} start tag, and the hints are injected into the same write as the tag's end, so that non-blocking
+ * writes (from the proxy) keep issuing a single write per chunk. As the length of the response changes, its
+ * {@code Content-Length} is dropped and its {@code ETag} weakened.
+ *
+ * <p>The filter must run inside the gzip filter, so that it sees uncompressed content: for that, it hides the
+ * {@code Accept-Encoding} request header from the servlets (the gzip filter still sees it), and leaves responses
+ * with a {@code Content-Encoding} untouched.
+ */
+class PreloadHintsFilter implements Filter {
+  /** Pages whose {@code <head>} isn't found within that many bytes are left untouched. */
+  static final int MAX_SCAN_BYTES = 64 * 1024;
+
+  private final List<String> stubPaths;
+  private final Collection<CompletableFuture<String>> codeServerOrigins;
+
+  /**
+   * Creates a filter hinting the given stubs, as absolute paths, and the CodeServer origins that are known
+   * at the time the page is served.
+   */
+  PreloadHintsFilter(List<String> stubPaths, Collection<CompletableFuture<String>> codeServerOrigins) {
+    this.stubPaths = stubPaths;
+    this.codeServerOrigins = codeServerOrigins;
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    String accept = ((HttpServletRequest) request).getHeader("Accept");
+    if (accept == null || !accept.contains("text/html") || response instanceof HintsResponse) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HintsResponse hintsResponse = new HintsResponse((HttpServletResponse) response, hints());
+    chain.doFilter(new IdentityRequest((HttpServletRequest) request, hintsResponse), hintsResponse);
+    if (!request.isAsyncStarted()) {
+      hintsResponse.decide();
+    }
+  }
+
+  private byte[] hints() {
+    StringBuilder sb = new StringBuilder();
+    Set<String> origins = new LinkedHashSet<>();
+    for (CompletableFuture<String> origin : codeServerOrigins) {
+      if (origin.isDone() && !origin.isCompletedExceptionally()) {
+        origins.add(origin.join());
+      }
+    }
+    for (String origin : origins) {
+      sb.append("<link rel=\"preconnect\" href=\"").append(origin).append("\">");
+    }
+    for (String stubPath : stubPaths) {
+      sb.append("<link rel=\"preload\" href=\"").append(stubPath).append("\" as=\"script\">");
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Finds the end of the {@code <head>} start tag, across chunks. */
+  static class HeadScanner {
+    private static final byte[] HEAD = "<head".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State { SEARCH, AFTER_NAME, IN_TAG, DONE }
+
+    private State state = State.SEARCH;
+    private int matched;
+    private int quote;
+    private int scanned;
+
+    boolean isDone() {
+      return state == State.DONE;
+    }
+
+    /**
+     * Scans the next chunk, and returns the index right after the end of the {@code <head>} start tag if it's in
+     * this chunk, or -1.
+     */
+    int scan(byte[] b, int off, int len) {
+      for (int i = off; i < off + len && state != State.DONE; i++) {
+        if (++scanned > MAX_SCAN_BYTES) {
+          state = State.DONE;
+          return -1;
+        }
+        int c = Character.toLowerCase(b[i] & 0xff);
+        switch (state) {
+          case SEARCH:
+            matched = c == HEAD[matched] ? matched + 1 : c == '<' ? 1 : 0;
+            if (matched == HEAD.length) {
+              state = State.AFTER_NAME;
+            }
+            break;
+          case AFTER_NAME:
+            if (c == '>') {
+              state = State.DONE;
+              return i + 1;
+            } else if (Character.isWhitespace(c) || c == '/') {
+              state = State.IN_TAG;
+            } else {
+              // e.g. <header>
+              state = State.SEARCH;
+              matched = c == '<' ? 1 : 0;
+            }
+            break;
+          case IN_TAG:
+            if (quote != 0) {
+              if (c == quote) {
+                quote = 0;
+              }
+            } else if (c == '"' || c == '\'') {
+              quote = c;
+            } else if (c == '>') {
+              state = State.DONE;
+              return i + 1;
+            }
+            break;
+          default:
+            throw new AssertionError(state);
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Hides {@code Accept-Encoding} so that servlets and upstream servers send uncompressed pages.
+   *
+   * <p>Also keeps the response wrapped when going async, as the proxy writes to the async context's response.
+   */
+  private static class IdentityRequest extends HttpServletRequestWrapper {
+    private final HintsResponse response;
+
+    IdentityRequest(HttpServletRequest request, HintsResponse response) {
+      super(request);
+      this.response = response;
+    }
+
+    @Override
+    public AsyncContext startAsync() {
+      return startAsync(this, response);
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return "Accept-Encoding".equalsIgnoreCase(name) ? null : super.getHeader(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+      return "Accept-Encoding".equalsIgnoreCase(name)
+          ? Collections.<String>emptyEnumeration()
+          : super.getHeaders(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      List<String> names = Collections.list(super.getHeaderNames());
+      names.removeIf("Accept-Encoding"::equalsIgnoreCase);
+      return Collections.enumeration(names);
+    }
+  }
+
+  /**
+   * Holds the {@code Content-Length} back until the first write, when it's known whether the response is
+   * an HTML page.
+   */
+  private static class HintsResponse extends HttpServletResponseWrapper {
+    private final byte[] hints;
+    private long contentLength = -1;
+    /** Set once decided, when rewriting the response. */
+    private HeadScanner scanner;
+    private boolean decided;
+    private HintsOutputStream out;
+    private PrintWriter writer;
+
+    HintsResponse(HttpServletResponse response, byte[] hints) {
+      super(response);
+      this.hints = hints;
+    }
+
+    void decide() {
+      if (decided) {
+        return;
+      }
+      decided = true;
+      HttpServletResponse response = (HttpServletResponse) getResponse();
+      String contentType = response.getContentType();
+      String contentEncoding = response.getHeader("Content-Encoding");
+      if (response.getStatus() == SC_OK && !response.isCommitted()
+          && contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("text/html")
+          && (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity"))) {
+        scanner = new HeadScanner();
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+          response.setHeader("ETag", "W/" + etag);
+        }
+      } else if (contentLength >= 0 && !response.isCommitted()) {
+        response.setContentLengthLong(contentLength);
+      }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      contentLength = len;
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+      contentLength = len;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        contentLength = value == null ? -1 : Long.parseLong(value);
+      } else {
+        super.setHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        contentLength = Long.parseLong(value);
+      } else {
+        super.addHeader(name, value);
+      }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        contentLength = value;
+      } else {
+        super.setIntHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        contentLength = value;
+      } else {
+        super.addIntHeader(name, value);
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (out == null) {
+        out = new HintsOutputStream(this, super.getOutputStream());
+      }
+      return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      decide();
+      super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+      super.reset();
+      contentLength = -1;
+    }
+  }
+
+  private static class HintsOutputStream extends ServletOutputStream {
+    private final HintsResponse response;
+    private final ServletOutputStream out;
+
+    HintsOutputStream(HintsResponse response, ServletOutputStream out) {
+      this.response = response;
+      this.out = out;
+    }
+
+    @Override
+    public boolean isReady() {
+      return out.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      out.setWriteListener(writeListener);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      response.decide();
+      HeadScanner scanner = response.scanner;
+      int at = scanner == null || scanner.isDone() ? -1 : scanner.scan(b, off, len);
+      if (at < 0) {
+        out.write(b, off, len);
+        return;
+      }
+      byte[] hints = response.hints;
+      byte[] rewritten = new byte[len + hints.length];
+      System.arraycopy(b, off, rewritten, 0, at - off);
+      System.arraycopy(hints, 0, rewritten, at - off, hints.length);
+      System.arraycopy(b, at, rewritten, at - off + hints.length, off + len - at);
+      // A single write, as a second one could fail in non-blocking mode.
+      out.write(rewritten, 0, rewritten.length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      response.decide();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      response.decide();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * A request being proxied to an upstream server: the {@link UpstreamCache} capture, {@link UpstreamArchive}
+ * recording and {@link SingleFlight} flight its response is fed to, and the {@link UpstreamClients.Breaker}
+ * its outcome counts towards.
+ *
+ * <p>Exchanges are decided by a {@link ProxyPolicy}, and driven by an {@link UpstreamProxyServlet}.
+ */
+class ProxyExchange {
+  private static final Logger LOG = Log.getLogger(ProxyExchange.class);
+
+  private final UpstreamCache cache;
+  private final UpstreamCache.Capture capture;
+  private final UpstreamArchive archive;
+  private final UpstreamArchive.Recording recording;
+  /** When the proxy request was sent, as of {@link System#nanoTime()}. */
+  long start;
+  private SingleFlight.Flight flight;
+  private UpstreamClients.Breaker breaker;
+
+  ProxyExchange(UpstreamCache cache, UpstreamCache.Capture capture, UpstreamArchive archive,
+      UpstreamArchive.Recording recording, SingleFlight.Flight flight) {
+    this.cache = cache;
+    this.capture = capture;
+    this.archive = archive;
+    this.recording = recording;
+    this.flight = flight;
+  }
+
+  void breaker(UpstreamClients.Breaker breaker) {
+    this.breaker = breaker;
+  }
+
+  /** Returns the breaker, only once, as only failures up to the response headers count towards opening it. */
+  UpstreamClients.Breaker takeBreaker() {
+    UpstreamClients.Breaker breaker = this.breaker;
+    this.breaker = null;
+    return breaker;
+  }
+
+  /**
+   * Removes the client's conditional headers from the proxy request when the full response is needed,
+   * and adds the cache's ones when revalidating.
+   */
+  void prepare(Request proxyRequest) {
+    if (capture != null || recording != null) {
+      proxyRequest.getHeaders().remove(HttpHeader.IF_NONE_MATCH);
+      proxyRequest.getHeaders().remove(HttpHeader.IF_MODIFIED_SINCE);
+    }
+    if (recording != null) {
+      proxyRequest.getHeaders().remove(HttpHeader.ACCEPT_ENCODING);
+    }
+    if (capture != null && capture.stale != null) {
+      if (capture.stale.etag != null) {
+        proxyRequest.header(HttpHeader.IF_NONE_MATCH, capture.stale.etag);
+      }
+      if (capture.stale.lastModified != null) {
+        proxyRequest.header(HttpHeader.IF_MODIFIED_SINCE, capture.stale.lastModified);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the response with the given status is forwarded to the client; otherwise,
+   * the revalidated cache entry will be served instead, once the proxy response completes.
+   */
+  boolean status(int status) {
+    if (capture == null) {
+      return true;
+    }
+    capture.status(status);
+    return !capture.isNotModified();
+  }
+
+  /** Feeds the response headers, as forwarded to the client. */
+  void headers(int status, HttpServletResponse response) {
+    if (flight == null && capture == null && recording == null) {
+      return;
+    }
+    List<Map.Entry<String, String>> headers = new ArrayList<>();
+    for (String name : response.getHeaderNames()) {
+      for (String value : response.getHeaders(name)) {
+        headers.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+      }
+    }
+    if (flight != null) {
+      flight.headers(status, headers);
+    }
+    if (capture != null) {
+      capture.headers(headers);
+    }
+    if (recording != null) {
+      recording.headers(status, headers);
+    }
+  }
+
+  void content(byte[] buffer, int offset, int length) {
+    if (flight != null) {
+      flight.content(buffer, offset, length);
+    }
+    if (capture != null) {
+      capture.content(buffer, offset, length);
+    }
+    if (recording != null) {
+      recording.content(buffer, offset, length);
+    }
+  }
+
+  /**
+   * Stores the complete response into the cache and archive. Returns the refreshed cache entry if the upstream
+   * server revalidated it, to be {@linkplain #serve served} instead; waiting requests will find it in the cache.
+   */
+  UpstreamCache.Entry success(HttpServletRequest request, Response proxyResponse) {
+    if (capture != null && capture.isNotModified()) {
+      // The stored response was recorded when it was first proxied.
+      UpstreamCache.Entry entry = cache.refresh(request, capture, proxyResponse);
+      abandon();
+      return entry;
+    }
+    if (capture != null) {
+      cache.store(request, capture, proxyResponse);
+    }
+    if (recording != null) {
+      try {
+        archive.append(recording);
+      } catch (IOException e) {
+        LOG.warn("Cannot record " + request.getRequestURI(), e);
+      }
+    }
+    return null;
+  }
+
+  void serve(UpstreamCache.Entry entry, HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    cache.serve(entry, true, request, response);
+  }
+
+  /** Shares the response with the requests that waited for it, once it's been sent to the client. */
+  void complete() {
+    if (flight != null) {
+      flight.complete();
+    }
+  }
+
+  /** Lets the requests that waited for the response be proxied on their own. */
+  void abandon() {
+    if (flight != null) {
+      flight.abandon();
+      flight = null;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Decides how requests are handled before being proxied to an upstream server.
+ *
+ * <p>When given an {@link UpstreamArchive} being replayed, requests are served from it without ever being proxied.
+ * Otherwise, GET requests have their responses recorded into it.
+ *
+ * <p>When given an {@link UpstreamCache}, GET requests are served from it when possible, and have their responses
+ * stored into it otherwise.
+ *
+ * <p>When given a {@link SingleFlight}, concurrent identical GET requests wait for the first one's response,
+ * which is replayed to them, rather than being proxied.
+ */
+class ProxyPolicy {
+  private static final Logger LOG = Log.getLogger(ProxyPolicy.class);
+  private static final String UNCOALESCED_ATTRIBUTE = ProxyPolicy.class.getName() + ".uncoalesced";
+
+  private final Metrics.Route route;
+  private final SingleFlight singleFlight;
+  private final UpstreamCache cache;
+  private final UpstreamArchive archive;
+
+  ProxyPolicy(Metrics.Route route, SingleFlight singleFlight, UpstreamCache cache, UpstreamArchive archive) {
+    this.route = route;
+    this.singleFlight = singleFlight;
+    this.cache = cache;
+    this.archive = archive;
+  }
+
+  /** Serves the request from the archive if it's being replayed, and returns whether it did. */
+  boolean replay(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (archive == null || !archive.isReplaying()) {
+      return false;
+    }
+    UpstreamArchive.Record record = UpstreamArchive.canUse(request) ? archive.lookup(request) : null;
+    if (record == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "Not in the replayed archive");
+    } else {
+      UpstreamArchive.serve(record, response);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the exchange to proxy the request with, or {@code null} if it's been served from the cache,
+   * or waits for an identical request's response.
+   */
+  ProxyExchange exchange(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UpstreamCache.Capture capture = null;
+    if (cache != null && UpstreamCache.canUse(request)) {
+      UpstreamCache.Entry entry = cache.lookup(request);
+      if (entry != null && UpstreamCache.isFresh(entry, request)) {
+        cache.serve(entry, false, request, response);
+        return null;
+      }
+      capture = cache.capture(entry);
+    }
+    UpstreamArchive.Recording recording =
+        archive != null && UpstreamArchive.canUse(request) ? archive.record(request) : null;
+    if (singleFlight == null || !SingleFlight.canCoalesce(request)
+        || request.getAttribute(UNCOALESCED_ATTRIBUTE) != null) {
+      return new ProxyExchange(cache, capture, archive, recording, null);
+    }
+    CompletableFuture<SingleFlight.SharedResponse> shared = new CompletableFuture<>();
+    SingleFlight.Flight flight = singleFlight.join(request, shared);
+    if (flight == null) {
+      route.coalesced.incrementAndGet();
+      await(request, response, shared);
+      return null;
+    }
+    return new ProxyExchange(cache, capture, archive, recording, flight);
+  }
+
+  /** Replays the shared response once available, or dispatches the request again if the flight was abandoned. */
+  private void await(HttpServletRequest request, HttpServletResponse response,
+      CompletableFuture<SingleFlight.SharedResponse> shared) {
+    AsyncContext asyncContext = request.startAsync();
+    // The leader's proxy request has its own timeout.
+    asyncContext.setTimeout(0);
+    // Never completed exceptionally.
+    Object unused = shared.thenAccept(sharedResponse -> {
+      if (sharedResponse == null) {
+        request.setAttribute(UNCOALESCED_ATTRIBUTE, Boolean.TRUE);
+        asyncContext.dispatch();
+      } else {
+        asyncContext.start(() -> replay(asyncContext, response, sharedResponse));
+      }
+    });
+  }
+
+  private static void replay(AsyncContext asyncContext, HttpServletResponse response,
+      SingleFlight.SharedResponse sharedResponse) {
+    try {
+      response.setStatus(sharedResponse.status);
+      HttpUtil.setHeaders(response, sharedResponse.headers);
+      response.getOutputStream().write(sharedResponse.body);
+    } catch (IOException e) {
+      LOG.debug(e);
+    } finally {
+      asyncContext.complete();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package net.ltgt.gwt.devserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.NonBlockingThread;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * The web server's thread pool, optionally running jobs on virtual threads.
+ *
+ * <p>In virtual-thread mode, acceptors and selectors, which loop for the lifetime of the connector,
+ * still run on the pool's platform threads; everything else, request handling included, runs on a new
+ * virtual thread. This is what later Jetty versions do out of the box.
+ *
+ * <p>Virtual threads are only available on Java 21 and later, so they are looked up reflectively.
+ */
+class ServerThreadPool extends QueuedThreadPool {
+  private static final String ACCEPTOR_CLASS_NAME = AbstractConnector.class.getName() + "$Acceptor";
+
+  private final ExecutorService virtualThreads;
+  private final AtomicInteger virtualThreadsInFlight = new AtomicInteger();
+
+  /**
+   * Creates a thread pool; a {@code queueSize} of 0 means the queue is unbounded,
+   * and {@code virtualThreads} is {@code null} to only use platform threads.
+   */
+  ServerThreadPool(int minThreads, int maxThreads, int idleTimeout, int queueSize, ExecutorService virtualThreads) {
+    super(maxThreads, minThreads, idleTimeout, newQueue(minThreads, queueSize));
+    setName("devserver");
+    this.virtualThreads = virtualThreads;
+  }
+
+  private static BlockingArrayQueue<Runnable> newQueue(int minThreads, int queueSize) {
+    int capacity = Math.max(minThreads, 8);
+    return queueSize == 0
+        ? new BlockingArrayQueue<>(capacity, capacity)
+        : new BlockingArrayQueue<>(Math.min(capacity, queueSize), capacity, queueSize);
+  }
+
+  /**
+   * Returns an executor starting a new virtual thread for each task,
+   * or {@code null} if the JVM doesn't support virtual threads.
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "devserver-virtual-", 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  boolean isUsingVirtualThreads() {
+    return virtualThreads != null;
+  }
+
+  int getVirtualThreadsInFlight() {
+    return virtualThreadsInFlight.get();
+  }
+
+  @Override
+  public void execute(Runnable job) {
+    if (virtualThreads == null || isLongRunning(job) || !isRunning()) {
+      super.execute(job);
+      return;
+    }
+    virtualThreadsInFlight.incrementAndGet();
+    try {
+      virtualThreads.execute(() -> {
+        try {
+          job.run();
+        } finally {
+          virtualThreadsInFlight.decrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      virtualThreadsInFlight.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private static boolean isLongRunning(Runnable job) {
+    return job instanceof NonBlockingThread || job.getClass().getName().equals(ACCEPTOR_CLASS_NAME);
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    super.doStop();
+    if (virtualThreads != null) {
+      virtualThreads.shutdown();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Collapses concurrent identical GET requests into a single upstream fetch.
+ *
+ * <p>The first request for a given key leads a {@link Flight}: it's proxied as usual, and its response is
+ * buffered as it's being streamed to its client. Requests for the same key arriving before it completes wait
+ * for it, and are then sent the buffered response. If the response is bigger than {@code maxBufferSize} or the
+ * leader fails, waiters are told to make their own request instead.
+ *
+ * <p>Requests are identical when they have the same URI and the same values for the {@code varyHeaders}.
+ */
+class SingleFlight {
+  /** Request headers that the CodeServer's responses depend on. */
+  static final List<String> CODE_SERVER_VARY_HEADERS = Collections.unmodifiableList(
+      Arrays.asList("Accept-Encoding", "If-None-Match", "If-Modified-Since"));
+
+  /** Request headers that a web server's responses are likely to depend on. */
+  static final List<String> UPSTREAM_VARY_HEADERS = Collections.unmodifiableList(
+      Arrays.asList("Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie",
+          "If-None-Match", "If-Modified-Since"));
+
+  /** A response shared with waiters. */
+  static class SharedResponse {
+    final int status;
+    final List<Map.Entry<String, String>> headers;
+    final byte[] body;
+
+    SharedResponse(int status, List<Map.Entry<String, String>> headers, byte[] body) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  /** The leader's side of a flight; exactly one of {@link #complete} or {@link #abandon} must be called. */
+  class Flight {
+    private final String key;
+    // Guarded by flights.
+    private final List<CompletableFuture<SharedResponse>> waiters = new ArrayList<>();
+    // Only accessed by the leader.
+    private int status;
+    private List<Map.Entry<String, String>> headers;
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private Flight(String key) {
+      this.key = key;
+    }
+
+    void headers(int status, List<Map.Entry<String, String>> headers) {
+      this.status = status;
+      this.headers = headers;
+    }
+
+    void content(byte[] buffer, int offset, int length) {
+      if (body != null && body.size() + length <= maxBufferSize) {
+        body.write(buffer, offset, length);
+      } else {
+        // Too big to be shared; waiters will make their own request.
+        body = null;
+      }
+    }
+
+    void complete() {
+      finish(headers == null || body == null ? null : new SharedResponse(status, headers, body.toByteArray()));
+    }
+
+    void abandon() {
+      finish(null);
+    }
+
+    private void finish(SharedResponse response) {
+      List<CompletableFuture<SharedResponse>> waiters;
+      synchronized (flights) {
+        flights.remove(key);
+        waiters = new ArrayList<>(this.waiters);
+      }
+      for (CompletableFuture<SharedResponse> waiter : waiters) {
+        waiter.complete(response);
+      }
+    }
+  }
+
+  private final List<String> varyHeaders;
+  private final int maxBufferSize;
+  // Guarded by itself.
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  SingleFlight(List<String> varyHeaders, int maxBufferSize) {
+    this.varyHeaders = varyHeaders;
+    this.maxBufferSize = maxBufferSize;
+  }
+
+  /** Returns whether the request is an idempotent one, whose response can be shared. */
+  static boolean canCoalesce(HttpServletRequest request) {
+    return "GET".equals(request.getMethod()) && request.getHeader("Range") == null;
+  }
+
+  /**
+   * Returns a new flight that the request must lead, or {@code null} if it joined an identical request's flight.
+   * In the latter case, {@code waiter} will be completed with the shared response once the leader completes,
+   * or with {@code null} if the request has to be made anyway.
+   */
+  Flight join(HttpServletRequest request, CompletableFuture<SharedResponse> waiter) {
+    String key = key(request);
+    synchronized (flights) {
+      Flight flight = flights.get(key);
+      if (flight != null) {
+        flight.waiters.add(waiter);
+        return null;
+      }
+      flight = new Flight(key);
+      flights.put(key, flight);
+      return flight;
+    }
+  }
+
+  private String key(HttpServletRequest request) {
+    StringBuilder sb = new StringBuilder(request.getRequestURI());
+    if (request.getQueryString() != null) {
+      sb.append('?').append(request.getQueryString());
+    }
+    for (String header : varyHeaders) {
+      // Header values can't contain newlines, and are listed in a fixed order.
+      sb.append('\n');
+      for (String value : Collections.list(request.getHeaders(header))) {
+        sb.append(value).append(',');
+      }
+    }
+    return sb.toString();
+  }
+}
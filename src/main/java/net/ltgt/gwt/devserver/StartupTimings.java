@@ -0,0 +1,59 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each (possibly concurrent) startup phase took, relative to when startup began.
+ */
+class StartupTimings {
+  private final long origin = System.nanoTime();
+  private final List<Phase> phases = new ArrayList<>();
+
+  <T> T time(String name, Callable<T> task) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return task.call();
+    } finally {
+      record(name, start);
+    }
+  }
+
+  /** Records a phase that started at the given {@link System#nanoTime()} and just ended. */
+  void record(String name, long start) {
+    long end = System.nanoTime();
+    synchronized (phases) {
+      phases.add(new Phase(name, start - origin, end - start));
+    }
+  }
+
+  void log(TreeLogger logger) {
+    long total = System.nanoTime() - origin;
+    TreeLogger branch = logger.branch(TreeLogger.INFO, "Startup completed in " + millis(total) + " ms");
+    synchronized (phases) {
+      for (Phase phase : phases) {
+        branch.log(TreeLogger.INFO, String.format("%-30s %6d ms (started at +%d ms)",
+            phase.name, millis(phase.duration), millis(phase.offset)));
+      }
+    }
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private static class Phase {
+    final String name;
+    final long offset;
+    final long duration;
+
+    Phase(String name, long offset, long duration) {
+      this.name = name;
+      this.offset = offset;
+      this.duration = duration;
+    }
+  }
+}
@@ -0,0 +1,304 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.thirdparty.guava.common.hash.Hashing;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * An in-memory cache of the files in a directory, bounded by total byte size with LRU eviction.
+ *
+ * <p>Rather than checking files for modification on each hit, entries are invalidated by watching the
+ * directory tree for changes. The cache is started and stopped along with the server it's added to as a bean,
+ * and exposes its counters as an MXBean while running (they're also reported by {@link Metrics}.)
+ */
+class StaticFileCache extends AbstractLifeCycle implements StaticFileCacheMXBean {
+
+  /** Upper bound on the number of entries, as entries for missing or non-cacheable files have no size. */
+  private static final int MAX_ENTRIES = 16 * 1024;
+
+  /** Remembers that a path isn't a cacheable regular file. */
+  private static final Entry NOT_CACHEABLE = new Entry(new byte[0], 0);
+
+  /**
+   * Remembers that a path is missing. Such entries are checked again on each hit, as some watch services only
+   * notice created files when they next poll.
+   */
+  private static final Entry MISSING = new Entry(new byte[0], 0);
+
+  static class Entry {
+    final ByteBuffer content;
+    final long lastModified;
+    final String etag;
+
+    Entry(byte[] content, long lastModified) {
+      this.content = ByteBuffer.wrap(content).asReadOnlyBuffer();
+      this.lastModified = lastModified;
+      this.etag = '"' + Hashing.sha1().hashBytes(content).toString() + '"';
+    }
+
+    int size() {
+      return content.capacity();
+    }
+  }
+
+  private final Path root;
+  /** The root with symbolic links resolved, to detect aliases. */
+  private final Path realRoot;
+  private final long maxSize;
+  private final long maxFileSize;
+  private final TreeLogger logger;
+
+  // Guarded by itself.
+  private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private WatchService watchService;
+  private Thread watcher;
+  private ObjectName objectName;
+
+  StaticFileCache(Path root, long maxSize, TreeLogger logger) {
+    this(root, maxSize, maxSize / 8, logger);
+  }
+
+  /** Creates a cache that won't cache files bigger than {@code maxFileSize} bytes. */
+  StaticFileCache(Path root, long maxSize, long maxFileSize, TreeLogger logger) {
+    this.root = root.toAbsolutePath().normalize();
+    Path realRoot;
+    try {
+      realRoot = this.root.toRealPath();
+    } catch (IOException e) {
+      realRoot = this.root;
+    }
+    this.realRoot = realRoot;
+    this.maxSize = maxSize;
+    this.maxFileSize = maxFileSize;
+    this.logger = logger;
+  }
+
+  /**
+   * Returns the cached file at the given path relative to the root, loading it in the cache if needed.
+   *
+   * <p>Returns {@code null} if the path doesn't denote a regular file in the directory,
+   * if it's an alias (through a symbolic link, or differing in case on a case-insensitive file system),
+   * or if the file is too big to be cached. That outcome is cached too.
+   */
+  Entry get(String relativePath) throws IOException {
+    Path path = root.resolve(relativePath).normalize();
+    if (!path.startsWith(root) || path.equals(root)) {
+      return null;
+    }
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(path);
+    }
+    if (entry == MISSING ? Files.notExists(path, LinkOption.NOFOLLOW_LINKS) : entry != null) {
+      hits.incrementAndGet();
+      return entry == NOT_CACHEABLE || entry == MISSING ? null : entry;
+    }
+    misses.incrementAndGet();
+    long generation = invalidations.get();
+    entry = load(path);
+    synchronized (entries) {
+      // Don't cache possibly-stale content if anything changed while we were reading it.
+      if (generation == invalidations.get()) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+          size -= previous.size();
+        }
+        size += entry.size();
+        evict();
+      }
+    }
+    return entry == NOT_CACHEABLE || entry == MISSING ? null : entry;
+  }
+
+  private Entry load(Path path) throws IOException {
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (NoSuchFileException e) {
+      return MISSING;
+    }
+    if (!attrs.isRegularFile() || attrs.size() > maxFileSize) {
+      return NOT_CACHEABLE;
+    }
+    try {
+      // Leave aliases to DefaultServlet, that refuses them; they also wouldn't be invalidated when changed,
+      // as the watch service doesn't follow symbolic links.
+      if (!path.toRealPath().equals(realRoot.resolve(root.relativize(path)))) {
+        return NOT_CACHEABLE;
+      }
+      return new Entry(Files.readAllBytes(path), attrs.lastModifiedTime().toMillis());
+    } catch (NoSuchFileException e) {
+      return MISSING;
+    }
+  }
+
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while ((size > maxSize || entries.size() > MAX_ENTRIES) && it.hasNext()) {
+      Entry entry = it.next();
+      size -= entry.size();
+      it.remove();
+      // Only count entries that held content, as a measure of the cache pressure.
+      if (entry != NOT_CACHEABLE && entry != MISSING) {
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private void invalidate(Path path) {
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      // A directory could have been moved or deleted, so invalidate everything below the path too.
+      for (Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<Path, Entry> entry = it.next();
+        if (entry.getKey().startsWith(path)) {
+          size -= entry.getValue().size();
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private void invalidateAll() {
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      entries.clear();
+      size = 0;
+    }
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public long getSize() {
+    synchronized (entries) {
+      return size;
+    }
+  }
+
+  @Override
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public int getEntryCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    watchService = FileSystems.getDefault().newWatchService();
+    registerAll(root);
+    watcher = new Thread(this::watch, "StaticFileCache watcher for " + root);
+    watcher.setDaemon(true);
+    watcher.start();
+
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("net.ltgt.gwt.devserver:type=StaticFileCache,root=" + ObjectName.quote(root.toString()));
+    try {
+      mbeanServer.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException e) {
+      logger.log(TreeLogger.WARN, "Cannot register " + name, e);
+    }
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    if (objectName != null) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      objectName = null;
+    }
+    watchService.close();
+    watcher.join();
+    invalidateAll();
+  }
+
+  private void registerAll(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void watch() {
+    try {
+      for (;;) {
+        WatchKey key = watchService.take();
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            invalidateAll();
+            continue;
+          }
+          Path path = dir.resolve((Path) event.context());
+          invalidate(path);
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            try {
+              registerAll(path);
+              // Files could have been created before the directory was registered.
+              invalidate(path);
+            } catch (IOException e) {
+              logger.log(TreeLogger.WARN, "Cannot watch " + path + " for changes", e);
+            }
+          }
+        }
+        if (!key.reset()) {
+          invalidate(dir);
+        }
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      // stopping
+    }
+  }
+}
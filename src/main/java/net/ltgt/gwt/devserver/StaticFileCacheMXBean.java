@@ -0,0 +1,19 @@
+package net.ltgt.gwt.devserver;
+
+/**
+ * Management interface for {@link StaticFileCache}.
+ */
+public interface StaticFileCacheMXBean {
+  long getHits();
+
+  long getMisses();
+
+  long getEvictions();
+
+  /** Total size in bytes of the cached files. */
+  long getSize();
+
+  long getMaxSize();
+
+  int getEntryCount();
+}
@@ -0,0 +1,384 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.UnavailableException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.InclusiveByteRange;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlets.gzip.GzipHttpOutput;
+import org.eclipse.jetty.util.URIUtil;
+
+/**
+ * A {@link DefaultServlet} that sends big files, and ranges of any file, through pooled direct buffers,
+ * never copying them to the heap nor keeping them open or mapped past the request.
+ *
+ * <p>Precompressed {@code .br} and {@code .gz} sidecar files are sent to clients that accept them, and ranges are
+ * of the file being sent, with its own {@code ETag}. Other files are sent as-is rather than compressed on the fly.
+ * Single and multiple ranges are supported, the latter as {@code multipart/byteranges}, along with {@code If-Range}.
+ *
+ * <p>Directories, welcome files, smaller files, and aliases (symbolic links, or paths differing in case on
+ * case-insensitive file systems) are left to the {@link DefaultServlet}, that applies its alias checks.
+ * As with the {@link DefaultServlet}, the {@code pathInfoOnly} init parameter tells whether the servlet path
+ * is part of the file path, for servlets mapped to a prefix.
+ */
+class StreamingFileServlet extends DefaultServlet {
+
+  /** The content being sent. */
+  interface Content {
+    /** Writes the given region to the output, leaving it open. */
+    void writeTo(ServletOutputStream out, long offset, long length) throws IOException;
+  }
+
+  /** The size of the buffers files are read into. */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Requests for more ranges than that get the whole file, as that's hardly cheaper than sending it all. */
+  static final int MAX_RANGES = 16;
+
+  private final Path root;
+  /** The root with symbolic links resolved, to detect aliases. */
+  private final Path realRoot;
+  private final long threshold;
+  private boolean pathInfoOnly;
+
+  /** Creates a servlet sending files of {@code root} bigger than {@code threshold} bytes. */
+  StreamingFileServlet(Path root, long threshold) {
+    this.root = root.toAbsolutePath().normalize();
+    Path realRoot;
+    try {
+      realRoot = this.root.toRealPath();
+    } catch (IOException e) {
+      realRoot = this.root;
+    }
+    this.realRoot = realRoot;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public void init() throws UnavailableException {
+    super.init();
+    pathInfoOnly = Boolean.parseBoolean(getInitParameter("pathInfoOnly"));
+  }
+
+  /** Returns the path of the requested file, or {@code null} for included requests. */
+  String getPathInContext(HttpServletRequest request) {
+    if (request.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) != null) {
+      return null;
+    }
+    return pathInfoOnly
+        ? request.getPathInfo()
+        : URIUtil.addPaths(request.getServletPath(), request.getPathInfo());
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    String pathInContext = getPathInContext(request);
+    if (pathInContext != null && !pathInContext.endsWith("/")) {
+      Path path = root.resolve(pathInContext.substring(1)).normalize();
+      BasicFileAttributes attrs = path.startsWith(root) ? regularFile(path) : null;
+      if (attrs != null && (attrs.size() >= threshold || request.getHeader("Range") != null)
+          && !isAlias(path)) {
+        send(request, response, pathInContext, path, attrs);
+        return;
+      }
+    }
+    super.doGet(request, response);
+  }
+
+  private void send(HttpServletRequest request, HttpServletResponse response, String pathInContext, Path path,
+      BasicFileAttributes attrs) throws IOException {
+    String contentEncoding = null;
+    BasicFileAttributes sidecar;
+    if (HttpUtil.accepts(request, "br") && (sidecar = regularFile(sibling(path, ".br"))) != null) {
+      contentEncoding = "br";
+      path = sibling(path, ".br");
+      attrs = sidecar;
+    } else if (HttpUtil.acceptsGzip(request) && (sidecar = regularFile(sibling(path, ".gz"))) != null) {
+      contentEncoding = "gzip";
+      path = sibling(path, ".gz");
+      attrs = sidecar;
+    }
+    long lastModified = attrs.lastModifiedTime().toMillis();
+    String etag = '"' + Long.toHexString(lastModified) + "-" + Long.toHexString(attrs.size()) + '"';
+    if (contentEncoding != null) {
+      etag = CompressedResponseCache.etag(etag, contentEncoding);
+    }
+    // Big files are cheaper to send as-is than to compress on each request.
+    noCompression(request);
+    ByteBufferPool bufferPool = baseRequest(request).getHttpChannel().getByteBufferPool();
+    Path file = path;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      send(request, response, getServletContext().getMimeType(pathInContext), contentEncoding, etag, lastModified,
+          channel.size(), (out, offset, length) -> {
+            ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE, true);
+            try {
+              for (long position = offset, end = offset + length; position < end; ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                  throw new EOFException(file + " was truncated");
+                }
+                buffer.flip();
+                // Blocks until written, so the buffer can be reused right away.
+                HttpUtil.write(out, buffer);
+                position += read;
+              }
+            } finally {
+              bufferPool.release(buffer);
+            }
+          });
+    } catch (NoSuchFileException e) {
+      // Deleted in the mean time.
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+  }
+
+  /**
+   * Sends the content with the given metadata, handling conditional and range requests.
+   *
+   * <p>The {@code contentEncoding} tells whether the content is already compressed; ranges of uncompressed
+   * content won't be compressed by any filter.
+   */
+  void send(HttpServletRequest request, HttpServletResponse response, String mimeType, String contentEncoding,
+      String etag, long lastModified, long size, Content content) throws IOException {
+    response.addHeader("Vary", "Accept-Encoding");
+    response.setHeader("Accept-Ranges", "bytes");
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null
+        ? HttpUtil.matches(ifNoneMatch, etag)
+        : dateHeader(request, "If-Modified-Since") >= lastModified / 1000 * 1000) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    if (contentEncoding != null) {
+      response.setHeader("Content-Encoding", contentEncoding);
+    }
+
+    String range = request.getHeader("Range");
+    List<InclusiveByteRange> ranges = range != null && ifRange(request, etag, lastModified)
+        ? ranges(range, size)
+        : null;
+    if (ranges != null) {
+      // Ranges are of what we send.
+      noCompression(request);
+    }
+    boolean head = "HEAD".equals(request.getMethod());
+    if (ranges == null) {
+      if (mimeType != null) {
+        response.setContentType(mimeType);
+      }
+      response.setContentLengthLong(size);
+      if (!head) {
+        content.writeTo(response.getOutputStream(), 0, size);
+      }
+    } else if (ranges.isEmpty()) {
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      response.setHeader("Content-Range", InclusiveByteRange.to416HeaderRangeString(size));
+      response.setContentLength(0);
+    } else if (ranges.size() == 1) {
+      InclusiveByteRange only = ranges.get(0);
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range", only.toHeaderRangeString(size));
+      if (mimeType != null) {
+        response.setContentType(mimeType);
+      }
+      response.setContentLengthLong(only.getSize(size));
+      if (!head) {
+        content.writeTo(response.getOutputStream(), only.getFirst(), only.getSize(size));
+      }
+    } else {
+      String boundary = "devserver" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+      List<ByteBuffer> partHeaders = new ArrayList<>(ranges.size() + 1);
+      long contentLength = 0;
+      for (InclusiveByteRange part : ranges) {
+        partHeaders.add(ascii((partHeaders.isEmpty() ? "" : "\r\n") + "--" + boundary + "\r\n"
+            + (mimeType == null ? "" : "Content-Type: " + mimeType + "\r\n")
+            + "Content-Range: " + part.toHeaderRangeString(size) + "\r\n\r\n"));
+        contentLength += part.getSize(size);
+      }
+      partHeaders.add(ascii("\r\n--" + boundary + "--\r\n"));
+      for (ByteBuffer partHeader : partHeaders) {
+        contentLength += partHeader.remaining();
+      }
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setContentType("multipart/byteranges; boundary=" + boundary);
+      response.setContentLengthLong(contentLength);
+      if (!head) {
+        ServletOutputStream out = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+          HttpUtil.write(out, partHeaders.get(i));
+          content.writeTo(out, ranges.get(i).getFirst(), ranges.get(i).getSize(size));
+        }
+        HttpUtil.write(out, partHeaders.get(ranges.size()));
+      }
+    }
+  }
+
+  /**
+   * Tells the gzip filter not to compress the response, if it hasn't decided yet. Its output is looked up on the base
+   * response, as filters such as the {@link PreloadHintsFilter} wrap the response.
+   */
+  private static void noCompression(HttpServletRequest request) {
+    HttpOutput httpOutput = baseRequest(request).getResponse().getHttpOutput();
+    if (httpOutput instanceof GzipHttpOutput) {
+      ((GzipHttpOutput) httpOutput).noCompressionIfPossible();
+    }
+  }
+
+  private static Request baseRequest(HttpServletRequest request) {
+    return request instanceof Request
+        ? (Request) request
+        : HttpChannel.getCurrentHttpChannel().getRequest();
+  }
+
+  /** Returns whether the path, under the root, resolves to another path once symbolic links are followed. */
+  private boolean isAlias(Path path) throws IOException {
+    try {
+      return !path.toRealPath().equals(realRoot.resolve(root.relativize(path)));
+    } catch (NoSuchFileException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Returns whether the ranges are to be sent, i.e. there's no {@code If-Range} precondition, or it matches
+   * the content being sent. Entity-tags are compared strongly, and dates must be exactly the modification date.
+   */
+  static boolean ifRange(HttpServletRequest request, String etag, long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(etag);
+    }
+    long date = dateHeader(request, "If-Range");
+    return date != -1 && date == lastModified / 1000 * 1000;
+  }
+
+  /** Returns the value of a date header, or -1 if it's absent or not a valid date. */
+  private static long dateHeader(HttpServletRequest request, String name) {
+    String value = request.getHeader(name);
+    return value == null ? -1 : HttpUtil.parseDate(value);
+  }
+
+  /**
+   * Parses a {@code Range} header into the satisfiable ranges of a content of the given size, in ascending order
+   * and coalescing those that overlap or are adjacent.
+   *
+   * <p>Returns {@code null} if the header is to be ignored, as it's malformed or asks for too many ranges,
+   * and an empty list if no range is satisfiable.
+   */
+  static List<InclusiveByteRange> ranges(String header, long size) {
+    int eq = header.indexOf('=');
+    if (eq < 0 || !header.substring(0, eq).trim().equalsIgnoreCase("bytes")) {
+      return null;
+    }
+    List<InclusiveByteRange> ranges = new ArrayList<>();
+    int count = 0;
+    for (String spec : header.substring(eq + 1).split(",")) {
+      spec = spec.trim();
+      if (spec.isEmpty()) {
+        continue;
+      }
+      if (++count > MAX_RANGES) {
+        return null;
+      }
+      int dash = spec.indexOf('-');
+      long first;
+      long last;
+      try {
+        if (dash == 0) {
+          long suffixLength = parseDigits(spec.substring(1));
+          first = Math.max(0, size - suffixLength);
+          last = suffixLength == 0 ? -1 : size - 1;
+        } else if (dash > 0) {
+          first = parseDigits(spec.substring(0, dash));
+          if (dash == spec.length() - 1) {
+            last = size - 1;
+          } else {
+            last = parseDigits(spec.substring(dash + 1));
+            if (last < first) {
+              return null;
+            }
+            last = Math.min(last, size - 1);
+          }
+        } else {
+          return null;
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (first <= last) {
+        ranges.add(new InclusiveByteRange(first, last));
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+    ranges.sort(Comparator.comparingLong(InclusiveByteRange::getFirst));
+    List<InclusiveByteRange> coalesced = new ArrayList<>(ranges.size());
+    for (InclusiveByteRange range : ranges) {
+      InclusiveByteRange previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+      if (previous != null && range.getFirst() <= previous.getLast() + 1) {
+        coalesced.set(coalesced.size() - 1,
+            new InclusiveByteRange(previous.getFirst(), Math.max(previous.getLast(), range.getLast())));
+      } else {
+        coalesced.add(range);
+      }
+    }
+    return coalesced;
+  }
+
+  /** Parses a non-negative number, without sign or whitespace. */
+  private static long parseDigits(String s) {
+    if (s.isEmpty() || !s.chars().allMatch(c -> c >= '0' && c <= '9')) {
+      throw new NumberFormatException(s);
+    }
+    return Long.parseLong(s);
+  }
+
+  private static ByteBuffer ascii(String s) {
+    return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static Path sibling(Path path, String suffix) {
+    return path.resolveSibling(path.getFileName() + suffix);
+  }
+
+  /** Returns the attributes of a regular file, not following symbolic links, or {@code null}. */
+  private static BasicFileAttributes regularFile(Path path) throws IOException {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      return attrs.isRegularFile() ? attrs : null;
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+}
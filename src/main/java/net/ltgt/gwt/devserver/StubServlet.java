@@ -0,0 +1,87 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.thirdparty.guava.common.base.Charsets;
+import com.google.gwt.thirdparty.guava.common.hash.Hashing;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Serves a module's stub {@code *.nocache.js} from bytes computed once, as soon as the script is known
+ * (it depends on the CodeServer's port.)
+ *
+ * <p>Both the identity and gzip variants are precomputed, each with its own strong ETag,
+ * so a request only ever costs a header comparison and a write from a shared read-only buffer.
+ * The gzip variant sets {@code Content-Encoding} itself, which makes {@code AsyncGzipFilter} leave it alone.
+ */
+class StubServlet extends HttpServlet {
+  static final String CONTENT_TYPE = "application/javascript; charset=UTF-8";
+
+  private final CompletableFuture<Variants> variants;
+
+  StubServlet(CompletableFuture<String> script) {
+    variants = script.thenApply(Variants::new);
+  }
+
+  /** Returns a future completed once the stub can be served. */
+  CompletableFuture<?> ready() {
+    return variants;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    Variants variants = this.variants.getNow(null);
+    if (variants == null) {
+      // Requests are normally held until the CodeServer is ready; see CodeServerGateFilter.
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    Variant variant = HttpUtil.acceptsGzip(req) ? variants.gzip : variants.identity;
+    resp.setContentType(CONTENT_TYPE);
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.setHeader("Vary", "Accept-Encoding");
+    resp.setHeader("ETag", variant.etag);
+    if (HttpUtil.matches(req.getHeader("If-None-Match"), variant.etag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    if (variant == variants.gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+    }
+    resp.setContentLength(variant.buffer.remaining());
+    HttpUtil.send(resp, variant.buffer);
+  }
+
+  private static class Variants {
+    final Variant identity;
+    final Variant gzip;
+
+    Variants(String script) {
+      byte[] bytes = script.getBytes(Charsets.UTF_8);
+      String hash = Hashing.sha1().hashBytes(bytes).toString();
+      identity = new Variant(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), '"' + hash + '"');
+      try {
+        gzip = new Variant(CompressedResponseCache.gzip(identity.buffer),
+            CompressedResponseCache.etag(identity.etag, "gzip"));
+      } catch (IOException e) {
+        // Can't happen when compressing in memory.
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private static class Variant {
+    final ByteBuffer buffer;
+    final String etag;
+
+    Variant(ByteBuffer buffer, String etag) {
+      this.buffer = buffer;
+      this.etag = etag;
+    }
+  }
+}
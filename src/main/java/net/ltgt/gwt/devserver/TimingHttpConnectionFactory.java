@@ -0,0 +1,75 @@
+package net.ltgt.gwt.devserver;
+
+import java.nio.ByteBuffer;
+import org.eclipse.jetty.http.HttpGenerator;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.HttpInput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * Creates HTTP connections that record when each response is committed, i.e. when its first byte is sent.
+ *
+ * <p>This is done at the channel level, as every write ends up there, including {@code HttpOutput.sendContent}
+ * and the gzip filter's; wrapping the response instead would defeat those.
+ */
+class TimingHttpConnectionFactory extends HttpConnectionFactory {
+  TimingHttpConnectionFactory(HttpConfiguration config) {
+    super(config);
+  }
+
+  /** Returns the {@link System#nanoTime()} when the response was committed, or 0 if it isn't (or unknown.) */
+  static long getCommitNanos(Request request) {
+    HttpChannel<?> channel = request.getHttpChannel();
+    return channel instanceof TimingHttpConnection.TimingHttpChannel
+        ? ((TimingHttpConnection.TimingHttpChannel) channel).commitNanos
+        : 0;
+  }
+
+  @Override
+  public Connection newConnection(Connector connector, EndPoint endPoint) {
+    return configure(new TimingHttpConnection(getHttpConfiguration(), connector, endPoint), connector, endPoint);
+  }
+
+  private static class TimingHttpConnection extends HttpConnection {
+    TimingHttpConnection(HttpConfiguration config, Connector connector, EndPoint endPoint) {
+      super(config, connector, endPoint);
+    }
+
+    @Override
+    protected HttpChannelOverHttp newHttpChannel(HttpInput<ByteBuffer> httpInput) {
+      return new TimingHttpChannel(getConnector(), getHttpConfiguration(), getEndPoint(), httpInput);
+    }
+
+    class TimingHttpChannel extends HttpChannelOverHttp {
+      // Only accessed by the thread handling the request, or completing it.
+      volatile long commitNanos;
+
+      TimingHttpChannel(Connector connector, HttpConfiguration config, EndPoint endPoint,
+          HttpInput<ByteBuffer> input) {
+        super(connector, config, endPoint, TimingHttpConnection.this, input);
+      }
+
+      @Override
+      protected boolean sendResponse(HttpGenerator.ResponseInfo info, ByteBuffer content, boolean complete,
+          Callback callback) {
+        if (commitNanos == 0 && !isCommitted()) {
+          commitNanos = System.nanoTime();
+        }
+        return super.sendResponse(info, content, complete, callback);
+      }
+
+      @Override
+      public void reset() {
+        super.reset();
+        commitNanos = 0;
+      }
+    }
+  }
+}
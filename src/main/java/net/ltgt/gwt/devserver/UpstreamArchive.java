@@ -0,0 +1,408 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * An on-disk archive of upstream responses, either being recorded or replayed.
+ *
+ * <p>When recording, the responses to proxied GET requests are appended to the archive file (created if needed.)
+ * When replaying, the file is memory-mapped and indexed when the archive is started, and requests are served
+ * straight out of the mapped file, without contacting the upstream servers.
+ *
+ * <p>Requests match a recorded one when they have the same path, the same query parameters (in any order,
+ * except for {@code ignoredParams}), and the same values for the {@code matchedHeaders}.
+ * When a request was recorded several times, the latest response wins.
+ *
+ * <p>The file is a sequence of records, each made of a magic number, the request's target and headers, and
+ * the response's status, headers and body; integers are big-endian and strings are length-prefixed UTF-8.
+ * Archives are meant to be shared, so only the matched request headers are recorded, credentials among them
+ * ({@code Authorization}, {@code Proxy-Authorization} and {@code Cookie}, which aren't matched by default) only
+ * as SHA-256 digests, and {@code Set-Cookie} response headers aren't recorded at all. The ignored query parameters
+ * can thus be changed when replaying, but headers can only be matched if they were recorded. Records are only ever appended,
+ * and an incomplete trailing record (e.g. after a crash) is ignored, and overwritten by the next recording.
+ * Any other inconsistency, such as a file that isn't an archive, fails to start rather than losing data.
+ *
+ * <p>Responses are buffered in memory until complete, so those bigger than {@code maxBodySize} aren't recorded.
+ */
+class UpstreamArchive extends AbstractLifeCycle {
+  enum Mode { RECORD, REPLAY }
+
+  /** Request headers that a web server's responses are likely to depend on, other than credentials. */
+  static final List<String> DEFAULT_MATCHED_HEADERS = Collections.unmodifiableList(
+      Arrays.asList("Accept", "Accept-Language"));
+
+  /** Request headers that are only recorded as digests, in lower case. */
+  private static final Set<String> CREDENTIAL_HEADERS = new HashSet<>(Arrays.asList(
+      "authorization", "proxy-authorization", "cookie"));
+  /** Response headers that aren't recorded, in lower case. */
+  private static final Set<String> UNRECORDED_HEADERS = new HashSet<>(Arrays.asList("set-cookie", "set-cookie2"));
+
+  private static final int MAGIC = 0x47444152; // "GDAR"
+
+  /** The default maximum size of a recorded response body. */
+  static final int MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+  /** A recorded response, whose body is a slice of the mapped file. */
+  static class Record {
+    final int status;
+    final List<Map.Entry<String, String>> headers;
+    final ByteBuffer body;
+
+    Record(int status, List<Map.Entry<String, String>> headers, ByteBuffer body) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  /** The response to a request being recorded. */
+  class Recording {
+    private final String target;
+    private final List<Map.Entry<String, String>> requestHeaders;
+    // Only accessed by the proxying request.
+    private int status;
+    private List<Map.Entry<String, String>> headers;
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private Recording(String target, List<Map.Entry<String, String>> requestHeaders) {
+      this.target = target;
+      this.requestHeaders = requestHeaders;
+    }
+
+    void headers(int status, List<Map.Entry<String, String>> headers) {
+      this.status = status;
+      this.headers = headers;
+    }
+
+    void content(byte[] buffer, int offset, int length) {
+      if (body != null && body.size() + length <= maxBodySize) {
+        body.write(buffer, offset, length);
+      } else {
+        // Too big to be recorded.
+        body = null;
+      }
+    }
+  }
+
+  private final Path file;
+  private final Mode mode;
+  private final Set<String> ignoredParams;
+  private final List<String> matchedHeaders;
+  private final int maxBodySize;
+  private final TreeLogger logger;
+
+  /** Only set when recording; writes are synchronized on it. */
+  private volatile FileChannel channel;
+  /** Only set when replaying; never modified once started. */
+  private volatile Map<String, Record> records;
+
+  UpstreamArchive(Path file, Mode mode, Set<String> ignoredParams, List<String> matchedHeaders, TreeLogger logger) {
+    this(file, mode, ignoredParams, matchedHeaders, MAX_BODY_SIZE, logger);
+  }
+
+  UpstreamArchive(Path file, Mode mode, Set<String> ignoredParams, List<String> matchedHeaders, int maxBodySize,
+      TreeLogger logger) {
+    this.file = file;
+    this.mode = mode;
+    this.ignoredParams = ignoredParams;
+    this.matchedHeaders = matchedHeaders;
+    this.maxBodySize = maxBodySize;
+    this.logger = logger;
+  }
+
+  boolean isReplaying() {
+    return mode == Mode.REPLAY;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    if (mode == Mode.REPLAY) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new IOException("Archive " + file + " is bigger than 2GB");
+        }
+        // The mapping stays valid after the channel is closed.
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        Map<String, Record> records = new HashMap<>();
+        read(mapped, records);
+        this.records = records;
+        logger.log(TreeLogger.INFO, "Replaying " + records.size() + " responses from " + file);
+      }
+    } else {
+      FileChannel channel = FileChannel.open(file,
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        long end = channel.size() > Integer.MAX_VALUE
+            ? channel.size()
+            : read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null);
+        // Drops an incomplete trailing record.
+        channel.truncate(end);
+        channel.position(end);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+      this.channel = channel;
+      logger.log(TreeLogger.INFO, "Recording upstream responses to " + file);
+    }
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    records = null;
+    FileChannel channel = this.channel;
+    if (channel != null) {
+      this.channel = null;
+      synchronized (channel) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the records in the buffer, indexing them into {@code records} if not {@code null}, and returns the end
+   * of the last complete record; only a trailing record can be incomplete.
+   *
+   * @throws IOException if the buffer isn't an archive, or is corrupt
+   */
+  private int read(ByteBuffer buffer, Map<String, Record> records) throws IOException {
+    int end = 0;
+    try {
+      while (buffer.hasRemaining()) {
+        if (buffer.remaining() < Integer.BYTES) {
+          // Possibly the start of the magic number.
+          ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC);
+          magic.flip().limit(buffer.remaining());
+          if (!magic.equals(buffer)) {
+            throw corrupt(end);
+          }
+          break;
+        }
+        if (buffer.getInt() != MAGIC) {
+          throw corrupt(end);
+        }
+        String target = readString(buffer);
+        List<Map.Entry<String, String>> requestHeaders = parseHeaders(readString(buffer));
+        int status = buffer.getInt();
+        List<Map.Entry<String, String>> headers = parseHeaders(readString(buffer));
+        int length = buffer.getInt();
+        if (length < 0) {
+          throw corrupt(end);
+        }
+        if (length > buffer.remaining()) {
+          break;
+        }
+        ByteBuffer body = buffer.slice();
+        body.limit(length);
+        buffer.position(buffer.position() + length);
+        if (records != null) {
+          records.put(key(target, name -> values(requestHeaders, name)),
+              new Record(status, headers, body.asReadOnlyBuffer()));
+        }
+        end = buffer.position();
+      }
+    } catch (BufferUnderflowException e) {
+      // incomplete trailing record
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw corrupt(end);
+    }
+    return end;
+  }
+
+  private IOException corrupt(int end) {
+    return end == 0
+        ? new IOException(file + " isn't an upstream archive")
+        : new IOException("Archive " + file + " is corrupt after " + end + " bytes");
+  }
+
+  private static List<Map.Entry<String, String>> parseHeaders(String headers) {
+    List<Map.Entry<String, String>> parsed = new ArrayList<>();
+    for (String line : headers.split("\n")) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        parsed.add(new AbstractMap.SimpleImmutableEntry<>(line.substring(0, colon), line.substring(colon + 2)));
+      }
+    }
+    return parsed;
+  }
+
+  private static String formatHeaders(List<Map.Entry<String, String>> headers) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> header : headers) {
+      sb.append(header.getKey()).append(": ").append(header.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static List<String> values(List<Map.Entry<String, String>> headers, String name) {
+    List<String> values = new ArrayList<>();
+    for (Map.Entry<String, String> header : headers) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        values.add(header.getValue());
+      }
+    }
+    return values;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative length");
+    }
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Returns whether the request's response can be recorded or replayed. */
+  static boolean canUse(HttpServletRequest request) {
+    return "GET".equals(request.getMethod()) && request.getHeader("Range") == null;
+  }
+
+  /** Returns the recorded response for the request, or {@code null} if there's none. */
+  Record lookup(HttpServletRequest request) {
+    return records.get(key(target(request), name -> recordedValues(name, request)));
+  }
+
+  /** Sends the recorded response, without copying its body when possible. */
+  static void serve(Record record, HttpServletResponse response) throws IOException {
+    response.setStatus(record.status);
+    HttpUtil.setHeaders(response, record.headers);
+    response.setContentLength(record.body.remaining());
+    HttpUtil.send(response, record.body);
+  }
+
+  /** Starts recording the response to the request. */
+  Recording record(HttpServletRequest request) {
+    List<Map.Entry<String, String>> headers = new ArrayList<>();
+    for (String name : matchedHeaders) {
+      for (String value : recordedValues(name, request)) {
+        headers.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+      }
+    }
+    return new Recording(target(request), headers);
+  }
+
+  /** Returns the request's values for the header, as they're recorded. */
+  private static List<String> recordedValues(String name, HttpServletRequest request) {
+    List<String> values = Collections.list(request.getHeaders(name));
+    if (CREDENTIAL_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+      values.replaceAll(UpstreamArchive::digest);
+    }
+    return values;
+  }
+
+  private static String digest(String value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return "sha-256=" + Base64.getEncoder().encodeToString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM supports SHA-256.
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Appends the recorded response to the archive. */
+  void append(Recording recording) throws IOException {
+    if (recording.headers == null) {
+      return;
+    }
+    if (recording.body == null) {
+      logger.log(TreeLogger.WARN, "Not recording " + recording.target + ", its response is bigger than "
+          + maxBodySize + " bytes");
+      return;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(recording.body.size() + 256);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      writeString(out, recording.target);
+      writeString(out, formatHeaders(recording.requestHeaders));
+      out.writeInt(recording.status);
+      List<Map.Entry<String, String>> headers = new ArrayList<>(recording.headers);
+      headers.removeIf(header -> UNRECORDED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT)));
+      writeString(out, formatHeaders(headers));
+      out.writeInt(recording.body.size());
+      recording.body.writeTo(out);
+    }
+    ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+    FileChannel channel = this.channel;
+    if (channel == null) {
+      // stopped
+      return;
+    }
+    synchronized (channel) {
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String target(HttpServletRequest request) {
+    return request.getQueryString() == null
+        ? request.getRequestURI()
+        : request.getRequestURI() + '?' + request.getQueryString();
+  }
+
+  /** Returns the key that matching requests share, given their target and a way to get their header values. */
+  private String key(String target, Function<String, List<String>> headers) {
+    int question = target.indexOf('?');
+    StringBuilder sb = new StringBuilder(question < 0 ? target : target.substring(0, question));
+    if (question >= 0) {
+      List<String> params = new ArrayList<>();
+      for (String param : target.substring(question + 1).split("&")) {
+        int eq = param.indexOf('=');
+        if (!param.isEmpty() && !ignoredParams.contains(eq < 0 ? param : param.substring(0, eq))) {
+          params.add(param);
+        }
+      }
+      Collections.sort(params);
+      if (!params.isEmpty()) {
+        sb.append('?').append(String.join("&", params));
+      }
+    }
+    for (String header : matchedHeaders) {
+      // Header values can't contain newlines, and are listed in a fixed order.
+      sb.append('\n').append(header.toLowerCase(Locale.ROOT)).append(':');
+      for (String value : headers.apply(header)) {
+        sb.append(value).append(',');
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,480 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpFields;
+
+/**
+ * Keeps the responses of the {@code -proxyTo} origins in memory, following the HTTP caching rules of a shared cache.
+ *
+ * <p>Only {@code 200} responses to {@code GET} requests are stored, and only if they're fresh for some time
+ * ({@code s-maxage}, {@code max-age} or {@code Expires}) or can be revalidated ({@code ETag} or
+ * {@code Last-Modified}); no heuristic freshness is applied. Responses are stored per URL and, within a URL,
+ * per value of the request headers they {@code Vary} on. Stale responses are revalidated with a conditional
+ * request, and served again if the origin responds with {@code 304 Not Modified}.
+ *
+ * <p>The cache is bounded by the total byte size of the responses, with LRU eviction.
+ */
+class UpstreamCache {
+  /** The response headers that a {@code 304 Not Modified} updates. */
+  private static final List<String> REVALIDATED_HEADERS = Collections.unmodifiableList(
+      Arrays.asList("Cache-Control", "Date", "ETag", "Expires", "Last-Modified"));
+
+  /** The response headers that are sent along a {@code 304 Not Modified}. */
+  private static final TreeSet<String> NOT_MODIFIED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+  static {
+    NOT_MODIFIED_HEADERS.addAll(REVALIDATED_HEADERS);
+    NOT_MODIFIED_HEADERS.add("Content-Location");
+    NOT_MODIFIED_HEADERS.add("Vary");
+  }
+
+  /** A stored response. */
+  static class Entry {
+    final List<Map.Entry<String, String>> headers;
+    final byte[] body;
+    /** The values of the request headers that the response varies on, keyed by lower-cased name. */
+    final Map<String, String> varyValues;
+    final String etag;
+    final String lastModified;
+    /** When the response was received, per {@link System#currentTimeMillis()}. */
+    final long responseTime;
+    /** The response's age when it was received. */
+    final long initialAgeMillis;
+    final long freshnessLifetimeMillis;
+
+    Entry(List<Map.Entry<String, String>> headers, byte[] body, Map<String, String> varyValues, String etag,
+        String lastModified, long responseTime, long initialAgeMillis, long freshnessLifetimeMillis) {
+      this.headers = headers;
+      this.body = body;
+      this.varyValues = varyValues;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.responseTime = responseTime;
+      this.initialAgeMillis = initialAgeMillis;
+      this.freshnessLifetimeMillis = freshnessLifetimeMillis;
+    }
+
+    long ageMillis(long now) {
+      return initialAgeMillis + Math.max(0, now - responseTime);
+    }
+
+    boolean hasValidators() {
+      return etag != null || lastModified != null;
+    }
+
+    long size() {
+      long size = body.length;
+      for (Map.Entry<String, String> header : headers) {
+        size += header.getKey().length() + header.getValue().length();
+      }
+      return size;
+    }
+  }
+
+  /**
+   * The response being proxied for a request that couldn't be served from the cache, possibly revalidating
+   * a stale {@link Entry}.
+   */
+  class Capture {
+    final Entry stale;
+    private final long requestTime = System.currentTimeMillis();
+    // Only accessed by the proxying request.
+    private int status;
+    private List<Map.Entry<String, String>> headers;
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private Capture(Entry stale) {
+      this.stale = stale;
+    }
+
+    /** Records the status of the response, once its headers are received. */
+    void status(int status) {
+      this.status = status;
+      if (stale != null && status != HttpServletResponse.SC_NOT_MODIFIED) {
+        misses.incrementAndGet();
+      }
+    }
+
+    /** Records the headers of the response being proxied, when it's not a revalidation's {@code 304}. */
+    void headers(List<Map.Entry<String, String>> headers) {
+      this.headers = headers;
+    }
+
+    /** Returns whether the stale entry was revalidated, and can be served again. */
+    boolean isNotModified() {
+      return stale != null && status == HttpServletResponse.SC_NOT_MODIFIED;
+    }
+
+    void content(byte[] buffer, int offset, int length) {
+      if (body != null && body.size() + length <= maxSize) {
+        body.write(buffer, offset, length);
+      } else {
+        // Too big to be stored.
+        body = null;
+      }
+    }
+  }
+
+  private final long maxSize;
+
+  // Guarded by itself.
+  private final LinkedHashMap<String, List<Entry>> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  UpstreamCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Returns whether the request can be served from the cache, and its response stored. */
+  static boolean canUse(HttpServletRequest request) {
+    return "GET".equals(request.getMethod())
+        && request.getHeader("Range") == null
+        && request.getHeader("Authorization") == null
+        && !directives(request.getHeaders("Cache-Control")).containsKey("no-store");
+  }
+
+  /** Returns the stored response for the request, fresh or stale, or {@code null} if there's none. */
+  Entry lookup(HttpServletRequest request) {
+    List<Entry> variants;
+    synchronized (entries) {
+      variants = entries.get(key(request));
+    }
+    if (variants != null) {
+      for (Entry entry : variants) {
+        if (matches(entry, request)) {
+          return entry;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Returns whether the entry can be used for the request without revalidating it. */
+  static boolean isFresh(Entry entry, HttpServletRequest request) {
+    Map<String, String> directives = directives(request.getHeaders("Cache-Control"));
+    if (directives.containsKey("no-cache")
+        || (directives.isEmpty() && "no-cache".equals(request.getHeader("Pragma")))) {
+      return false;
+    }
+    long age = entry.ageMillis(System.currentTimeMillis());
+    long maxAge = seconds(directives.get("max-age"));
+    if (maxAge == 0 || (maxAge > 0 && age > TimeUnit.SECONDS.toMillis(maxAge))) {
+      return false;
+    }
+    return age < entry.freshnessLifetimeMillis;
+  }
+
+  /**
+   * Starts proxying a request that can't be served from the cache, revalidating the given stale entry if it has
+   * validators.
+   */
+  Capture capture(Entry stale) {
+    if (stale == null || !stale.hasValidators()) {
+      misses.incrementAndGet();
+      return new Capture(null);
+    }
+    return new Capture(stale);
+  }
+
+  /** Sends the entry, or a {@code 304 Not Modified} if the request's own validators match it. */
+  void serve(Entry entry, boolean revalidated, HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    (revalidated ? revalidations : hits).incrementAndGet();
+    long age = TimeUnit.MILLISECONDS.toSeconds(entry.ageMillis(System.currentTimeMillis()));
+    if (isNotModified(entry, request)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      List<Map.Entry<String, String>> headers = new ArrayList<>();
+      for (Map.Entry<String, String> header : entry.headers) {
+        if (NOT_MODIFIED_HEADERS.contains(header.getKey())) {
+          headers.add(header);
+        }
+      }
+      HttpUtil.setHeaders(response, headers);
+      response.setHeader("Age", String.valueOf(age));
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    HttpUtil.setHeaders(response, entry.headers);
+    response.setHeader("Age", String.valueOf(age));
+    response.getOutputStream().write(entry.body);
+  }
+
+  private static boolean isNotModified(Entry entry, HttpServletRequest request) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return entry.etag != null && HttpUtil.matches(ifNoneMatch, entry.etag);
+    }
+    String ifModifiedSince = request.getHeader("If-Modified-Since");
+    if (ifModifiedSince == null || entry.lastModified == null) {
+      return false;
+    }
+    long lastModified = HttpUtil.parseDate(entry.lastModified);
+    long since = HttpUtil.parseDate(ifModifiedSince);
+    return lastModified != -1 && since != -1 && lastModified <= since;
+  }
+
+  /**
+   * Updates the stale entry being revalidated with the {@code 304 Not Modified} response, and returns
+   * the updated entry.
+   */
+  Entry refresh(HttpServletRequest request, Capture capture, Response notModified) {
+    Entry stale = capture.stale;
+    HttpFields fields = notModified.getHeaders();
+    List<Map.Entry<String, String>> headers = new ArrayList<>();
+    for (Map.Entry<String, String> header : stale.headers) {
+      if (!containsIgnoreCase(REVALIDATED_HEADERS, header.getKey()) || !fields.containsKey(header.getKey())) {
+        headers.add(header);
+      }
+    }
+    for (String name : REVALIDATED_HEADERS) {
+      for (String value : fields.getValuesList(name)) {
+        headers.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+      }
+    }
+    long now = System.currentTimeMillis();
+    long freshnessLifetime = freshnessLifetimeMillis(directives(headers, "Cache-Control"),
+        value(headers, "Expires"), value(headers, "Date"), now);
+    Entry refreshed = new Entry(headers, stale.body, stale.varyValues, value(headers, "ETag"),
+        value(headers, "Last-Modified"), now, initialAgeMillis(fields, capture.requestTime, now),
+        Math.max(0, freshnessLifetime));
+    put(key(request), stale, refreshed);
+    return refreshed;
+  }
+
+  /** Stores the captured response if it's cacheable. */
+  void store(HttpServletRequest request, Capture capture, Response response) {
+    if (capture.status != HttpServletResponse.SC_OK || capture.headers == null || capture.body == null) {
+      return;
+    }
+    HttpFields fields = response.getHeaders();
+    Map<String, String> directives = directives(Collections.enumeration(fields.getValuesList("Cache-Control")));
+    if (directives.containsKey("no-store") || directives.containsKey("private") || fields.containsKey("Set-Cookie")) {
+      return;
+    }
+    Map<String, String> varyValues = new HashMap<>();
+    for (String vary : fields.getValuesList("Vary")) {
+      for (String name : vary.split(",")) {
+        name = name.trim().toLowerCase(Locale.ROOT);
+        if (name.equals("*")) {
+          return;
+        }
+        if (!name.isEmpty()) {
+          varyValues.put(name, value(request, name));
+        }
+      }
+    }
+    String etag = fields.get("ETag");
+    String lastModified = fields.get("Last-Modified");
+    long now = System.currentTimeMillis();
+    long freshnessLifetime = freshnessLifetimeMillis(directives, fields.get("Expires"), fields.get("Date"), now);
+    if (freshnessLifetime <= 0 && etag == null && lastModified == null) {
+      // Would never be used.
+      return;
+    }
+    Entry entry = new Entry(capture.headers, capture.body.toByteArray(), varyValues, etag, lastModified, now,
+        initialAgeMillis(fields, capture.requestTime, now), Math.max(0, freshnessLifetime));
+    if (entry.size() <= maxSize) {
+      put(key(request), null, entry);
+    }
+  }
+
+  /** Adds the entry, replacing {@code previous} if it's still there, or the variant with the same vary values. */
+  private void put(String key, Entry previous, Entry entry) {
+    synchronized (entries) {
+      List<Entry> variants = new ArrayList<>();
+      List<Entry> current = entries.get(key);
+      if (current != null) {
+        for (Entry variant : current) {
+          if (variant == previous || variant.varyValues.equals(entry.varyValues)) {
+            size -= variant.size();
+          } else {
+            variants.add(variant);
+          }
+        }
+      }
+      variants.add(entry);
+      size += entry.size();
+      // Copied on write, as lookups iterate outside of the lock.
+      entries.put(key, Collections.unmodifiableList(variants));
+      for (Iterator<List<Entry>> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+        for (Entry evicted : it.next()) {
+          size -= evicted.size();
+          evictions.incrementAndGet();
+        }
+        it.remove();
+      }
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getRevalidations() {
+    return revalidations.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getEvictions() {
+    return evictions.get();
+  }
+
+  long getSize() {
+    synchronized (entries) {
+      return size;
+    }
+  }
+
+  private static String key(HttpServletRequest request) {
+    return request.getQueryString() == null
+        ? request.getRequestURI()
+        : request.getRequestURI() + '?' + request.getQueryString();
+  }
+
+  private static boolean matches(Entry entry, HttpServletRequest request) {
+    for (Map.Entry<String, String> vary : entry.varyValues.entrySet()) {
+      if (!Objects.equals(vary.getValue(), value(request, vary.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns all the values of a request header, normalized for comparison, or {@code null} if there's none. */
+  private static String value(HttpServletRequest request, String name) {
+    List<String> values = Collections.list(request.getHeaders(name));
+    if (values.isEmpty()) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String value : values) {
+      for (String part : value.split(",")) {
+        if (sb.length() > 0) {
+          sb.append(',');
+        }
+        sb.append(part.trim());
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String value(List<Map.Entry<String, String>> headers, String name) {
+    for (Map.Entry<String, String> header : headers) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static boolean containsIgnoreCase(List<String> names, String name) {
+    for (String candidate : names) {
+      if (candidate.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns how long the response is fresh for, or -1 if it doesn't say.
+   *
+   * <p>{@code Expires} is relative to {@code Date}, so that the origin's clock doesn't need to be right.
+   */
+  private static long freshnessLifetimeMillis(Map<String, String> directives, String expires, String date, long now) {
+    if (directives.containsKey("no-cache")) {
+      return 0;
+    }
+    long seconds = seconds(directives.get("s-maxage"));
+    if (seconds < 0) {
+      seconds = seconds(directives.get("max-age"));
+    }
+    if (seconds >= 0) {
+      return TimeUnit.SECONDS.toMillis(seconds);
+    }
+    if (expires == null) {
+      return -1;
+    }
+    long expiresTime = HttpUtil.parseDate(expires);
+    if (expiresTime == -1) {
+      // Invalid dates, such as 0, mean already expired.
+      return 0;
+    }
+    long dateTime = date == null ? -1 : HttpUtil.parseDate(date);
+    return Math.max(0, expiresTime - (dateTime == -1 ? now : dateTime));
+  }
+
+  /** Returns the age of the response when received, from its {@code Age} header and the time it took. */
+  private static long initialAgeMillis(HttpFields fields, long requestTime, long responseTime) {
+    long age = seconds(fields.get("Age"));
+    return TimeUnit.SECONDS.toMillis(Math.max(0, age)) + Math.max(0, responseTime - requestTime);
+  }
+
+  private static long seconds(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static Map<String, String> directives(List<Map.Entry<String, String>> headers, String name) {
+    List<String> values = new ArrayList<>();
+    for (Map.Entry<String, String> header : headers) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        values.add(header.getValue());
+      }
+    }
+    return directives(Collections.enumeration(values));
+  }
+
+  /** Parses {@code Cache-Control} directives, keyed by lower-cased name; directives without a value map to "". */
+  static Map<String, String> directives(Enumeration<String> values) {
+    Map<String, String> directives = new HashMap<>();
+    while (values.hasMoreElements()) {
+      for (String directive : values.nextElement().split(",")) {
+        int eq = directive.indexOf('=');
+        String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+        if (name.isEmpty()) {
+          continue;
+        }
+        String value = eq < 0 ? "" : directive.substring(eq + 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        directives.put(name, value);
+      }
+    }
+    return directives;
+  }
+}
@@ -0,0 +1,212 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.core.ext.TreeLogger;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.PoolingHttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+
+/**
+ * The HTTP clients of the proxy servlets (to the CodeServers and to the {@code -proxyTo} origins), sharing the same
+ * settings, along with a {@link Breaker} per destination.
+ *
+ * <p>Each proxy servlet has its own client, and thus its own connection pools; pool occupancy and queued requests
+ * are summed by destination when reported.
+ */
+class UpstreamClients {
+  /** Thrown, or used as a failure, for requests that weren't sent upstream for lack of capacity. */
+  static class OpenCircuitException extends RejectedExecutionException {
+    final long retryAfterMillis;
+
+    OpenCircuitException(String origin, long retryAfterMillis) {
+      super("Circuit open for " + origin);
+      this.retryAfterMillis = retryAfterMillis;
+    }
+  }
+
+  /**
+   * A circuit breaker: after {@code failureThreshold} consecutive failures, requests are rejected for
+   * {@code openMillis}, after which a single request is let through to probe the destination.
+   * The breaker closes when the probe succeeds, and opens again otherwise.
+   */
+  static class Breaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    final String origin;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final TreeLogger logger;
+    final AtomicLong rejected = new AtomicLong();
+
+    // Guarded by this.
+    private State state = State.CLOSED;
+    private int failures;
+    /** When the breaker can be probed, while open or half-open. */
+    private long probeAt;
+
+    Breaker(String origin, int failureThreshold, long openMillis, TreeLogger logger) {
+      this.origin = origin;
+      this.failureThreshold = failureThreshold;
+      this.openMillis = openMillis;
+      this.logger = logger;
+    }
+
+    synchronized State getState() {
+      return state;
+    }
+
+    /**
+     * Returns whether a request can be sent to the destination; when half-open, only one request is let through
+     * (unless it takes longer than {@code openMillis} to complete.)
+     */
+    synchronized boolean tryAcquire(long nowMillis) {
+      if (state == State.CLOSED) {
+        return true;
+      }
+      if (nowMillis < probeAt) {
+        rejected.incrementAndGet();
+        return false;
+      }
+      state = State.HALF_OPEN;
+      probeAt = nowMillis + openMillis;
+      return true;
+    }
+
+    synchronized long retryAfterMillis(long nowMillis) {
+      return Math.max(probeAt - nowMillis, 0);
+    }
+
+    void success() {
+      State previous;
+      synchronized (this) {
+        previous = state;
+        state = State.CLOSED;
+        failures = 0;
+      }
+      if (previous != State.CLOSED) {
+        logger.log(TreeLogger.INFO, "Circuit closed for " + origin);
+      }
+    }
+
+    void failure(long nowMillis) {
+      synchronized (this) {
+        if (state == State.CLOSED && ++failures < failureThreshold) {
+          return;
+        }
+        // A failed probe, or one too many failures.
+        state = State.OPEN;
+        probeAt = nowMillis + openMillis;
+      }
+      logger.log(TreeLogger.WARN, "Circuit open for " + origin + ", rejecting requests for "
+          + TimeUnit.MILLISECONDS.toSeconds(openMillis) + "s");
+    }
+  }
+
+  /** Pool occupancy of a destination, summed over all clients. */
+  static class PoolStats {
+    int active;
+    int idle;
+    int max;
+    int queued;
+  }
+
+  private final int maxConnections;
+  private final int maxQueued;
+  private final long connectTimeout;
+  private final long idleTimeout;
+  private final long timeout;
+  private final int responseBufferSize;
+  private final int breakerFailures;
+  private final long breakerOpenMillis;
+  private final TreeLogger logger;
+
+  private final List<HttpClient> clients = new CopyOnWriteArrayList<>();
+  private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+  /**
+   * Creates clients' settings; {@code timeout} is the total timeout of proxied requests, 0 for none, and
+   * {@code breakerFailures} is 0 to disable circuit breaking.
+   */
+  UpstreamClients(int maxConnections, int maxQueued, long connectTimeout, long idleTimeout, long timeout,
+      int responseBufferSize, int breakerFailures, long breakerOpenMillis, TreeLogger logger) {
+    this.maxConnections = maxConnections;
+    this.maxQueued = maxQueued;
+    this.connectTimeout = connectTimeout;
+    this.idleTimeout = idleTimeout;
+    this.timeout = timeout;
+    this.responseBufferSize = responseBufferSize;
+    this.breakerFailures = breakerFailures;
+    this.breakerOpenMillis = breakerOpenMillis;
+    this.logger = logger;
+  }
+
+  /** The total timeout of proxied requests, 0 for none. */
+  long getTimeout() {
+    return timeout;
+  }
+
+  /** Applies the settings to the client, before it has created any connection, and registers it for reporting. */
+  void register(HttpClient client) {
+    client.setMaxConnectionsPerDestination(maxConnections);
+    client.setMaxRequestsQueuedPerDestination(maxQueued);
+    client.setConnectTimeout(connectTimeout);
+    client.setIdleTimeout(idleTimeout);
+    client.setResponseBufferSize(responseBufferSize);
+    clients.add(client);
+  }
+
+  void unregister(HttpClient client) {
+    clients.remove(client);
+  }
+
+  /** Returns the breaker for the destination, or {@code null} if circuit breaking is disabled. */
+  Breaker breaker(String scheme, String host, int port) {
+    if (breakerFailures <= 0) {
+      return null;
+    }
+    return breakers.computeIfAbsent(origin(scheme, host, port),
+        origin -> new Breaker(origin, breakerFailures, breakerOpenMillis, logger));
+  }
+
+  /** Returns the breakers that have been used, by origin. */
+  Map<String, Breaker> getBreakers() {
+    return new TreeMap<>(breakers);
+  }
+
+  /** Returns the occupancy of the connection pools, by origin. */
+  Map<String, PoolStats> getPoolStats() {
+    Map<String, PoolStats> stats = new TreeMap<>();
+    for (HttpClient client : clients) {
+      for (Destination destination : client.getDestinations()) {
+        PoolStats pool = stats.computeIfAbsent(
+            origin(destination.getScheme(), destination.getHost(), destination.getPort()), origin -> new PoolStats());
+        pool.max += client.getMaxConnectionsPerDestination();
+        if (destination instanceof HttpDestination) {
+          pool.queued += ((HttpDestination) destination).getHttpExchanges().size();
+        }
+        if (destination instanceof PoolingHttpDestination) {
+          PoolingHttpDestination<?> pooling = (PoolingHttpDestination<?>) destination;
+          pool.active += pooling.getConnectionPool().getActiveConnections().size();
+          pool.idle += pooling.getConnectionPool().getIdleConnections().size();
+        }
+      }
+    }
+    return stats;
+  }
+
+  static String origin(String scheme, String host, int port) {
+    if (port <= 0) {
+      port = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+    }
+    return scheme + "://" + host + ":" + port;
+  }
+}
@@ -0,0 +1,306 @@
+package net.ltgt.gwt.devserver;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.proxy.AsyncProxyServlet;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+/**
+ * A transparent proxy to an upstream server, that records its latency (up to its response headers)
+ * and failures into a {@link Metrics.Route}, separately from the devserver's own request handling.
+ *
+ * <p>Whether requests are actually proxied, and what sees their responses, is decided by a {@link ProxyPolicy}
+ * given an {@link UpstreamArchive}, an {@link UpstreamCache} and a {@link SingleFlight}; each proxied request's
+ * state is kept in a {@link ProxyExchange}.
+ *
+ * <p>When given an {@code origin}, requests are proxied to it rather than to the {@code proxyTo} init parameter;
+ * this is for origins that aren't known yet when the servlet is initialized.
+ *
+ * <p>When given {@link UpstreamClients}, the HTTP client is configured with their settings, and requests are
+ * rejected with a 503 when their destination's circuit breaker is open; failures up to the response headers
+ * count towards opening it. Requests rejected because too many of them are already queued also get a 503.
+ *
+ * <p>When given a {@link WebSocketTunnel}, WebSocket handshakes are tunnelled to the upstream server, with the same
+ * headers as proxied requests (honoring the {@code preserveHost} init parameter); those bypass all of the above.
+ */
+class UpstreamProxyServlet extends AsyncProxyServlet.Transparent {
+  private static final String EXCHANGE_ATTRIBUTE = UpstreamProxyServlet.class.getName() + ".exchange";
+
+  private final Metrics.Route route;
+  private final Supplier<String> origin;
+  private final ProxyPolicy policy;
+  private final UpstreamClients clients;
+  private final WebSocketTunnel tunnel;
+
+  UpstreamProxyServlet(Metrics.Route route, Options options) {
+    this.route = route;
+    this.origin = options.origin;
+    this.policy = new ProxyPolicy(route, options.singleFlight, options.cache, options.archive);
+    this.clients = options.clients;
+    this.tunnel = options.tunnel;
+  }
+
+  @Override
+  protected HttpClient newHttpClient() {
+    // Jetty's default has no SslContextFactory, so https upstream servers couldn't be connected to.
+    SslContextFactory sslContextFactory = new SslContextFactory();
+    sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+    return new HttpClient(sslContextFactory);
+  }
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    if (clients != null) {
+      setTimeout(clients.getTimeout());
+      clients.register(getHttpClient());
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (clients != null) {
+      clients.unregister(getHttpClient());
+    }
+    super.destroy();
+  }
+
+  /** Returns {@code target} with its scheme, host and port replaced by the given origin. */
+  static URI withOrigin(URI target, String origin) {
+    StringBuilder sb = new StringBuilder(origin).append(target.getRawPath());
+    if (target.getRawQuery() != null) {
+      sb.append('?').append(target.getRawQuery());
+    }
+    return URI.create(sb.toString());
+  }
+
+  @Override
+  protected URI rewriteURI(HttpServletRequest request) {
+    URI target = super.rewriteURI(request);
+    if (target == null || origin == null) {
+      return target;
+    }
+    String currentOrigin = origin.get();
+    return currentOrigin == null ? null : withOrigin(target, currentOrigin);
+  }
+
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    if (policy.replay(request, response)) {
+      return;
+    }
+    if (tunnel != null && WebSocketTunnel.isUpgrade(request)) {
+      tunnel(request, response);
+      return;
+    }
+    ProxyExchange exchange = policy.exchange(request, response);
+    if (exchange == null) {
+      return;
+    }
+    request.setAttribute(EXCHANGE_ATTRIBUTE, exchange);
+    boolean proxying = false;
+    try {
+      super.service(request, response);
+      // Otherwise, the request has been rejected before being proxied.
+      proxying = request.isAsyncStarted();
+    } finally {
+      if (!proxying) {
+        request.removeAttribute(EXCHANGE_ATTRIBUTE);
+        exchange.abandon();
+      }
+    }
+  }
+
+  private void tunnel(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    URI target = rewriteURI(request);
+    if (target == null) {
+      onProxyRewriteFailed(request, response);
+      return;
+    }
+    Request proxyRequest = getHttpClient().newRequest(target);
+    copyRequestHeaders(request, proxyRequest);
+    addProxyHeaders(request, proxyRequest);
+    SslContextFactory sslContextFactory = getHttpClient().getSslContextFactory();
+    long start = System.nanoTime();
+    tunnel.open(request, response, target, proxyRequest.getHeaders(), getTimeout(), sslContextFactory,
+        (status, failure) -> {
+          if (failure == null) {
+            long upstreamDuration = System.nanoTime() - start;
+            route.upstreamDuration.record(upstreamDuration);
+            MetricsFilter.upstreamDuration(request, upstreamDuration);
+          } else {
+            _log.debug(failure);
+            route.upstreamFailures.incrementAndGet();
+          }
+          onTunnelResponse(request, failure);
+        });
+  }
+
+  /** Called once the upstream server responded to a WebSocket handshake, or failed to. */
+  protected void onTunnelResponse(HttpServletRequest request, Throwable failure) {
+  }
+
+  @Override
+  protected void sendProxyRequest(HttpServletRequest request, HttpServletResponse response, Request proxyRequest) {
+    ProxyExchange exchange = (ProxyExchange) request.getAttribute(EXCHANGE_ATTRIBUTE);
+    UpstreamClients.Breaker breaker = clients == null
+        ? null
+        : clients.breaker(proxyRequest.getScheme(), proxyRequest.getHost(), proxyRequest.getPort());
+    if (breaker != null) {
+      long now = System.currentTimeMillis();
+      if (!breaker.tryAcquire(now)) {
+        onProxyResponseFailure(request, response, null,
+            new UpstreamClients.OpenCircuitException(breaker.origin, breaker.retryAfterMillis(now)));
+        return;
+      }
+      exchange.breaker(breaker);
+    }
+    exchange.start = System.nanoTime();
+    Object connectionEvent = FlightRecorderEvents.INSTANCE.beginConnectionAcquisition();
+    if (connectionEvent != null) {
+      // Requests begin once they've got a connection.
+      String destination =
+          UpstreamClients.origin(proxyRequest.getScheme(), proxyRequest.getHost(), proxyRequest.getPort());
+      proxyRequest.onRequestBegin(
+          r -> FlightRecorderEvents.INSTANCE.endConnectionAcquisition(connectionEvent, destination));
+    }
+    exchange.prepare(proxyRequest);
+    super.sendProxyRequest(request, response, proxyRequest);
+  }
+
+  @Override
+  protected void onServerResponseHeaders(HttpServletRequest request, HttpServletResponse response,
+      Response proxyResponse) {
+    ProxyExchange exchange = (ProxyExchange) request.getAttribute(EXCHANGE_ATTRIBUTE);
+    long upstreamDuration = System.nanoTime() - exchange.start;
+    route.upstreamDuration.record(upstreamDuration);
+    MetricsFilter.upstreamDuration(request, upstreamDuration);
+    UpstreamClients.Breaker breaker = exchange.takeBreaker();
+    if (breaker != null) {
+      breaker.success();
+    }
+    if (!exchange.status(proxyResponse.getStatus())) {
+      return;
+    }
+    super.onServerResponseHeaders(request, response, proxyResponse);
+    exchange.headers(proxyResponse.getStatus(), response);
+  }
+
+  @Override
+  protected void onResponseContent(HttpServletRequest request, HttpServletResponse response, Response proxyResponse,
+      byte[] buffer, int offset, int length, Callback callback) {
+    ProxyExchange exchange = (ProxyExchange) request.getAttribute(EXCHANGE_ATTRIBUTE);
+    exchange.content(buffer, offset, length);
+    super.onResponseContent(request, response, proxyResponse, buffer, offset, length, callback);
+  }
+
+  @Override
+  protected void onProxyResponseSuccess(HttpServletRequest request, HttpServletResponse response,
+      Response proxyResponse) {
+    // The request can't be used once completed by the superclass.
+    ProxyExchange exchange = (ProxyExchange) request.getAttribute(EXCHANGE_ATTRIBUTE);
+    request.removeAttribute(EXCHANGE_ATTRIBUTE);
+    UpstreamCache.Entry revalidated = exchange.success(request, proxyResponse);
+    if (revalidated != null) {
+      AsyncContext asyncContext = request.getAsyncContext();
+      asyncContext.start(() -> {
+        try {
+          exchange.serve(revalidated, request, response);
+        } catch (IOException e) {
+          _log.debug(e);
+        } finally {
+          asyncContext.complete();
+        }
+      });
+      return;
+    }
+    super.onProxyResponseSuccess(request, response, proxyResponse);
+    exchange.complete();
+  }
+
+  @Override
+  protected void onProxyResponseFailure(HttpServletRequest request, HttpServletResponse response,
+      Response proxyResponse, Throwable failure) {
+    ProxyExchange exchange = (ProxyExchange) request.getAttribute(EXCHANGE_ATTRIBUTE);
+    request.removeAttribute(EXCHANGE_ATTRIBUTE);
+    // Unset if the response already completed.
+    UpstreamClients.Breaker breaker = exchange == null ? null : exchange.takeBreaker();
+    boolean rejected = failure instanceof RejectedExecutionException;
+    if (rejected) {
+      route.upstreamRejected.incrementAndGet();
+    } else {
+      route.upstreamFailures.incrementAndGet();
+      if (breaker != null) {
+        breaker.failure(System.currentTimeMillis());
+      }
+    }
+    if (rejected) {
+      if (!response.isCommitted()) {
+        response.resetBuffer();
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        if (failure instanceof UpstreamClients.OpenCircuitException) {
+          long retryAfterMillis = ((UpstreamClients.OpenCircuitException) failure).retryAfterMillis;
+          // Rounded up, so that clients don't retry too early.
+          response.setIntHeader("Retry-After", (int) Math.max(TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999), 1));
+        }
+      }
+      request.getAsyncContext().complete();
+    } else {
+      super.onProxyResponseFailure(request, response, proxyResponse, failure);
+    }
+    if (exchange != null) {
+      exchange.abandon();
+    }
+  }
+
+  /** The optional collaborators of a {@link UpstreamProxyServlet}; all of them default to {@code null}. */
+  static class Options {
+    Supplier<String> origin;
+    SingleFlight singleFlight;
+    UpstreamCache cache;
+    UpstreamArchive archive;
+    UpstreamClients clients;
+    WebSocketTunnel tunnel;
+
+    Options origin(Supplier<String> origin) {
+      this.origin = origin;
+      return this;
+    }
+
+    Options singleFlight(SingleFlight singleFlight) {
+      this.singleFlight = singleFlight;
+      return this;
+    }
+
+    Options cache(UpstreamCache cache) {
+      this.cache = cache;
+      return this;
+    }
+
+    Options archive(UpstreamArchive archive) {
+      this.archive = archive;
+      return this;
+    }
+
+    Options clients(UpstreamClients clients) {
+      this.clients = clients;
+      return this;
+    }
+
+    Options tunnel(WebSocketTunnel tunnel) {
+      this.tunnel = tunnel;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package net.ltgt.gwt.devserver;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The origins that {@code -proxyTo} balances requests between.
+ *
+ * <p>Upstreams are taken out of rotation when they fail a health check (until they pass one again),
+ * or for {@link #EJECTION_MILLIS} after a connection error.
+ * When no upstream is available, all of them are considered, so that requests still have a chance to succeed.
+ */
+class Upstreams {
+  static final long EJECTION_MILLIS = 10_000;
+
+  enum Strategy {
+    ROUND_ROBIN, LEAST_IN_FLIGHT;
+
+    static Strategy parse(String value) {
+      switch (value.toLowerCase(Locale.ROOT)) {
+        case "roundrobin":
+          return ROUND_ROBIN;
+        case "leastinflight":
+          return LEAST_IN_FLIGHT;
+        default:
+          throw new IllegalArgumentException(value);
+      }
+    }
+  }
+
+  static class Upstream {
+    final String origin;
+    final AtomicInteger inFlight = new AtomicInteger();
+    volatile boolean healthy = true;
+    volatile long ejectedUntil;
+
+    Upstream(String origin) {
+      this.origin = origin;
+    }
+
+    boolean isAvailable(long now) {
+      return healthy && ejectedUntil <= now;
+    }
+
+    @Override
+    public String toString() {
+      return origin;
+    }
+  }
+
+  private final List<Upstream> upstreams;
+  private final Strategy strategy;
+  private final AtomicInteger next = new AtomicInteger();
+
+  Upstreams(List<String> origins, Strategy strategy) {
+    List<Upstream> upstreams = new ArrayList<>(origins.size());
+    for (String origin : origins) {
+      upstreams.add(new Upstream(origin));
+    }
+    this.upstreams = Collections.unmodifiableList(upstreams);
+    this.strategy = strategy;
+  }
+
+  /**
+   * Parses a comma-separated list of origins (scheme, host, and optional port), normalized without trailing slash.
+   *
+   * @throws IllegalArgumentException if a value isn't a valid HTTP or HTTPS origin
+   */
+  static List<String> parseOrigins(String value) {
+    List<String> origins = new ArrayList<>();
+    for (String origin : value.split(",")) {
+      origin = origin.trim();
+      if (origin.endsWith("/")) {
+        origin = origin.substring(0, origin.length() - 1);
+      }
+      URI uri;
+      try {
+        uri = new URI(origin);
+      } catch (URISyntaxException e) {
+        throw new IllegalArgumentException("Invalid origin: " + origin, e);
+      }
+      if (!("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))
+          || uri.getHost() == null || !uri.getRawPath().isEmpty()
+          || uri.getRawQuery() != null || uri.getRawFragment() != null || uri.getRawUserInfo() != null) {
+        throw new IllegalArgumentException("Not an HTTP or HTTPS origin: " + origin);
+      }
+      origins.add(origin);
+    }
+    return origins;
+  }
+
+  List<Upstream> getAll() {
+    return upstreams;
+  }
+
+  /**
+   * Chooses an upstream for a request, and counts it as in flight.
+   *
+   * <p>The request must then be {@link #release released}.
+   */
+  Upstream acquire() {
+    int size = upstreams.size();
+    // Start from a rotating index so ties are broken in round-robin fashion.
+    int start = Math.floorMod(next.getAndIncrement(), size);
+    long now = System.currentTimeMillis();
+    Upstream chosen = choose(start, now, false);
+    if (chosen == null) {
+      chosen = choose(start, now, true);
+    }
+    chosen.inFlight.incrementAndGet();
+    return chosen;
+  }
+
+  private Upstream choose(int start, long now, boolean includeUnavailable) {
+    Upstream chosen = null;
+    for (int i = 0; i < upstreams.size(); i++) {
+      Upstream candidate = upstreams.get((start + i) % upstreams.size());
+      if (!includeUnavailable && !candidate.isAvailable(now)) {
+        continue;
+      }
+      if (strategy == Strategy.ROUND_ROBIN) {
+        return candidate;
+      }
+      if (chosen == null || candidate.inFlight.get() < chosen.inFlight.get()) {
+        chosen = candidate;
+      }
+    }
+    return chosen;
+  }
+
+  void release(Upstream upstream) {
+    upstream.inFlight.decrementAndGet();
+  }
+
+  /** Takes the upstream out of rotation for a while, after a connection error. */
+  void eject(Upstream upstream) {
+    upstream.ejectedUntil = System.currentTimeMillis() + EJECTION_MILLIS;
+  }
+
+  void setHealthy(Upstream upstream, boolean healthy) {
+    upstream.healthy = healthy;
+    if (healthy) {
+      upstream.ejectedUntil = 0;
+    }
+  }
+}
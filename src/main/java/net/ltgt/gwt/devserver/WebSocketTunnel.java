@@ -0,0 +1,495 @@
+package net.ltgt.gwt.devserver;
+
+import javax.net.ssl.SSLEngine;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpParser;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.io.AbstractConnection;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.SelectChannelEndPoint;
+import org.eclipse.jetty.io.SelectorManager;
+import org.eclipse.jetty.io.ssl.SslConnection;
+import org.eclipse.jetty.proxy.ProxyConnection;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+/**
+ * Tunnels WebSocket connections to upstream servers.
+ *
+ * <p>The handshake request is sent to the upstream server as-is (with the headers prepared by the proxy servlet),
+ * and its response relayed to the client. Once both sides have switched protocols, bytes are relayed in both
+ * directions without looking at the frames, so that subprotocols and extensions work unchanged.
+ * Each direction reads into a single buffer of at most {@code bufferSize} bytes, and only reads again once
+ * it's been written to the other side, so a slow reader holds up the writer rather than piling up data.
+ *
+ * <p>Tunnels have a long idle timeout (WebSocket connections can legitimately stay quiet for a while), and are
+ * closed when either side closes its connection. {@code https} upstream servers are connected to with the
+ * proxy's {@link SslContextFactory}.
+ */
+class WebSocketTunnel extends ContainerLifeCycle {
+  /** The maximum size of the body of a response refusing to switch protocols. */
+  private static final int MAX_REFUSAL_SIZE = 64 * 1024;
+  /** How long a tunnel can stay quiet before being closed, e.g. when the other end vanished without notice. */
+  private static final long IDLE_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+  private static final Set<String> HOP_HEADERS = new HashSet<>(Arrays.asList(
+      "connection", "keep-alive", "transfer-encoding", "content-length", "upgrade"));
+
+  private final ByteBufferPool bufferPool;
+  private final int bufferSize;
+  private final SelectorManager selectorManager;
+
+  WebSocketTunnel(Executor executor, Scheduler scheduler, ByteBufferPool bufferPool, long connectTimeout,
+      int bufferSize) {
+    this.bufferPool = bufferPool;
+    this.bufferSize = bufferSize;
+    this.selectorManager = new SelectorManager(executor, scheduler, 1) {
+      @Override
+      protected EndPoint newEndPoint(SocketChannel channel, ManagedSelector selector, SelectionKey key) {
+        return new SelectChannelEndPoint(channel, selector, key, getScheduler(), 0);
+      }
+
+      @Override
+      public Connection newConnection(SocketChannel channel, EndPoint endPoint, Object attachment) {
+        Handshake handshake = (Handshake) attachment;
+        endPoint.setIdleTimeout(handshake.timeout);
+        if (handshake.sslEngine == null) {
+          return new HandshakeConnection(endPoint, getExecutor(), handshake);
+        }
+        SslConnection sslConnection = new SslConnection(bufferPool, getExecutor(), endPoint, handshake.sslEngine);
+        EndPoint decryptedEndPoint = sslConnection.getDecryptedEndPoint();
+        decryptedEndPoint.setConnection(new HandshakeConnection(decryptedEndPoint, getExecutor(), handshake));
+        return sslConnection;
+      }
+
+      @Override
+      protected void connectionFailed(SocketChannel channel, Throwable failure, Object attachment) {
+        close(channel);
+        getExecutor().execute(() -> ((Handshake) attachment).fail(failure));
+      }
+    };
+    selectorManager.setConnectTimeout(connectTimeout);
+    addBean(selectorManager);
+  }
+
+  /** Returns whether the request is a WebSocket handshake. */
+  static boolean isUpgrade(HttpServletRequest request) {
+    if (!"GET".equals(request.getMethod()) || !HttpVersion.HTTP_1_1.is(request.getProtocol())
+        || !"websocket".equalsIgnoreCase(request.getHeader("Upgrade"))) {
+      return false;
+    }
+    for (Enumeration<String> values = request.getHeaders("Connection"); values.hasMoreElements(); ) {
+      for (String token : values.nextElement().split(",")) {
+        if ("upgrade".equalsIgnoreCase(token.trim())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends the handshake to {@code target} with the given headers (a {@code Host} is added if there's none),
+   * then either tunnels the connection or relays the refusal.
+   *
+   * <p>The {@code listener} is called with the upstream server's response status, or the failure to get it,
+   * before anything is sent to the client; failures are responded with a 504 for timeouts, or a 502.
+   * {@code timeout} bounds the handshake, 0 for none. The {@code sslContextFactory} is used for {@code https}
+   * targets.
+   */
+  void open(HttpServletRequest request, HttpServletResponse response, URI target, HttpFields headers, long timeout,
+      SslContextFactory sslContextFactory, BiConsumer<Integer, Throwable> listener) {
+    Request baseRequest = request instanceof Request
+        ? (Request) request
+        : HttpChannel.getCurrentHttpChannel().getRequest();
+    AsyncContext asyncContext = request.startAsync();
+    // The upstream connection has its own timeouts.
+    asyncContext.setTimeout(0);
+    boolean secure = "https".equalsIgnoreCase(target.getScheme());
+    int port = target.getPort() < 0 ? (secure ? 443 : 80) : target.getPort();
+    SSLEngine sslEngine = null;
+    if (secure && sslContextFactory != null) {
+      sslEngine = sslContextFactory.newSSLEngine(target.getHost(), port);
+      sslEngine.setUseClientMode(true);
+    }
+    Handshake handshake = new Handshake(baseRequest, response, asyncContext, requestHead(request, target, headers),
+        timeout, sslEngine, listener);
+    if (secure ? sslEngine == null : !"http".equalsIgnoreCase(target.getScheme())) {
+      handshake.fail(new IOException("Cannot tunnel WebSockets to " + target.getScheme() + " origins"));
+      return;
+    }
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      channel.socket().setTcpNoDelay(true);
+      channel.socket().setKeepAlive(true);
+      channel.configureBlocking(false);
+      channel.connect(new InetSocketAddress(target.getHost(), port));
+      selectorManager.connect(channel, handshake);
+    } catch (IOException | RuntimeException e) {
+      close(channel);
+      handshake.fail(e);
+    }
+  }
+
+  private static ByteBuffer requestHead(HttpServletRequest request, URI target, HttpFields headers) {
+    StringBuilder sb = new StringBuilder("GET ");
+    sb.append(target.getRawPath() == null || target.getRawPath().isEmpty() ? "/" : target.getRawPath());
+    if (target.getRawQuery() != null) {
+      sb.append('?').append(target.getRawQuery());
+    }
+    sb.append(" HTTP/1.1\r\n");
+    String host = headers.get(HttpHeader.HOST);
+    if (host == null) {
+      host = target.getPort() < 0 ? target.getHost() : target.getHost() + ":" + target.getPort();
+    }
+    sb.append("Host: ").append(host).append("\r\n");
+    for (HttpField field : headers) {
+      if (field.getHeader() != HttpHeader.HOST) {
+        sb.append(field.getName()).append(": ").append(field.getValue()).append("\r\n");
+      }
+    }
+    // Hop-by-hop headers, not copied by the proxy servlet.
+    sb.append("Connection: Upgrade\r\n");
+    sb.append("Upgrade: ").append(request.getHeader("Upgrade")).append("\r\n\r\n");
+    return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static void close(SocketChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // ignored
+      }
+    }
+  }
+
+  /** A handshake in progress, responding to the client exactly once. */
+  private final class Handshake {
+    final Request request;
+    final HttpServletResponse response;
+    final AsyncContext asyncContext;
+    final ByteBuffer head;
+    final long timeout;
+    /** The engine to connect with, {@code null} for plain text. */
+    final SSLEngine sslEngine;
+    final BiConsumer<Integer, Throwable> listener;
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Handshake(Request request, HttpServletResponse response, AsyncContext asyncContext, ByteBuffer head,
+        long timeout, SSLEngine sslEngine, BiConsumer<Integer, Throwable> listener) {
+      this.request = request;
+      this.response = response;
+      this.asyncContext = asyncContext;
+      this.head = head;
+      this.timeout = timeout;
+      this.sslEngine = sslEngine;
+      this.listener = listener;
+    }
+
+    /** Switches protocols, with {@code received} being what the upstream server sent past its response. */
+    boolean upgrade(HttpFields headers, EndPoint upstream, ByteBuffer received) {
+      if (!done.compareAndSet(false, true)) {
+        return false;
+      }
+      listener.accept(HttpServletResponse.SC_SWITCHING_PROTOCOLS, null);
+      response.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+      for (HttpField field : headers) {
+        response.addHeader(field.getName(), field.getValue());
+      }
+      EndPoint downstream = request.getHttpChannel().getEndPoint();
+      Tunnel upstreamTunnel = new Tunnel(upstream, false, received);
+      Tunnel downstreamTunnel = new Tunnel(downstream, true, null);
+      upstreamTunnel.setConnection(downstreamTunnel);
+      downstreamTunnel.setConnection(upstreamTunnel);
+      upstream.setIdleTimeout(IDLE_TIMEOUT);
+      downstream.setIdleTimeout(IDLE_TIMEOUT);
+      upstream.upgrade(upstreamTunnel);
+      // The client's connection is upgraded once the response has been sent.
+      request.setAttribute(HttpConnection.UPGRADE_CONNECTION_ATTRIBUTE, downstreamTunnel);
+      asyncContext.complete();
+      return true;
+    }
+
+    /** Relays a response refusing to switch protocols. */
+    void refuse(int status, HttpFields headers, byte[] body) {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      listener.accept(status, null);
+      try {
+        response.setStatus(status);
+        for (HttpField field : headers) {
+          if (!HOP_HEADERS.contains(field.getName().toLowerCase(Locale.ROOT))) {
+            response.addHeader(field.getName(), field.getValue());
+          }
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+      } catch (IOException ignored) {
+        // client is gone
+      } finally {
+        asyncContext.complete();
+      }
+    }
+
+    void fail(Throwable failure) {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      listener.accept(null, failure);
+      if (!response.isCommitted()) {
+        response.setStatus(failure instanceof TimeoutException
+            ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+            : HttpServletResponse.SC_BAD_GATEWAY);
+      }
+      asyncContext.complete();
+    }
+  }
+
+  /** Sends the handshake request and parses the response, on the upstream connection. */
+  private final class HandshakeConnection extends AbstractConnection implements HttpParser.ResponseHandler<ByteBuffer> {
+    private final Handshake handshake;
+    private final HttpParser parser = new HttpParser(this);
+    private final HttpFields headers = new HttpFields();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private int status;
+    private boolean complete;
+    private IOException failure;
+    private ByteBuffer buffer;
+
+    HandshakeConnection(EndPoint endPoint, Executor executor, Handshake handshake) {
+      super(endPoint, executor);
+      this.handshake = handshake;
+    }
+
+    @Override
+    public void onOpen() {
+      super.onOpen();
+      getEndPoint().write(new Callback() {
+        @Override
+        public void succeeded() {
+          fillInterested();
+        }
+
+        @Override
+        public void failed(Throwable x) {
+          fail(x);
+        }
+      }, handshake.head);
+    }
+
+    @Override
+    public void onFillable() {
+      if (buffer == null) {
+        buffer = bufferPool.acquire(bufferSize, false);
+      }
+      try {
+        for (;;) {
+          int filled = getEndPoint().fill(buffer);
+          if (filled < 0) {
+            parser.atEOF();
+          }
+          parser.parseNext(buffer);
+          if (failure != null) {
+            fail(failure);
+            return;
+          }
+          if (complete) {
+            break;
+          }
+          if (filled < 0) {
+            fail(new EOFException("Upstream closed the connection during the WebSocket handshake"));
+            return;
+          }
+          if (filled == 0) {
+            fillInterested();
+            return;
+          }
+        }
+      } catch (IOException e) {
+        fail(e);
+        return;
+      }
+      if (status == HttpServletResponse.SC_SWITCHING_PROTOCOLS) {
+        // Copied, as the buffer goes back to the pool.
+        ByteBuffer received = BufferUtil.toBuffer(BufferUtil.toArray(buffer));
+        release();
+        if (!handshake.upgrade(headers, getEndPoint(), received)) {
+          getEndPoint().close();
+        }
+      } else {
+        release();
+        getEndPoint().close();
+        handshake.refuse(status, headers, body.toByteArray());
+      }
+    }
+
+    @Override
+    protected boolean onReadTimeout() {
+      fail(new TimeoutException("WebSocket handshake timed out"));
+      return false;
+    }
+
+    private void fail(Throwable failure) {
+      release();
+      getEndPoint().close();
+      handshake.fail(failure);
+    }
+
+    private void release() {
+      if (buffer != null) {
+        bufferPool.release(buffer);
+        buffer = null;
+      }
+    }
+
+    @Override
+    public boolean startResponse(HttpVersion version, int status, String reason) {
+      this.status = status;
+      return false;
+    }
+
+    @Override
+    public boolean parsedHeader(HttpField field) {
+      headers.add(field);
+      return false;
+    }
+
+    @Override
+    public boolean headerComplete() {
+      return false;
+    }
+
+    @Override
+    public boolean content(ByteBuffer content) {
+      if (body.size() + content.remaining() > MAX_REFUSAL_SIZE) {
+        failure = new IOException("WebSocket handshake response too large");
+        return true;
+      }
+      byte[] bytes = BufferUtil.toArray(content);
+      body.write(bytes, 0, bytes.length);
+      return false;
+    }
+
+    @Override
+    public boolean messageComplete() {
+      complete = true;
+      // Stops right there, leaving what follows a 101 in the buffer.
+      return true;
+    }
+
+    @Override
+    public void earlyEOF() {
+    }
+
+    @Override
+    public void badMessage(int status, String reason) {
+      failure = new IOException("Bad WebSocket handshake response: " + reason);
+    }
+
+    @Override
+    public int getHeaderCacheSize() {
+      return 0;
+    }
+  }
+
+  /**
+   * Relays what's read from its end point to the other tunnel's, through a single buffer.
+   *
+   * <p>Tunnels start reading once the client's connection has been upgraded, i.e. the response has been sent,
+   * after relaying what has already been read past the handshake on either side.
+   */
+  private final class Tunnel extends ProxyConnection implements Connection.UpgradeTo {
+    private final boolean downstream;
+    /** What has already been read from this tunnel's end point. */
+    private ByteBuffer received;
+
+    Tunnel(EndPoint endPoint, boolean downstream, ByteBuffer received) {
+      super(endPoint, selectorManager.getExecutor(), bufferPool, new ConcurrentHashMap<>());
+      this.downstream = downstream;
+      this.received = received;
+      setInputBufferSize(bufferSize);
+    }
+
+    @Override
+    public void onUpgradeTo(ByteBuffer prefilled) {
+      if (BufferUtil.hasContent(prefilled)) {
+        received = BufferUtil.toBuffer(BufferUtil.toArray(prefilled));
+      }
+    }
+
+    @Override
+    public void onOpen() {
+      super.onOpen();
+      if (downstream) {
+        start();
+        ((Tunnel) getConnection()).start();
+      }
+    }
+
+    private void start() {
+      ByteBuffer pending = received;
+      received = null;
+      if (!BufferUtil.hasContent(pending)) {
+        fillInterested();
+        return;
+      }
+      getConnection().getEndPoint().write(new Callback() {
+        @Override
+        public void succeeded() {
+          fillInterested();
+        }
+
+        @Override
+        public void failed(Throwable x) {
+          close();
+          getConnection().close();
+        }
+      }, pending);
+    }
+
+    @Override
+    protected int read(EndPoint endPoint, ByteBuffer buffer) throws IOException {
+      return endPoint.fill(buffer);
+    }
+
+    @Override
+    protected void write(EndPoint endPoint, ByteBuffer buffer, Callback callback) {
+      endPoint.write(callback, buffer);
+    }
+  }
+}
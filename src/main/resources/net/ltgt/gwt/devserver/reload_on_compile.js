@@ -0,0 +1,37 @@
+
+/**
+ * Appended by the devserver to the stub when using -reloadOnCompile:
+ * reloads the page when a compile it didn't trigger itself produced new output.
+ */
+(function($wnd){
+  if (!$wnd.EventSource || !$wnd.JSON) {
+    return;
+  }
+  // Compiles started while this page waits for its own compile are assumed to be that compile.
+  var isCompiling = function() {
+    var globals = $wnd.__gwt_sdm_globals;
+    if (globals) {
+      for (var id in globals.callbacks) {
+        if (globals.callbacks.hasOwnProperty(id)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  };
+  var ownJobs = {};
+  var events = new $wnd.EventSource('__EVENTS_URL__');
+  events.addEventListener('compiling', function(e) {
+    var data = $wnd.JSON.parse(e.data);
+    if (isCompiling()) {
+      ownJobs[data.jobId] = true;
+    }
+  }, false);
+  events.addEventListener('done', function(e) {
+    var data = $wnd.JSON.parse(e.data);
+    if (!ownJobs[data.jobId] && !isCompiling() && data.compileStrategy != 'skipped') {
+      events.close();
+      $wnd.location.reload();
+    }
+  }, false);
+})(window);
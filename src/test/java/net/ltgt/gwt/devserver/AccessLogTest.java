@@ -0,0 +1,149 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class AccessLogTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testTimingBreakdown() throws Exception {
+    File log = tmp.newFile("access.log");
+    DevServer.Options options = newOptions(log);
+    start(options);
+
+    mockWebServer.setDispatcher(delayed(100));
+    try (Response response = get("app.js?v=1")) {
+      assertThat(response.body().string()).isEqualTo("From web server");
+    }
+    try (Response response = get(DevServer.RESERVED_CONTEXT_PATH + "/metrics")) {
+      assertThat(response.body().string()).contains("devserver_access_log_dropped_total 0\n");
+    }
+    // Drains the log.
+    server.stop();
+
+    // The devserver's own endpoints aren't logged.
+    List<String> lines = Files.readLines(log, StandardCharsets.UTF_8);
+    assertThat(lines).hasSize(1);
+    assertThat(lines.get(0)).matches(".* \"GET /app\\.js\\?v=1 HTTP/1\\.1\" 200 15 upstream "
+        + "\\d+\\.\\d{3}ms ttfb=\\d+\\.\\d{3}ms upstream=\\d+\\.\\d{3}ms");
+    double upstream = Double.parseDouble(lines.get(0).replaceAll(".* upstream=(\\S+)ms$", "$1"));
+    assertThat(upstream).isAtLeast(100.0);
+  }
+
+  @Test public void testSlowThresholdAndFormat() throws Exception {
+    File log = tmp.newFile("access.log");
+    DevServer.Options options = newOptions(log);
+    options.accessLogFormat = "{method} {uri} {status}";
+    options.accessLogSlowThreshold = 200;
+    start(options);
+
+    mockWebServer.setDispatcher(delayed(300));
+    get("fast.js").close();
+    get("slow.js").close();
+    server.stop();
+
+    assertThat(Files.readLines(log, StandardCharsets.UTF_8)).containsExactly("GET /slow.js 200");
+  }
+
+  @Test public void testFailedRollOver() throws Exception {
+    File log = tmp.newFile("access.log");
+    Files.asCharSink(log, StandardCharsets.UTF_8).write("previous\n");
+    // Backups can't be shifted, as the last one is a non-empty directory.
+    tmp.newFile("access.log." + (AccessLog.BACKUPS - 1));
+    tmp.newFolder("access.log." + AccessLog.BACKUPS, "blocker");
+    DevServer.Options options = newOptions(log);
+    options.accessLogFormat = "{method} {uri} {status}";
+    options.accessLogMaxSize = 30;
+    start(options);
+
+    mockWebServer.setDispatcher(delayed(0));
+    get("first.js").close();
+    get("second.js").close();
+    server.stop();
+
+    assertThat(Files.readLines(log, StandardCharsets.UTF_8))
+        .containsExactly("previous", "GET /first.js 200", "GET /second.js 200").inOrder();
+  }
+
+  @Test public void testUnknownPlaceholder() {
+    assertThat(AccessLog.parseFormat("{status} {bytes}B"))
+        .containsExactly(AccessLog.Field.STATUS, " ", AccessLog.Field.BYTES, "B").inOrder();
+    try {
+      AccessLog.parseFormat("{status} {size}");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  /** Responds after the delay, except to {@code /fast*} paths. */
+  private static Dispatcher delayed(long millis) {
+    return new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        if (!request.getPath().startsWith("/fast")) {
+          Thread.sleep(millis);
+        }
+        return new MockResponse().setBody("From web server");
+      }
+    };
+  }
+
+  private DevServer.Options newOptions(File log) {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockWebServer.url("").toString();
+    options.accessLog = log;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    return options;
+  }
+
+  private void start(DevServer.Options options) throws Exception {
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  private Response get(String pathAndQuery) throws IOException {
+    return client.newCall(new Request.Builder().url(baseUrl.resolve(pathAndQuery)).build()).execute();
+  }
+}
@@ -0,0 +1,139 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class BalancingProxyTest {
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer upstream1 = new MockWebServer();
+  @Rule public MockWebServer upstream2 = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testArgs() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    assertThat(new DevServer.ArgProcessor(options).processArgs(
+        "-proxyTo", "http://one:8080,https://two/", "-proxyBalancer", "roundRobin", "-preserveHost",
+        "net.ltgt.gwt.devserver.GWTTestCase")).isTrue();
+    assertThat(Upstreams.parseOrigins(options.proxyTo)).containsExactly("http://one:8080", "https://two").inOrder();
+    assertThat(options.proxyBalancer).isEqualTo(Upstreams.Strategy.ROUND_ROBIN);
+    assertThat(options.preserveHost).isTrue();
+  }
+
+  @Test public void testRoundRobin() throws Exception {
+    upstream1.setDispatcher(respondWith("upstream1", 200));
+    upstream2.setDispatcher(respondWith("upstream2", 200));
+    HttpUrl baseUrl = start(Upstreams.Strategy.ROUND_ROBIN, null, origin(upstream1), origin(upstream2));
+
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      counts.merge(get(baseUrl, "whatever"), 1, Integer::sum);
+    }
+    assertThat(counts).containsExactly("upstream1", 5, "upstream2", 5);
+  }
+
+  @Test public void testPassiveEjection() throws Exception {
+    upstream1.setDispatcher(respondWith("upstream1", 200));
+    String deadOrigin;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      deadOrigin = "http://127.0.0.1:" + socket.getLocalPort();
+    }
+    HttpUrl baseUrl = start(Upstreams.Strategy.ROUND_ROBIN, null, deadOrigin, origin(upstream1));
+
+    int failures = 0;
+    for (int i = 0; i < 10; i++) {
+      if (!"upstream1".equals(get(baseUrl, "whatever"))) {
+        failures++;
+      }
+    }
+    assertThat(failures).isEqualTo(1);
+  }
+
+  @Test public void testHealthCheck() throws Exception {
+    upstream1.setDispatcher(respondWith("upstream1", 200));
+    upstream2.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        return new MockResponse()
+            .setResponseCode(request.getPath().equals("/health") ? 503 : 200)
+            .setBody("upstream2");
+      }
+    });
+    HttpUrl baseUrl = start(Upstreams.Strategy.LEAST_IN_FLIGHT, "/health", origin(upstream1), origin(upstream2));
+    // wait for the first health check of upstream2
+    long deadline = System.currentTimeMillis() + 10000;
+    while (upstream2.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(get(baseUrl, "whatever")).isEqualTo("upstream1");
+    }
+  }
+
+  private HttpUrl start(Upstreams.Strategy strategy, String healthCheck, String... origins) throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = String.join(",", origins);
+    options.proxyBalancer = strategy;
+    options.proxyHealthCheck = healthCheck;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    return new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  private String get(HttpUrl baseUrl, String path) throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments(path).build())
+        .build())
+        .execute()) {
+      return response.body().string();
+    }
+  }
+
+  private static String origin(MockWebServer server) {
+    return "http://" + server.getHostName() + ":" + server.getPort();
+  }
+
+  private static Dispatcher respondWith(String body, int code) {
+    return new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        return new MockResponse().setResponseCode(code).setBody(body);
+      }
+    };
+  }
+}
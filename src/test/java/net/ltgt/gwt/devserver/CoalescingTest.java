@@ -0,0 +1,123 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CoalescingTest {
+  private static final int CONCURRENCY = 5;
+
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    release.countDown();
+    executor.shutdownNow();
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testCoalesces() throws Exception {
+    start(8 * 1024 * 1024);
+
+    List<Future<String>> responses = getConcurrently();
+    awaitMetric("devserver_coalesced_requests_total{route=\"codeserver\",module=\"tests\"} " + (CONCURRENCY - 1));
+    release.countDown();
+
+    for (Future<String> response : responses) {
+      assertThat(response.get(10, TimeUnit.SECONDS)).isEqualTo("From code server: /tests/fragment.js");
+    }
+    assertThat(mockCodeServer.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test public void testTooBigToShare() throws Exception {
+    start(10);
+
+    List<Future<String>> responses = getConcurrently();
+    awaitMetric("devserver_coalesced_requests_total{route=\"codeserver\",module=\"tests\"} " + (CONCURRENCY - 1));
+    release.countDown();
+
+    for (Future<String> response : responses) {
+      assertThat(response.get(10, TimeUnit.SECONDS)).isEqualTo("From code server: /tests/fragment.js");
+    }
+    // waiters made their own request
+    assertThat(mockCodeServer.getRequestCount()).isEqualTo(CONCURRENCY);
+  }
+
+  private void start(int coalesceBufferSize) throws Exception {
+    mockCodeServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        release.await();
+        return new MockResponse()
+            .setHeader("Content-Type", "application/javascript")
+            .setBody("From code server: " + request.getPath());
+      }
+    });
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockCodeServer.url("").toString();
+    options.coalesceBufferSize = coalesceBufferSize;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  private List<Future<String>> getConcurrently() {
+    List<Future<String>> responses = new ArrayList<>();
+    for (int i = 0; i < CONCURRENCY; i++) {
+      responses.add(executor.submit(() -> get("tests/fragment.js")));
+    }
+    return responses;
+  }
+
+  private void awaitMetric(String sample) throws Exception {
+    for (int i = 0; i < 100 && !get("__devserver/metrics").contains(sample + "\n"); i++) {
+      Thread.sleep(50);
+    }
+    assertThat(get("__devserver/metrics")).contains(sample + "\n");
+  }
+
+  private String get(String path) throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments(path).build())
+        .build())
+        .execute()) {
+      return response.body().string();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.*;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CodeServerBridgeTest {
+  @ClassRule public static TemporaryFolder baseDir = new TemporaryFolder();
+  @ClassRule public static TemporaryFolder warDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+
+  static {
+    mockCodeServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        return new MockResponse()
+            .setBody("From code server: " + request.getPath());
+      }
+    });
+  }
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    warDir.newFolder("tests");
+    Files.write("From war dir: tests/fragment.js", warDir.newFile("tests/fragment.js"), StandardCharsets.UTF_8);
+    Files.write("From war dir: tests/0123456789ABCDEF0123456789ABCDEF.cache.js",
+        warDir.newFile("tests/0123456789ABCDEF0123456789ABCDEF.cache.js"), StandardCharsets.UTF_8);
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(warDir.newFile("tests/compressed.svg.gz")))) {
+      out.write("From war dir: tests/compressed.svg".getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+
+  @Test public void testInProcess() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.baseDir = baseDir.getRoot();
+    options.modulePathPrefix = "prefix";
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    Server server = DevServer.start(options, CompletableFuture.completedFuture(mockCodeServer.getPort()), moduleName -> {
+      assertThat(moduleName).isEqualTo("tests");
+      return warDir.getRoot();
+    }, new CompileEvents(), new StartupTimings());
+    try {
+      final HttpUrl baseUrl = new HttpUrl.Builder()
+          .scheme("http")
+          .host(options.connectAddress)
+          .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+          .build();
+      assertFromWarDir(baseUrl, "prefix/tests/fragment.js", "tests/fragment.js");
+      try (Response response = client.newCall(new Request.Builder()
+          .url(baseUrl.newBuilder().addPathSegments("prefix/tests/0123456789ABCDEF0123456789ABCDEF.cache.js").build())
+          .build())
+          .execute()) {
+        assertThat(response.header("SourceMap"))
+            .isEqualTo("http://" + options.connectAddress + ":" + mockCodeServer.getPort()
+                + "/sourcemaps/tests/0123456789ABCDEF0123456789ABCDEF_sourcemap.json");
+        assertThat(response.body().string()).isEqualTo("From war dir: tests/0123456789ABCDEF0123456789ABCDEF.cache.js");
+      }
+      // Not compressed by the gzip filter, that would otherwise add the Vary header;
+      // OkHttp asks for, and transparently decompresses, gzipped responses.
+      try (Response response = client.newCall(new Request.Builder()
+          .url(baseUrl.newBuilder().addPathSegments("prefix/tests/compressed.svg").build())
+          .build())
+          .execute()) {
+        assertThat(response.header("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(response.body().string()).isEqualTo("From war dir: tests/compressed.svg");
+      }
+      assertFromCodeServer(baseUrl, "prefix/tests/", "/tests/");
+      assertFromCodeServer(baseUrl, "prefix/tests/missing.js", "/tests/missing.js");
+    } finally {
+      server.stop();
+    }
+  }
+
+  private void assertFromWarDir(HttpUrl baseUrl, String relativePath, String warDirPath) throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .get()
+        .url(baseUrl.newBuilder().addPathSegments(relativePath).build())
+        .build())
+        .execute()) {
+      assertThat(response.header("Content-Type")).contains("javascript");
+      assertThat(response.body().string()).isEqualTo("From war dir: " + warDirPath);
+    }
+  }
+
+  private void assertFromCodeServer(HttpUrl baseUrl, String relativePath, String codeServerPath) throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .get()
+        .url(baseUrl.newBuilder().addPathSegments(relativePath).build())
+        .build())
+        .execute()) {
+      assertThat(response.body().string()).isEqualTo("From code server: " + codeServerPath);
+    }
+  }
+}
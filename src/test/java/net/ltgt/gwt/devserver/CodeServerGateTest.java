@@ -0,0 +1,132 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CodeServerGateTest {
+  @Rule public TemporaryFolder baseDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+
+  static {
+    mockCodeServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setBody("From code server: " + request.getPath());
+      }
+    });
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder()
+      .readTimeout(10, TimeUnit.SECONDS)
+      .build();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final CompletableFuture<Integer> codeServerPort = new CompletableFuture<>();
+
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    executor.shutdownNow();
+    server.stop();
+  }
+
+  private void start(int codeServerStartTimeout) throws Exception {
+    Files.write("From file system: index.html", baseDir.newFile("index.html"), StandardCharsets.UTF_8);
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.baseDir = baseDir.getRoot();
+    options.codeServerStartTimeout = codeServerStartTimeout;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options, codeServerPort, null, new CompileEvents(), new StartupTimings());
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  @Test public void testModuleRequestsWaitForCodeServer() throws Exception {
+    start(30);
+
+    assertThat(get("index.html")).isEqualTo("From file system: index.html");
+
+    Future<String> stub = executor.submit(() -> get("tests/tests.nocache.js"));
+    Future<String> fragment = executor.submit(() -> get("tests/fragment.js"));
+    Thread.sleep(200);
+    assertThat(stub.isDone()).isFalse();
+    assertThat(fragment.isDone()).isFalse();
+
+    codeServerPort.complete(mockCodeServer.getPort());
+    assertThat(stub.get(10, TimeUnit.SECONDS)).contains(":" + mockCodeServer.getPort() + "'");
+    assertThat(fragment.get(10, TimeUnit.SECONDS)).isEqualTo("From code server: /tests/fragment.js");
+    // Then requests go straight through.
+    assertThat(get("tests/fragment.js")).isEqualTo("From code server: /tests/fragment.js");
+  }
+
+  @Test public void testTimeout() throws Exception {
+    start(1);
+
+    try (Response response = newCall("tests/tests.nocache.js").execute()) {
+      assertThat(response.code()).isEqualTo(503);
+      assertThat(response.header("Retry-After")).isEqualTo("5");
+    }
+  }
+
+  @Test public void testCodeServerFailedToStart() throws Exception {
+    start(30);
+
+    Future<Integer> pending = executor.submit(() -> {
+      try (Response response = newCall("tests/fragment.js").execute()) {
+        return response.code();
+      }
+    });
+    Thread.sleep(200);
+    codeServerPort.completeExceptionally(new IOException("Address already in use"));
+    assertThat(pending.get(10, TimeUnit.SECONDS)).isEqualTo(503);
+
+    try (Response response = newCall("tests/tests.nocache.js").execute()) {
+      assertThat(response.code()).isEqualTo(503);
+    }
+    assertThat(get("index.html")).isEqualTo("From file system: index.html");
+  }
+
+  private String get(String path) throws IOException {
+    try (Response response = newCall(path).execute()) {
+      return response.body().string();
+    }
+  }
+
+  private Call newCall(String path) {
+    return client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments(path).build())
+        .build());
+  }
+}
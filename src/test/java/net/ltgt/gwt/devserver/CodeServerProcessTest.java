@@ -0,0 +1,138 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.codeserver.JobEvent;
+import com.google.gwt.dev.util.log.PrintWriterTreeLogger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class CodeServerProcessTest {
+  @Rule public TemporaryFolder workDir = new TemporaryFolder();
+
+  @Test public void testJobEventRoundTrip() throws Exception {
+    JobEvent.Builder builder = new JobEvent.Builder();
+    builder.setJobId("tests_1");
+    builder.setInputModuleName("net.ltgt.gwt.devserver.GWTTestCase");
+    builder.setOutputModuleName("tests");
+    builder.setBindings(Collections.singletonMap("user.agent", "safari"));
+    builder.setStatus(JobEvent.Status.SERVING);
+    builder.setCompileStrategy(JobEvent.CompileStrategy.INCREMENTAL);
+    JobEvent event = ForkedCodeServer.fromJson(ForkedCodeServer.toJson(builder.build()));
+
+    assertThat(event.getJobId()).isEqualTo("tests_1");
+    assertThat(event.getInputModuleName()).isEqualTo("net.ltgt.gwt.devserver.GWTTestCase");
+    assertThat(event.getOutputModuleName()).isEqualTo("tests");
+    assertThat(event.getBindings()).containsExactly("user.agent", "safari");
+    assertThat(event.getStatus()).isEqualTo(JobEvent.Status.SERVING);
+    assertThat(event.getMessage()).isEqualTo("Compiled output is ready");
+    assertThat(event.getCompileStrategy()).isEqualTo(JobEvent.CompileStrategy.INCREMENTAL);
+  }
+
+  @Test public void testJvmArgs() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    assertThat(new DevServer.ArgProcessor(options).processArgs(
+        "-forkCodeServer", "-codeServerJvmArg", "-Xmx2g", "-codeServerJvmArg", "-Dtitle=My App",
+        "net.ltgt.gwt.devserver.GWTTestCase")).isTrue();
+    assertThat(options.codeServerJvmArgs).containsExactly("-Xmx2g", "-Dtitle=My App").inOrder();
+  }
+
+  @Test public void testRestartsOnCrash() throws Exception {
+    BlockingQueue<JobEvent> events = new LinkedBlockingQueue<>();
+    File launches = new File(workDir.getRoot(), "launches");
+    CodeServerProcess process = stub(launches, "crash-once", events);
+    process.start();
+    try {
+      int port = process.getPort().get(30, TimeUnit.SECONDS);
+      // The invalid event is skipped.
+      assertThat(take(events).getJobId()).isEqualTo("tests_1");
+      // Relaunched on the same port after having crashed.
+      assertThat(take(events).getJobId()).isEqualTo("tests_2");
+      assertThat(Files.readAllLines(launches.toPath()))
+          .containsExactly(String.valueOf(port), String.valueOf(port));
+      assertThat(process.getProcess().isAlive()).isTrue();
+    } finally {
+      process.stop();
+    }
+  }
+
+  @Test public void testExitsBeforeReady() throws Exception {
+    BlockingQueue<JobEvent> events = new LinkedBlockingQueue<>();
+    File launches = new File(workDir.getRoot(), "launches");
+    CodeServerProcess process = stub(launches, "fail", events);
+    process.start();
+    try {
+      process.getPort().get(30, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getMessage()).isEqualTo("CodeServer for tests exited with status 1");
+    } finally {
+      process.stop();
+    }
+    // Not relaunched.
+    assertThat(Files.readAllLines(launches.toPath())).hasSize(1);
+    assertThat(events).isEmpty();
+  }
+
+  private static CodeServerProcess stub(File launches, String mode, BlockingQueue<JobEvent> events) {
+    return new CodeServerProcess("tests", StubCodeServer.class.getName(), Collections.singletonList("-Xmx64m"), 0,
+        Arrays.asList(launches.getPath(), mode), events::add, new PrintWriterTreeLogger());
+  }
+
+  private static JobEvent take(BlockingQueue<JobEvent> events) throws InterruptedException {
+    JobEvent event = events.poll(30, TimeUnit.SECONDS);
+    assertThat(event).isNotNull();
+    return event;
+  }
+
+  /**
+   * Speaks {@link ForkedCodeServer}'s protocol without running a CodeServer: {@code -port <port> <launches> <mode>}.
+   *
+   * <p>Each launch appends its port to the {@code launches} file. In {@code fail} mode, it exits right away;
+   * in {@code crash-once} mode, it reports its port and a job event, then exits on the first launch, and waits
+   * for its standard input to be closed on the following ones.
+   */
+  static class StubCodeServer {
+    public static void main(String[] args) throws Exception {
+      Path launches = Paths.get(args[2]);
+      Files.write(launches, Collections.singletonList(args[1]), StandardCharsets.UTF_8,
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      int launch = Files.readAllLines(launches).size();
+      if ("fail".equals(args[3])) {
+        System.exit(1);
+      }
+      JobEvent.Builder builder = new JobEvent.Builder();
+      builder.setJobId("tests_" + launch);
+      builder.setInputModuleName("net.ltgt.gwt.devserver.GWTTestCase");
+      builder.setOutputModuleName("tests");
+      builder.setBindings(Collections.singletonMap("user.agent", "safari"));
+      builder.setStatus(JobEvent.Status.SERVING);
+      builder.setCompileStrategy(JobEvent.CompileStrategy.FULL);
+      System.out.println(ForkedCodeServer.PORT_MESSAGE + args[1]);
+      System.out.println(ForkedCodeServer.EVENT_MESSAGE + "not json");
+      System.out.println(ForkedCodeServer.EVENT_MESSAGE + ForkedCodeServer.toJson(builder.build()));
+      System.out.flush();
+      if (launch == 1) {
+        System.exit(3);
+      }
+      while (System.in.read() != -1) {
+        // the devserver never writes anything
+      }
+    }
+  }
+}
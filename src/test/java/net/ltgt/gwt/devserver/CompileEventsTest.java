@@ -0,0 +1,209 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.codeserver.JobEvent;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.BufferedSource;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CompileEventsTest {
+  @ClassRule public static TemporaryFolder baseDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+
+  private static final CompileEvents compileEvents = new CompileEvents();
+
+  private static Server server;
+  private static HttpUrl baseUrl;
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.baseDir = baseDir.getRoot();
+    options.reloadOnCompile = true;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options, CompletableFuture.completedFuture(mockCodeServer.getPort()), null, compileEvents,
+        new StartupTimings());
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  @AfterClass public static void tearDownClass() throws Exception {
+    server.stop();
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder()
+      .readTimeout(10, TimeUnit.SECONDS)
+      .build();
+
+  @Test public void testStubSubscribes() throws Exception {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments("tests/tests.nocache.js").build())
+        .build())
+        .execute()) {
+      assertThat(response.body().string()).contains("EventSource('/__devserver/events/tests')");
+    }
+  }
+
+  @Test public void testEvents() throws Exception {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments("__devserver/events/tests").build())
+        .build())
+        .execute()) {
+      assertThat(response.header("Content-Type")).startsWith("text/event-stream");
+      BufferedSource source = response.body().source();
+      assertThat(source.readUtf8Line()).isEqualTo("retry: 1000");
+      assertThat(source.readUtf8Line()).isEmpty();
+      // the subscription is acknowledged by a comment
+      assertThat(source.readUtf8Line()).isEqualTo(":");
+      assertThat(source.readUtf8Line()).isEmpty();
+
+      compileEvents.onJobChange(event(JobEvent.Status.COMPILING, null));
+      assertThat(source.readUtf8Line()).isEqualTo("id: tests_1");
+      assertThat(source.readUtf8Line()).isEqualTo("event: compiling");
+      assertThat(source.readUtf8Line()).startsWith("data: {");
+      assertThat(source.readUtf8Line()).isEmpty();
+
+      compileEvents.onJobChange(event(JobEvent.Status.SERVING, JobEvent.CompileStrategy.FULL));
+      assertThat(source.readUtf8Line()).isEqualTo("id: tests_1");
+      assertThat(source.readUtf8Line()).isEqualTo("event: done");
+      String data = source.readUtf8Line();
+      assertThat(data).contains("\"status\":\"serving\"");
+      assertThat(data).contains("\"compileStrategy\":\"full\"");
+      assertThat(source.readUtf8Line()).isEmpty();
+    }
+  }
+
+  @Test public void testUnknownModule() throws Exception {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments("__devserver/events/unknown").build())
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+  }
+
+  @Test public void testStalledSubscriberIsDropped() throws Exception {
+    CompileEvents compileEvents = new CompileEvents();
+    compileEvents.start();
+    CountDownLatch stalled = new CountDownLatch(1);
+    try {
+      // a connection that stalls on the first compile event
+      ByteArrayOutputStream written = new ByteArrayOutputStream();
+      ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+          written.write(b);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          if (written.toString("UTF-8").contains("compiling")) {
+            try {
+              stalled.await();
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+          }
+        }
+      };
+      ServletResponse response = proxy(ServletResponse.class, (method, args) ->
+          method.getName().equals("getOutputStream") ? out : null);
+      CountDownLatch completed = new CountDownLatch(1);
+      AsyncContext subscriber = proxy(AsyncContext.class, (method, args) -> {
+        switch (method.getName()) {
+          case "getResponse":
+            return response;
+          case "complete":
+            completed.countDown();
+            return null;
+          default:
+            return null;
+        }
+      });
+      compileEvents.subscribe("stalled", subscriber);
+
+      // one being written, MAX_PENDING queued, then one too many
+      for (int i = 0; i < CompileEvents.MAX_PENDING + 2; i++) {
+        compileEvents.onJobChange(event("stalled", JobEvent.Status.COMPILING, null));
+      }
+      assertThat(completed.await(10, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      stalled.countDown();
+      compileEvents.stop();
+    }
+  }
+
+  private interface Handler {
+    Object invoke(Method method, Object[] args);
+  }
+
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              return handler.invoke(method, args);
+          }
+        }));
+  }
+
+  private static JobEvent event(JobEvent.Status status, JobEvent.CompileStrategy compileStrategy) {
+    return event("tests", status, compileStrategy);
+  }
+
+  private static JobEvent event(String outputModuleName, JobEvent.Status status,
+      JobEvent.CompileStrategy compileStrategy) {
+    JobEvent.Builder builder = new JobEvent.Builder();
+    builder.setJobId("tests_1");
+    builder.setInputModuleName("net.ltgt.gwt.devserver.GWTTestCase");
+    builder.setOutputModuleName(outputModuleName);
+    builder.setStatus(status);
+    if (compileStrategy != null) {
+      builder.setCompileStrategy(compileStrategy);
+    }
+    return builder.build();
+  }
+}
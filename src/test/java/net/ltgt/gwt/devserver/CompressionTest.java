@@ -0,0 +1,130 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.GzipSource;
+import okio.Okio;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CompressionTest {
+  @ClassRule public static TemporaryFolder baseDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+
+  private static final String CONTENT = Strings.repeat("From file system. ", 100);
+
+  private static Server server;
+  private static HttpUrl baseUrl;
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    Files.write(CONTENT, baseDir.newFile("app.js"), StandardCharsets.UTF_8);
+    Files.write("small", baseDir.newFile("tiny.js"), StandardCharsets.UTF_8);
+    Files.write(CONTENT, baseDir.newFile("font.woff2"), StandardCharsets.UTF_8);
+    Files.write(CONTENT, baseDir.newFile("sidecar.js"), StandardCharsets.UTF_8);
+    Files.write("brotli sidecar", baseDir.newFile("sidecar.js.br"), StandardCharsets.UTF_8);
+    try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(baseDir.newFile("sidecar.js.gz")))) {
+      out.write("gzip sidecar".getBytes(StandardCharsets.UTF_8));
+    }
+
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.baseDir = baseDir.getRoot();
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  @AfterClass public static void tearDownClass() throws Exception {
+    server.stop();
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+
+  @Test public void testCompressed() throws Exception {
+    String etag;
+    try (Response response = get("app.js", "gzip")) {
+      assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+      etag = response.header("ETag");
+      assertThat(Okio.buffer(new GzipSource(response.body().source())).readUtf8()).isEqualTo(CONTENT);
+    }
+    try (Response response = get("app.js", "gzip")) {
+      assertThat(response.header("ETag")).isEqualTo(etag);
+      assertThat(Okio.buffer(new GzipSource(response.body().source())).readUtf8()).isEqualTo(CONTENT);
+    }
+    try (Response response = get("app.js", "identity")) {
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.header("ETag")).isNotEqualTo(etag);
+      assertThat(response.body().string()).isEqualTo(CONTENT);
+    }
+    // Compressed once, then served from the cache.
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve(DevServer.RESERVED_CONTEXT_PATH + "/metrics"))
+        .build()).execute()) {
+      String metrics = response.body().string();
+      assertThat(metrics).contains("devserver_compressed_cache_requests_total{result=\"hit\"} 1\n");
+      assertThat(metrics).contains("devserver_compressed_cache_requests_total{result=\"miss\"} 1\n");
+      assertThat(metrics).contains("devserver_static_cache_requests_total{route=\"static\",result=\"hit\"} ");
+      assertThat(metrics).contains("devserver_static_cache_evictions_total{route=\"static\"} 0\n");
+    }
+  }
+
+  @Test public void testNotCompressed() throws Exception {
+    try (Response response = get("tiny.js", "gzip")) {
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.body().string()).isEqualTo("small");
+    }
+    try (Response response = get("font.woff2", "gzip")) {
+      assertThat(response.header("Content-Type")).isEqualTo("font/woff2");
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.body().string()).isEqualTo(CONTENT);
+    }
+  }
+
+  @Test public void testSidecars() throws Exception {
+    try (Response response = get("sidecar.js", "gzip, deflate, br")) {
+      assertThat(response.header("Content-Encoding")).isEqualTo("br");
+      assertThat(response.header("Content-Type")).contains("javascript");
+      assertThat(response.body().string()).isEqualTo("brotli sidecar");
+    }
+    try (Response response = get("sidecar.js", "gzip")) {
+      assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+      assertThat(Okio.buffer(new GzipSource(response.body().source())).readUtf8()).isEqualTo("gzip sidecar");
+    }
+    try (Response response = get("sidecar.js", "identity")) {
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.body().string()).isEqualTo(CONTENT);
+    }
+  }
+
+  private Response get(String path, String acceptEncoding) throws Exception {
+    return client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments(path).build())
+        .header("Accept-Encoding", acceptEncoding)
+        .build())
+        .execute();
+  }
+}
@@ -0,0 +1,109 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.codeserver.JobEvent;
+import com.google.gwt.dev.util.log.PrintWriterTreeLogger;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class EagerRecompilerTest {
+  @Rule public TemporaryFolder sourceDir = new TemporaryFolder();
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+
+  private final CompileEvents compileEvents = new CompileEvents();
+  private EagerRecompiler recompiler;
+
+  @Before public void setUp() throws Exception {
+    recompiler = new EagerRecompiler("tests", Collections.singletonList(sourceDir.getRoot().toPath()),
+        () -> mockCodeServer.url("").toString().replaceAll("/$", ""), compileEvents, new PrintWriterTreeLogger());
+    recompiler.start();
+  }
+
+  @After public void tearDown() throws Exception {
+    recompiler.stop();
+  }
+
+  @Test public void testNotCompiledYet() throws Exception {
+    Files.write("class A {}", sourceDir.newFile("A.java"), StandardCharsets.UTF_8);
+
+    assertThat(mockCodeServer.takeRequest(EagerRecompiler.DEBOUNCE_MILLIS * 5, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test public void testCoalescesChanges() throws Exception {
+    JobEvent.Builder builder = new JobEvent.Builder();
+    builder.setJobId("tests_1");
+    builder.setInputModuleName("net.ltgt.gwt.devserver.GWTTestCase");
+    builder.setOutputModuleName("tests");
+    builder.setBindings(Collections.singletonMap("user.agent", "safari"));
+    builder.setStatus(JobEvent.Status.SERVING);
+    compileEvents.onJobChange(builder.build());
+    mockCodeServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+
+    File subdir = sourceDir.newFolder("client");
+    for (int i = 0; i < 5; i++) {
+      Files.write("class A" + i + " {}", new File(subdir, "A" + i + ".java"), StandardCharsets.UTF_8);
+    }
+
+    RecordedRequest request = mockCodeServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(request).isNotNull();
+    assertThat(request.getPath()).isEqualTo("/recompile/tests?user.agent=safari");
+    assertThat(mockCodeServer.takeRequest(EagerRecompiler.DEBOUNCE_MILLIS * 5, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test public void testResolveModuleDirs() throws Exception {
+    File src = sourceDir.newFolder("src");
+    File lib = sourceDir.newFolder("lib");
+    File out = sourceDir.newFolder("out");
+    write(src, "com/example/App.gwt.xml",
+        "<module><inherits name='com.example.lib.Lib'/><source path='client'/><super-source path='jre'/></module>");
+    write(src, "com/example/client/App.java", "class App {}");
+    write(src, "com/example/client/ui/View.java", "class View {}");
+    write(src, "com/example/jre/java/lang/Foo.java", "class Foo {}");
+    write(src, "com/example/server/Servlet.java", "class Servlet {}");
+    write(lib, "com/example/lib/Lib.gwt.xml", "<module/>");
+    write(lib, "com/example/lib/client/Lib.java", "class Lib {}");
+    write(lib, "com/example/lib/public/lib.css", "");
+    // Build output
+    write(out, "com/example/client/App.java", "class App {}");
+    write(out, "com/example/client/App.class", "");
+    // Only the package directory itself is checked for classes.
+    write(src, "com/example/client/ui/generated/View_Impl.class", "");
+    write(src, "Default.gwt.xml", "<module/>");
+    write(src, "client/Default.java", "class Default {}");
+
+    ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    try (URLClassLoader classLoader = new URLClassLoader(
+        new URL[] { out.toURI().toURL(), src.toURI().toURL(), lib.toURI().toURL() }, null)) {
+      Thread.currentThread().setContextClassLoader(classLoader);
+      assertThat(DevServer.resolveModuleDirs(new PrintWriterTreeLogger(), "com.example.App")).containsExactly(
+          src.toPath().resolve("com/example/client"),
+          src.toPath().resolve("com/example/jre"),
+          lib.toPath().resolve("com/example/lib/client"),
+          lib.toPath().resolve("com/example/lib/public"));
+      assertThat(DevServer.resolveModuleDirs(new PrintWriterTreeLogger(), "Default")).isEmpty();
+    } finally {
+      Thread.currentThread().setContextClassLoader(contextClassLoader);
+    }
+  }
+
+  private static void write(File root, String path, String content) throws Exception {
+    File file = new File(root, path);
+    file.getParentFile().mkdirs();
+    Files.write(content, file, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,130 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.codeserver.JobEvent;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class FlightRecorderEventsTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private final CompileEvents compileEvents = new CompileEvents();
+  private Server server;
+  private Recording recording;
+
+  @After public void tearDown() throws Exception {
+    if (recording != null) {
+      recording.close();
+    }
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testEvents() throws Exception {
+    assumeTrue(FlightRecorderEvents.INSTANCE instanceof JfrEvents);
+    // Nothing's allocated unless recording.
+    assertThat(FlightRecorderEvents.INSTANCE.beginRequest()).isNull();
+
+    recording = new Recording();
+    recording.enable("net.ltgt.gwt.devserver.Request");
+    recording.enable("net.ltgt.gwt.devserver.UpstreamConnectionAcquisition");
+    recording.enable("net.ltgt.gwt.devserver.Compile");
+    recording.start();
+
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.proxyTo = mockWebServer.url("").toString();
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options, CompletableFuture.completedFuture(mockCodeServer.getPort()), null, compileEvents,
+        new StartupTimings());
+    HttpUrl baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+
+    mockWebServer.enqueue(new MockResponse().setBody("From web server"));
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl.resolve("app.js?v=1")).build())
+        .execute()) {
+      assertThat(response.body().string()).isEqualTo("From web server");
+    }
+    compileEvents.onJobChange(event(JobEvent.Status.COMPILING));
+    compileEvents.onJobChange(event(JobEvent.Status.ERROR));
+
+    // Proxied requests are only recorded once completed, possibly after the client got the response.
+    RecordedEvent request = null;
+    RecordedEvent connection = null;
+    RecordedEvent compile = null;
+    for (int i = 0; i < 50 && request == null; i++) {
+      for (RecordedEvent event : events()) {
+        switch (event.getEventType().getName()) {
+          case "net.ltgt.gwt.devserver.Request":
+            request = event;
+            break;
+          case "net.ltgt.gwt.devserver.UpstreamConnectionAcquisition":
+            connection = event;
+            break;
+          case "net.ltgt.gwt.devserver.Compile":
+            compile = event;
+            break;
+          default:
+            break;
+        }
+      }
+      Thread.sleep(100);
+    }
+    assertThat(request).isNotNull();
+    assertThat(request.getString("route")).isEqualTo("upstream");
+    assertThat(request.getString("method")).isEqualTo("GET");
+    assertThat(request.getString("path")).isEqualTo("/app.js");
+    assertThat(request.getInt("status")).isEqualTo(200);
+    assertThat(request.getLong("responseBytes")).isEqualTo(15L);
+    assertThat(connection).isNotNull();
+    assertThat(connection.getString("destination"))
+        .isEqualTo("http://" + mockWebServer.getHostName() + ":" + mockWebServer.getPort());
+    assertThat(compile).isNotNull();
+    assertThat(compile.getString("module")).isEqualTo("tests");
+    assertThat(compile.getString("jobId")).isEqualTo("tests_1");
+    assertThat(compile.getString("outcome")).isEqualTo("failed");
+  }
+
+  private List<RecordedEvent> events() throws Exception {
+    Path dump = tmp.newFile().toPath();
+    recording.dump(dump);
+    return RecordingFile.readAllEvents(dump);
+  }
+
+  private static JobEvent event(JobEvent.Status status) {
+    JobEvent.Builder builder = new JobEvent.Builder();
+    builder.setJobId("tests_1");
+    builder.setInputModuleName("net.ltgt.gwt.devserver.GWTTestCase");
+    builder.setOutputModuleName("tests");
+    builder.setStatus(status);
+    return builder.build();
+  }
+}
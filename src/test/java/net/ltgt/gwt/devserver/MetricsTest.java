@@ -0,0 +1,99 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MetricsTest {
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+  @ClassRule public static MockWebServer mockWebServer = new MockWebServer();
+
+  static {
+    mockWebServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        return new MockResponse()
+            .setBody("From web server: " + request.getPath());
+      }
+    });
+  }
+
+  private static Server server;
+  private static HttpUrl baseUrl;
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockWebServer.url("").toString();
+    options.maxThreads = 50;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  @AfterClass public static void tearDownClass() throws Exception {
+    server.stop();
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+
+  @Test public void testMetrics() throws Exception {
+    assertThat(get("tests/tests.nocache.js")).contains("tests");
+    assertThat(get("whatever")).isEqualTo("From web server: /whatever");
+
+    String metrics = get("__devserver/metrics");
+    // Proxied requests are only recorded once complete, which can happen after the client got the response.
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!metrics.contains("devserver_request_duration_seconds_count{route=\"upstream\"} 1\n")
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      metrics = get("__devserver/metrics");
+    }
+
+    assertThat(metrics).contains("devserver_requests_total{route=\"stub\",module=\"tests\"} 1\n");
+    assertThat(metrics).contains("devserver_requests_total{route=\"codeserver\",module=\"tests\"} 0\n");
+    assertThat(metrics).contains("devserver_requests_total{route=\"upstream\"} 1\n");
+    assertThat(metrics).contains("devserver_requests_in_flight{route=\"upstream\"} 0\n");
+    assertThat(metrics).contains("devserver_response_bytes_total{route=\"upstream\"} 26\n");
+    assertThat(metrics).contains("devserver_request_duration_seconds_count{route=\"upstream\"} 1\n");
+    assertThat(metrics).contains("devserver_request_duration_seconds_bucket{route=\"upstream\",le=\"+Inf\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_duration_seconds_count{route=\"upstream\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_failures_total{route=\"upstream\"} 0\n");
+    assertThat(metrics).doesNotContain("devserver_upstream_duration_seconds_count{route=\"stub\"");
+    assertThat(metrics).contains("devserver_threads{state=\"busy\"} ");
+    assertThat(metrics).contains("devserver_threads_max 50\n");
+    assertThat(metrics).contains("devserver_threads_queue_size ");
+  }
+
+  private String get(String path) throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments(path).build())
+        .header("Accept-Encoding", "identity")
+        .build())
+        .execute()) {
+      return response.body().string();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.log.PrintWriterTreeLogger;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PrecompilerTest {
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+
+  private final CompletableFuture<String> codeServerOrigin = new CompletableFuture<>();
+  private Precompiler precompiler;
+
+  @After public void tearDown() throws Exception {
+    precompiler.stop();
+  }
+
+  @Test public void testBoundedWorkers() throws Exception {
+    Map<String, CompletableFuture<String>> codeServerOrigins = new LinkedHashMap<>();
+    for (String outputModuleName : Arrays.asList("one", "two", "three")) {
+      codeServerOrigins.put(outputModuleName, codeServerOrigin);
+    }
+    precompiler = new Precompiler(codeServerOrigins, 2, new PrintWriterTreeLogger());
+    precompiler.start();
+    // Nothing happens until the CodeServer has started.
+    assertThat(mockCodeServer.takeRequest(200, TimeUnit.MILLISECONDS)).isNull();
+
+    // Compiles are slow.
+    for (int i = 0; i < 3; i++) {
+      mockCodeServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}").setBodyDelay(1, TimeUnit.SECONDS));
+    }
+    codeServerOrigin.complete(mockCodeServer.url("").toString().replaceAll("/$", ""));
+
+    RecordedRequest first = mockCodeServer.takeRequest(10, TimeUnit.SECONDS);
+    RecordedRequest second = mockCodeServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(first).isNotNull();
+    assertThat(second).isNotNull();
+    assertThat(first.getPath()).endsWith("?user.agent=safari&locale=en");
+    // The third one waits for a worker.
+    assertThat(mockCodeServer.takeRequest(500, TimeUnit.MILLISECONDS)).isNull();
+    RecordedRequest third = mockCodeServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(third).isNotNull();
+    assertThat(Arrays.asList(first.getPath(), second.getPath(), third.getPath())).containsExactly(
+        "/recompile/one?user.agent=safari&locale=en",
+        "/recompile/two?user.agent=safari&locale=en",
+        "/recompile/three?user.agent=safari&locale=en");
+  }
+}
@@ -0,0 +1,138 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PreloadHintsTest {
+  private static final String PADDING = new String(new char[1024]).replace('\0', ' ');
+
+  @Rule public TemporaryFolder baseDir = new TemporaryFolder();
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+  private HttpUrl baseUrl;
+  private String hints;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testStaticPage() throws Exception {
+    Files.write("<!DOCTYPE html><html><head lang='a>b'><title>Test</title></head><body>" + PADDING + "</body></html>",
+        baseDir.newFile("index.html"), StandardCharsets.UTF_8);
+    DevServer.Options options = newOptions();
+    options.baseDir = baseDir.getRoot();
+    start(options);
+
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve("index.html"))
+        .header("Accept", "text/html,*/*")
+        .header("Accept-Encoding", "gzip")
+        .build()).execute()) {
+      // Still compressed on the way out.
+      assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+      assertThat(response.header("ETag")).startsWith("W/");
+      String body = new String(ByteStreams.toByteArray(new GZIPInputStream(response.body().byteStream())),
+          StandardCharsets.UTF_8);
+      assertThat(body).startsWith("<!DOCTYPE html><html><head lang='a>b'>" + hints + "<title>");
+    }
+
+    // Not a navigation.
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve("index.html"))
+        .header("Accept", "*/*")
+        .build()).execute()) {
+      assertThat(response.body().string()).doesNotContain("preload");
+    }
+  }
+
+  @Test public void testProxiedPageInChunks() throws Exception {
+    String page = "<html><header></header><HEAD>" + PADDING + "</HEAD><body></body></html>";
+    mockWebServer.enqueue(new MockResponse()
+        .setHeader("Content-Type", "text/html; charset=utf-8")
+        .setChunkedBody(page, 3));
+    mockWebServer.enqueue(new MockResponse()
+        .setHeader("Content-Type", "text/plain")
+        .setBody(page));
+    DevServer.Options options = newOptions();
+    options.proxyTo = mockWebServer.url("").toString();
+    start(options);
+
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve("page"))
+        .header("Accept", "text/html")
+        .build()).execute()) {
+      assertThat(response.body().string())
+          .isEqualTo("<html><header></header><HEAD>" + hints + PADDING + "</HEAD><body></body></html>");
+    }
+    RecordedRequest request = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(request.getHeader("Accept-Encoding")).isNull();
+
+    // Not HTML; uncompressed so that the Content-Length is kept.
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve("page"))
+        .header("Accept", "text/html")
+        .header("Accept-Encoding", "identity")
+        .build()).execute()) {
+      assertThat(response.body().string()).isEqualTo(page);
+      assertThat(response.header("Content-Length")).isEqualTo(String.valueOf(page.length()));
+    }
+  }
+
+  @Test public void testScannerAcrossChunks() throws Exception {
+    byte[] page = "<html><head\n data-x=\"<head>\">".getBytes(StandardCharsets.UTF_8);
+    for (int split = 0; split <= page.length; split++) {
+      PreloadHintsFilter.HeadScanner scanner = new PreloadHintsFilter.HeadScanner();
+      int at = scanner.scan(page, 0, split);
+      if (at < 0) {
+        at = scanner.scan(page, split, page.length - split);
+      }
+      assertThat(at).isEqualTo(page.length);
+    }
+  }
+
+  private DevServer.Options newOptions() {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.preloadHints = true;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    return options;
+  }
+
+  private void start(DevServer.Options options) throws Exception {
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+    hints = "<link rel=\"preconnect\" href=\"http://" + options.connectAddress + ":" + mockCodeServer.getPort() + "\">"
+        + "<link rel=\"preload\" href=\"/tests/tests.nocache.js\" as=\"script\">";
+  }
+}
@@ -0,0 +1,128 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RoutesTest {
+  @ClassRule public static TemporaryFolder baseDir = new TemporaryFolder();
+  @ClassRule public static TemporaryFolder docsDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+  @ClassRule public static MockWebServer api = new MockWebServer();
+  @ClassRule public static MockWebServer apiV2 = new MockWebServer();
+
+  static {
+    mockCodeServer.setDispatcher(respondWith("From code server"));
+    api.setDispatcher(respondWith("From api"));
+    apiV2.setDispatcher(respondWith("From api v2"));
+  }
+
+  private static Server server;
+  private static HttpUrl baseUrl;
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    Files.write("From file system: apis", baseDir.newFile("apis"), StandardCharsets.UTF_8);
+    Files.write("From docs: index.html", docsDir.newFile("index.html"), StandardCharsets.UTF_8);
+
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.baseDir = baseDir.getRoot();
+    options.routes.add(PrefixRoute.parse("/api=" + origin(api)));
+    options.routes.add(PrefixRoute.parse("/api/v2/=" + origin(apiV2)));
+    options.routes.add(PrefixRoute.parse("/docs=" + docsDir.getRoot()));
+    options.routes.add(PrefixRoute.parse("/tests/shadowed=" + docsDir.getRoot()));
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  @AfterClass public static void tearDownClass() throws Exception {
+    server.stop();
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+
+  @Test public void testArgs() throws Exception {
+    File routesFile = baseDir.newFile("routes.txt");
+    Files.write("# comment\n\n/auth=http://auth:8080\n/static=" + docsDir.getRoot() + "\n",
+        routesFile, StandardCharsets.UTF_8);
+    DevServer.Options options = new DevServer.Options();
+    assertThat(new DevServer.ArgProcessor(options).processArgs(
+        "-route", "/api=http://one:8080,http://two:8080", "-route", "/=" + docsDir.getRoot(),
+        "-routes", routesFile.getPath(),
+        "net.ltgt.gwt.devserver.GWTTestCase")).isTrue();
+    assertThat(options.routes).hasSize(4);
+    assertThat(options.routes.get(0).origins).containsExactly("http://one:8080", "http://two:8080").inOrder();
+    assertThat(options.routes.get(1).dir).isEqualTo(docsDir.getRoot());
+    assertThat(options.routes.get(2).prefix).isEqualTo("/auth");
+    assertThat(options.routes.get(3).getPathSpec()).isEqualTo("/static/*");
+
+    assertThat(new DevServer.ArgProcessor(new DevServer.Options()).processArgs(
+        "-route", "/api=http://one:8080", "-route", "/api/=http://two:8080",
+        "net.ltgt.gwt.devserver.GWTTestCase")).isFalse();
+  }
+
+  @Test public void testLongestPrefix() throws Exception {
+    assertThat(get("api/users")).isEqualTo("From api: /api/users");
+    assertThat(get("api")).isEqualTo("From api: /api");
+    assertThat(get("api/v2/users")).isEqualTo("From api v2: /api/v2/users");
+    // whole segments only
+    assertThat(get("apis")).isEqualTo("From file system: apis");
+  }
+
+  @Test public void testStaticRoute() throws Exception {
+    assertThat(get("docs/index.html")).isEqualTo("From docs: index.html");
+  }
+
+  @Test public void testModulesTakePrecedence() throws Exception {
+    assertThat(get("tests/shadowed/index.html")).isEqualTo("From code server: /tests/shadowed/index.html");
+  }
+
+  private String get(String path) throws Exception {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments(path).build())
+        .build())
+        .execute()) {
+      return response.body().string();
+    }
+  }
+
+  private static String origin(MockWebServer server) {
+    return server.url("").toString().replaceAll("/$", "");
+  }
+
+  private static Dispatcher respondWith(String body) {
+    return new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setBody(body + ": " + request.getPath());
+      }
+    };
+  }
+}
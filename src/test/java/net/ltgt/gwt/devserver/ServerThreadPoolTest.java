@@ -0,0 +1,80 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeNotNull;
+
+public class ServerThreadPoolTest {
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testArgs() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    assertThat(new DevServer.ArgProcessor(options).processArgs(
+        "-minThreads", "4", "-maxThreads", "16", "-threadQueueSize", "100", "-threadIdleTimeout", "1000",
+        "-acceptors", "1", "-selectors", "2", "-virtualThreads",
+        "net.ltgt.gwt.devserver.GWTTestCase")).isTrue();
+    assertThat(options.minThreads).isEqualTo(4);
+    assertThat(options.maxThreads).isEqualTo(16);
+    assertThat(options.threadQueueSize).isEqualTo(100);
+    assertThat(options.threadIdleTimeout).isEqualTo(1000);
+    assertThat(options.acceptors).isEqualTo(1);
+    assertThat(options.selectors).isEqualTo(2);
+    assertThat(options.virtualThreads).isTrue();
+  }
+
+  @Test public void testVirtualThreads() throws Exception {
+    ExecutorService virtualThreads = ServerThreadPool.newVirtualThreadExecutor();
+    assumeNotNull(virtualThreads);
+    virtualThreads.shutdown();
+
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockCodeServer.url("").toString();
+    options.virtualThreads = true;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    HttpUrl baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments("tests/tests.nocache.js").build())
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(200);
+    }
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.newBuilder().addPathSegments("__devserver/metrics").build())
+        .build())
+        .execute()) {
+      // this very request is running on a virtual thread
+      assertThat(response.body().string()).contains("devserver_virtual_threads_in_flight 1\n");
+    }
+  }
+}
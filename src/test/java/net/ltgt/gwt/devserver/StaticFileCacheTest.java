@@ -0,0 +1,134 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.log.PrintWriterTreeLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StaticFileCacheTest {
+  @Rule public TemporaryFolder baseDir = new TemporaryFolder();
+
+  private StaticFileCache cache;
+
+  @Before public void setUp() throws Exception {
+    cache = new StaticFileCache(baseDir.getRoot().toPath(), 80, new PrintWriterTreeLogger());
+    cache.start();
+  }
+
+  /** Restarts the cache so change events for files created by the test don't interfere. */
+  private void restartCache() throws Exception {
+    cache.stop();
+    setUp();
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.stop();
+  }
+
+  @Test public void testHitsAndMisses() throws Exception {
+    Files.write("0123456789", baseDir.newFile("index.html"), StandardCharsets.UTF_8);
+    restartCache();
+
+    assertThat(contentOf(cache.get("index.html"))).isEqualTo("0123456789");
+    assertThat(contentOf(cache.get("index.html"))).isEqualTo("0123456789");
+    assertThat(cache.get("missing.html")).isNull();
+    assertThat(cache.get("../escape.html")).isNull();
+
+    assertThat(cache.get("missing.html")).isNull();
+
+    assertThat(cache.getHits()).isEqualTo(2);
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+    assertThat(cache.getSize()).isEqualTo(10);
+  }
+
+  @Test public void testTooBig() throws Exception {
+    Files.write("0123456789A", baseDir.newFile("big.js"), StandardCharsets.UTF_8);
+
+    assertThat(cache.get("big.js")).isNull();
+    assertThat(cache.getSize()).isEqualTo(0);
+  }
+
+  @Test public void testEviction() throws Exception {
+    for (int i = 0; i < 9; i++) {
+      Files.write("0123456789", baseDir.newFile(i + ".js"), StandardCharsets.UTF_8);
+    }
+    restartCache();
+    // Evicted first, but not counted as it held no content.
+    assertThat(cache.get("missing.js")).isNull();
+    for (int i = 0; i < 9; i++) {
+      assertThat(cache.get(i + ".js")).isNotNull();
+    }
+
+    assertThat(cache.getEvictions()).isEqualTo(1);
+    assertThat(cache.getEntryCount()).isEqualTo(8);
+    assertThat(cache.getSize()).isEqualTo(80);
+    // 0.js was the least recently used
+    long misses = cache.getMisses();
+    cache.get("0.js");
+    assertThat(cache.getMisses()).isEqualTo(misses + 1);
+  }
+
+  @Test public void testInvalidation() throws Exception {
+    File subdir = baseDir.newFolder("subdir");
+    File file = new File(subdir, "index.html");
+    Files.write("before", file, StandardCharsets.UTF_8);
+    assertThat(contentOf(cache.get("subdir/index.html"))).isEqualTo("before");
+
+    Files.write("after", file, StandardCharsets.UTF_8);
+    long deadline = System.currentTimeMillis() + 30000;
+    while (cache.getEntryCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(contentOf(cache.get("subdir/index.html"))).isEqualTo("after");
+  }
+
+  @Test public void testCreation() throws Exception {
+    assertThat(cache.get("created.html")).isNull();
+
+    Files.write("created", baseDir.newFile("created.html"), StandardCharsets.UTF_8);
+    long deadline = System.currentTimeMillis() + 30000;
+    while (cache.getEntryCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(contentOf(cache.get("created.html"))).isEqualTo("created");
+  }
+
+  @Test public void testMissingThenCreated() throws Exception {
+    assertThat(cache.get("later.html")).isNull();
+    assertThat(cache.get("later.html")).isNull();
+
+    // Found right away, even though the watch service might not have noticed yet.
+    Files.write("later", baseDir.newFile("later.html"), StandardCharsets.UTF_8);
+    assertThat(contentOf(cache.get("later.html"))).isEqualTo("later");
+  }
+
+  @Test public void testAliases() throws Exception {
+    File real = baseDir.newFolder("real");
+    Files.write("real", new File(real, "index.html"), StandardCharsets.UTF_8);
+    java.nio.file.Files.createSymbolicLink(baseDir.getRoot().toPath().resolve("link"), real.toPath());
+    java.nio.file.Files.createSymbolicLink(baseDir.getRoot().toPath().resolve("file.html"),
+        real.toPath().resolve("index.html"));
+    restartCache();
+
+    assertThat(cache.get("link/index.html")).isNull();
+    assertThat(cache.get("file.html")).isNull();
+    assertThat(contentOf(cache.get("real/index.html"))).isEqualTo("real");
+  }
+
+  private static String contentOf(StaticFileCache.Entry entry) {
+    ByteBuffer content = entry.content.duplicate();
+    byte[] bytes = new byte[content.remaining()];
+    content.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,277 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+import org.eclipse.jetty.server.InclusiveByteRange;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StreamingFileServletTest {
+  @ClassRule public static TemporaryFolder baseDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+
+  private static final int THRESHOLD = 64 * 1024;
+
+  private static final String SMALL = "0123456789abcdefghijklmnopqrstuvwxyz";
+  private static final String BIG;
+  static {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 2 * THRESHOLD; i++) {
+      sb.append("line ").append(i).append('\n');
+    }
+    BIG = sb.toString();
+  }
+
+  private static byte[] bigGzipped;
+  private static Server server;
+  private static HttpUrl baseUrl;
+
+  @BeforeClass public static void setUpClass() throws Exception {
+    Files.write(SMALL, baseDir.newFile("small.js"), StandardCharsets.UTF_8);
+    Files.write(BIG, baseDir.newFile("big.js"), StandardCharsets.UTF_8);
+    Files.write(BIG, baseDir.newFile("sidecar.js"), StandardCharsets.UTF_8);
+    try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(baseDir.newFile("sidecar.js.gz")))) {
+      out.write(BIG.getBytes(StandardCharsets.UTF_8));
+    }
+    File real = baseDir.newFolder("real");
+    Files.write(BIG, new File(real, "big.js"), StandardCharsets.UTF_8);
+    java.nio.file.Files.createSymbolicLink(baseDir.getRoot().toPath().resolve("link"), real.toPath());
+    bigGzipped = Files.toByteArray(baseDir.getRoot().toPath().resolve("sidecar.js.gz").toFile());
+
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.baseDir = baseDir.getRoot();
+    options.staticStreamThreshold = THRESHOLD;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  @AfterClass public static void tearDownClass() throws Exception {
+    server.stop();
+  }
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+
+  @Test public void testBigFile() throws Exception {
+    String etag;
+    try (Response response = get("big.js", "gzip", null, null)) {
+      assertThat(response.code()).isEqualTo(200);
+      // Not compressed on the fly.
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.header("Accept-Ranges")).isEqualTo("bytes");
+      assertThat(response.header("Content-Length")).isEqualTo(String.valueOf(BIG.length()));
+      etag = response.header("ETag");
+      assertThat(response.body().string()).isEqualTo(BIG);
+    }
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve("big.js"))
+        .header("If-None-Match", etag)
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(304);
+    }
+  }
+
+  @Test public void testIfModifiedSince() throws Exception {
+    for (String path : new String[] { "small.js", "big.js" }) {
+      String lastModified;
+      try (Response response = get(path, "identity", null, null)) {
+        lastModified = response.header("Last-Modified");
+      }
+      try (Response response = client.newCall(new Request.Builder()
+          .url(baseUrl.resolve(path))
+          .header("If-Modified-Since", lastModified)
+          .build())
+          .execute()) {
+        assertThat(response.code()).isEqualTo(304);
+      }
+      // Invalid dates are ignored.
+      try (Response response = client.newCall(new Request.Builder()
+          .url(baseUrl.resolve(path))
+          .header("If-Modified-Since", "yesterday")
+          .build())
+          .execute()) {
+        assertThat(response.code()).isEqualTo(200);
+      }
+    }
+    try (Response response = get("big.js", "identity", "bytes=0-9", "yesterday")) {
+      assertThat(response.code()).isEqualTo(200);
+    }
+  }
+
+  @Test public void testSingleRange() throws Exception {
+    try (Response response = get("big.js", "identity", "bytes=100-199", null)) {
+      assertThat(response.code()).isEqualTo(206);
+      assertThat(response.header("Content-Range")).isEqualTo("bytes 100-199/" + BIG.length());
+      assertThat(response.body().string()).isEqualTo(BIG.substring(100, 200));
+    }
+    try (Response response = get("big.js", "identity", "bytes=-10", null)) {
+      assertThat(response.code()).isEqualTo(206);
+      assertThat(response.body().string()).isEqualTo(BIG.substring(BIG.length() - 10));
+    }
+    try (Response response = get("big.js", "identity", "bytes=" + (BIG.length() - 5) + "-", null)) {
+      assertThat(response.code()).isEqualTo(206);
+      assertThat(response.body().string()).isEqualTo(BIG.substring(BIG.length() - 5));
+    }
+  }
+
+  @Test public void testMultipleRanges() throws Exception {
+    try (Response response = get("big.js", "gzip", "bytes=0-9, 20-29, 25-34", null)) {
+      assertThat(response.code()).isEqualTo(206);
+      String contentType = response.header("Content-Type");
+      assertThat(contentType).startsWith("multipart/byteranges; boundary=");
+      String boundary = contentType.substring(contentType.indexOf('=') + 1);
+      String mimeType = "Content-Type: application/javascript\r\n";
+      String expected = "--" + boundary + "\r\n" + mimeType + "Content-Range: bytes 0-9/" + BIG.length() + "\r\n\r\n"
+          + BIG.substring(0, 10)
+          + "\r\n--" + boundary + "\r\n" + mimeType + "Content-Range: bytes 20-34/" + BIG.length() + "\r\n\r\n"
+          + BIG.substring(20, 35)
+          + "\r\n--" + boundary + "--\r\n";
+      assertThat(response.header("Content-Length")).isEqualTo(String.valueOf(expected.length()));
+      assertThat(response.body().string()).isEqualTo(expected);
+    }
+  }
+
+  @Test public void testIfRange() throws Exception {
+    String etag;
+    String lastModified;
+    try (Response response = get("big.js", "identity", "bytes=0-9", null)) {
+      etag = response.header("ETag");
+      lastModified = response.header("Last-Modified");
+    }
+    try (Response response = get("big.js", "identity", "bytes=0-9", etag)) {
+      assertThat(response.code()).isEqualTo(206);
+      assertThat(response.body().string()).isEqualTo(BIG.substring(0, 10));
+    }
+    try (Response response = get("big.js", "identity", "bytes=0-9", lastModified)) {
+      assertThat(response.code()).isEqualTo(206);
+    }
+    try (Response response = get("big.js", "identity", "bytes=0-9", "\"stale\"")) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.body().string()).isEqualTo(BIG);
+    }
+    try (Response response = get("big.js", "identity", "bytes=0-9", "W/" + etag)) {
+      assertThat(response.code()).isEqualTo(200);
+    }
+  }
+
+  @Test public void testUnsatisfiableRange() throws Exception {
+    try (Response response = get("big.js", "identity", "bytes=" + BIG.length() + "-", null)) {
+      assertThat(response.code()).isEqualTo(416);
+      assertThat(response.header("Content-Range")).isEqualTo("bytes */" + BIG.length());
+    }
+    // Malformed ranges are ignored.
+    try (Response response = get("big.js", "identity", "bytes=10-5", null)) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.body().string()).isEqualTo(BIG);
+    }
+  }
+
+  @Test public void testPrecompressedRange() throws Exception {
+    String etag;
+    try (Response response = get("sidecar.js", "gzip", null, null)) {
+      assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+      etag = response.header("ETag");
+      assertThat(response.body().bytes()).isEqualTo(bigGzipped);
+    }
+    try (Response response = get("sidecar.js", "gzip", "bytes=10-19", etag)) {
+      assertThat(response.code()).isEqualTo(206);
+      assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+      assertThat(response.header("Content-Range")).isEqualTo("bytes 10-19/" + bigGzipped.length);
+      assertThat(response.body().bytes()).isEqualTo(Arrays.copyOfRange(bigGzipped, 10, 20));
+    }
+    try (Response response = get("sidecar.js", "identity", "bytes=10-19", null)) {
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.header("ETag")).isNotEqualTo(etag);
+      assertThat(response.body().string()).isEqualTo(BIG.substring(10, 20));
+    }
+  }
+
+  @Test public void testCachedFileRange() throws Exception {
+    try (Response response = get("small.js", "identity", "bytes=1-3,-2", null)) {
+      assertThat(response.code()).isEqualTo(206);
+      assertThat(response.header("Content-Type")).startsWith("multipart/byteranges");
+      String body = response.body().string();
+      assertThat(body).contains("Content-Range: bytes 1-3/" + SMALL.length() + "\r\n\r\n123\r\n");
+      assertThat(body).contains("Content-Range: bytes 34-35/" + SMALL.length() + "\r\n\r\nyz\r\n");
+    }
+  }
+
+  @Test public void testAliases() throws Exception {
+    try (Response response = get("real/big.js", "identity", null, null)) {
+      assertThat(response.code()).isEqualTo(200);
+    }
+    // Refused by the DefaultServlet.
+    try (Response response = get("link/big.js", "identity", null, null)) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+    try (Response response = get("link/big.js", "identity", "bytes=0-9", null)) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+  }
+
+  @Test public void testRanges() {
+    assertThat(format(StreamingFileServlet.ranges("bytes=0-0", 10))).isEqualTo("[0-0]");
+    assertThat(format(StreamingFileServlet.ranges("bytes=5-, -3", 10))).isEqualTo("[5-9]");
+    assertThat(format(StreamingFileServlet.ranges("bytes=6-7,0-1,2-3", 10))).isEqualTo("[0-3, 6-7]");
+    assertThat(format(StreamingFileServlet.ranges("bytes=8-100", 10))).isEqualTo("[8-9]");
+    assertThat(format(StreamingFileServlet.ranges("bytes=-100", 10))).isEqualTo("[0-9]");
+    assertThat(format(StreamingFileServlet.ranges("bytes=10-,-0", 10))).isEqualTo("[]");
+    assertThat(StreamingFileServlet.ranges("items=0-1", 10)).isNull();
+    assertThat(StreamingFileServlet.ranges("bytes=", 10)).isNull();
+    assertThat(StreamingFileServlet.ranges("bytes=1", 10)).isNull();
+    assertThat(StreamingFileServlet.ranges("bytes=-1-2", 10)).isNull();
+    assertThat(StreamingFileServlet.ranges("bytes=+1-2", 10)).isNull();
+    assertThat(StreamingFileServlet.ranges("bytes=" + Strings.repeat("0-0,", StreamingFileServlet.MAX_RANGES + 1), 10))
+        .isNull();
+  }
+
+  private static String format(List<InclusiveByteRange> ranges) {
+    StringBuilder sb = new StringBuilder("[");
+    for (InclusiveByteRange range : ranges) {
+      sb.append(sb.length() == 1 ? "" : ", ").append(range.getFirst()).append('-').append(range.getLast());
+    }
+    return sb.append(']').toString();
+  }
+
+  private Response get(String path, String acceptEncoding, String range, String ifRange) throws Exception {
+    Request.Builder request = new Request.Builder()
+        .url(baseUrl.resolve(path))
+        .header("Accept-Encoding", acceptEncoding);
+    if (range != null) {
+      request.header("Range", range);
+    }
+    if (ifRange != null) {
+      request.header("If-Range", ifRange);
+    }
+    return client.newCall(request.build()).execute();
+  }
+}
@@ -0,0 +1,116 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.GzipSource;
+import okio.Okio;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StubServletTest {
+  @ClassRule public static TemporaryFolder baseDir = new TemporaryFolder();
+
+  @ClassRule public static MockWebServer mockCodeServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+
+  private Server server;
+  private HttpUrl stubUrl;
+
+  @Before public void setUp() throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.baseDir = baseDir.getRoot();
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    stubUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .addPathSegments("tests/tests.nocache.js")
+        .build();
+  }
+
+  @After public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Test public void testIdentity() throws Exception {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(stubUrl)
+        .header("Accept-Encoding", "identity")
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.header("Content-Encoding")).isNull();
+      assertThat(response.header("ETag")).isNotNull();
+      final String body = response.body().string();
+      assertThat(body).contains("tests");
+      assertThat(response.header("Content-Length")).isEqualTo(String.valueOf(body.getBytes("UTF-8").length));
+    }
+  }
+
+  @Test public void testGzip() throws Exception {
+    final String identityEtag;
+    final String identityBody;
+    try (Response response = client.newCall(new Request.Builder()
+        .url(stubUrl)
+        .header("Accept-Encoding", "identity")
+        .build())
+        .execute()) {
+      identityEtag = response.header("ETag");
+      identityBody = response.body().string();
+    }
+    try (Response response = client.newCall(new Request.Builder()
+        .url(stubUrl)
+        .header("Accept-Encoding", "gzip")
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+      assertThat(response.header("ETag")).isNotEqualTo(identityEtag);
+      assertThat(Okio.buffer(new GzipSource(response.body().source())).readUtf8()).isEqualTo(identityBody);
+    }
+  }
+
+  @Test public void testNotModified() throws Exception {
+    final String etag;
+    try (Response response = client.newCall(new Request.Builder()
+        .url(stubUrl)
+        .header("Accept-Encoding", "gzip")
+        .build())
+        .execute()) {
+      etag = response.header("ETag");
+    }
+    try (Response response = client.newCall(new Request.Builder()
+        .url(stubUrl)
+        .header("Accept-Encoding", "gzip")
+        .header("If-None-Match", etag)
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(304);
+      assertThat(response.header("ETag")).isEqualTo(etag);
+    }
+    try (Response response = client.newCall(new Request.Builder()
+        .url(stubUrl)
+        .header("Accept-Encoding", "identity")
+        .header("If-None-Match", etag)
+        .build())
+        .execute()) {
+      assertThat(response.code()).isEqualTo(200);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.common.io.Files;
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import com.google.gwt.dev.util.log.PrintWriterTreeLogger;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class UpstreamArchiveTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testRecordThenReplay() throws Exception {
+    mockWebServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse()
+            .setHeader("Content-Type", "text/plain")
+            .setBody("From web server: " + request.getPath() + " " + request.getHeader("Accept-Language"));
+      }
+    });
+    File archive = tmp.newFile("upstream.archive");
+
+    DevServer.Options options = newOptions();
+    options.proxyRecord = archive;
+    start(options);
+    assertThat(record(archive, "app.js?v=1", "fr")).isEqualTo("From web server: /app.js?v=1 fr");
+    assertThat(record(archive, "app.js?v=1", "en")).isEqualTo("From web server: /app.js?v=1 en");
+    assertThat(record(archive, "data?b=2&a=1", "en")).isEqualTo("From web server: /data?b=2&a=1 en");
+    // Recorded responses are uncompressed and complete.
+    RecordedRequest recorded = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(recorded.getHeader("Accept-Encoding")).isNull();
+    server.stop();
+
+    options = newOptions();
+    options.proxyReplay = archive;
+    options.proxyArchiveIgnoredParams.add("v");
+    start(options);
+    int requestCount = mockWebServer.getRequestCount();
+    assertThat(get("app.js?v=2", "fr")).isEqualTo("From web server: /app.js?v=1 fr");
+    assertThat(get("app.js", "en")).isEqualTo("From web server: /app.js?v=1 en");
+    // Query parameters are matched in any order.
+    assertThat(get("data?a=1&b=2", "en")).isEqualTo("From web server: /data?b=2&a=1 en");
+    try (Response response = newCall("app.js", "de").execute()) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(requestCount);
+  }
+
+  @Test public void testCredentials() throws Exception {
+    mockWebServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse()
+            .setHeader("Set-Cookie", "session=secret-session")
+            .setBody("From web server: " + request.getPath());
+      }
+    });
+    File archive = tmp.newFile("upstream.archive");
+
+    DevServer.Options options = newOptions();
+    options.proxyRecord = archive;
+    options.proxyArchiveMatchedHeaders.add("Cookie");
+    start(options);
+    long length = archive.length();
+    try (Response response = newCallWithCredentials("app.js", "secret-cookie").execute()) {
+      assertThat(response.body().string()).isEqualTo("From web server: /app.js");
+    }
+    for (int i = 0; i < 500 && archive.length() == length; i++) {
+      Thread.sleep(10);
+    }
+    RecordedRequest recorded = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    // Proxied as-is.
+    assertThat(recorded.getHeader("Authorization")).isEqualTo("Bearer secret-token");
+    assertThat(recorded.getHeader("Cookie")).isEqualTo("id=secret-cookie");
+    server.stop();
+    assertThat(Files.toString(archive, StandardCharsets.UTF_8)).doesNotContain("secret");
+
+    options = newOptions();
+    options.proxyReplay = archive;
+    options.proxyArchiveMatchedHeaders.add("Cookie");
+    start(options);
+    try (Response response = newCallWithCredentials("app.js", "secret-cookie").execute()) {
+      assertThat(response.body().string()).isEqualTo("From web server: /app.js");
+      assertThat(response.header("Set-Cookie")).isNull();
+    }
+    try (Response response = newCallWithCredentials("app.js", "other-cookie").execute()) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+  }
+
+  @Test public void testIncompleteRecord() throws Exception {
+    mockWebServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setBody("From web server: " + request.getPath());
+      }
+    });
+    File archive = tmp.newFile("upstream.archive");
+
+    DevServer.Options options = newOptions();
+    options.proxyRecord = archive;
+    start(options);
+    assertThat(record(archive, "one.js", "en")).isEqualTo("From web server: /one.js");
+    assertThat(record(archive, "two.js", "en")).isEqualTo("From web server: /two.js");
+    server.stop();
+    // As if the devserver had been killed while writing.
+    try (RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    // Recording again drops the incomplete record.
+    options = newOptions();
+    options.proxyRecord = archive;
+    start(options);
+    assertThat(record(archive, "three.js", "en")).isEqualTo("From web server: /three.js");
+    server.stop();
+
+    options = newOptions();
+    options.proxyReplay = archive;
+    start(options);
+    assertThat(get("one.js", "en")).isEqualTo("From web server: /one.js");
+    assertThat(get("three.js", "en")).isEqualTo("From web server: /three.js");
+    try (Response response = newCall("two.js", "en").execute()) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+  }
+
+  @Test public void testNotAnArchive() throws Exception {
+    File file = tmp.newFile("pom.xml");
+    Files.write("<project/>", file, StandardCharsets.UTF_8);
+
+    UpstreamArchive archive = new UpstreamArchive(file.toPath(), UpstreamArchive.Mode.RECORD,
+        Collections.<String>emptySet(), UpstreamArchive.DEFAULT_MATCHED_HEADERS, new PrintWriterTreeLogger());
+    try {
+      archive.start();
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("isn't an upstream archive");
+    }
+    assertThat(Files.toString(file, StandardCharsets.UTF_8)).isEqualTo("<project/>");
+  }
+
+  @Test public void testCorruptArchive() throws Exception {
+    mockWebServer.enqueue(new MockResponse().setBody("From web server"));
+    File archive = tmp.newFile("upstream.archive");
+
+    DevServer.Options options = newOptions();
+    options.proxyRecord = archive;
+    start(options);
+    assertThat(record(archive, "one.js", "en")).isEqualTo("From web server");
+    server.stop();
+    server = null;
+    Files.append("garbage", archive, StandardCharsets.UTF_8);
+    long length = archive.length();
+
+    for (UpstreamArchive.Mode mode : UpstreamArchive.Mode.values()) {
+      UpstreamArchive upstreamArchive = new UpstreamArchive(archive.toPath(), mode,
+          Collections.<String>emptySet(), UpstreamArchive.DEFAULT_MATCHED_HEADERS, new PrintWriterTreeLogger());
+      try {
+        upstreamArchive.start();
+        fail();
+      } catch (IOException expected) {
+        assertThat(expected).hasMessageThat().contains("is corrupt after");
+      }
+    }
+    assertThat(archive.length()).isEqualTo(length);
+  }
+
+  private DevServer.Options newOptions() {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockWebServer.url("").toString();
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    return options;
+  }
+
+  private void start(DevServer.Options options) throws Exception {
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  private String get(String pathAndQuery, String acceptLanguage) throws IOException {
+    try (Response response = newCall(pathAndQuery, acceptLanguage).execute()) {
+      return response.body().string();
+    }
+  }
+
+  /**
+   * Gets a response being recorded, waiting for it to be appended to the archive, which only happens
+   * once it's been proxied, possibly after the client got it.
+   */
+  private String record(File archive, String pathAndQuery, String acceptLanguage)
+      throws IOException, InterruptedException {
+    long length = archive.length();
+    String body = get(pathAndQuery, acceptLanguage);
+    for (int i = 0; i < 500 && archive.length() == length; i++) {
+      Thread.sleep(10);
+    }
+    return body;
+  }
+
+  private Call newCallWithCredentials(String pathAndQuery, String cookie) {
+    return client.newCall(new Request.Builder()
+        .url(baseUrl.resolve(pathAndQuery))
+        .header("Accept-Language", "en")
+        .header("Authorization", "Bearer secret-token")
+        .header("Cookie", "id=" + cookie)
+        .build());
+  }
+
+  private Call newCall(String pathAndQuery, String acceptLanguage) {
+    return client.newCall(new Request.Builder()
+        .url(baseUrl.resolve(pathAndQuery))
+        .header("Accept-Language", acceptLanguage)
+        .build());
+  }
+}
@@ -0,0 +1,206 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class UpstreamCacheTest {
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testFresh() throws Exception {
+    start(1);
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=60").setBody("one"));
+    mockWebServer.enqueue(new MockResponse().setBody("two"));
+
+    assertThat(get("app.js").body().string()).isEqualTo("one");
+    Response cached = get("app.js");
+    assertThat(cached.body().string()).isEqualTo("one");
+    assertThat(cached.header("Age")).isEqualTo("0");
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+
+    // Other URLs aren't affected.
+    assertThat(get("app.js?v=2").body().string()).isEqualTo("two");
+
+    String metrics = metrics();
+    assertThat(metrics).contains("devserver_upstream_cache_requests_total{result=\"hit\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_cache_requests_total{result=\"miss\"} 2\n");
+    assertThat(metrics).contains("devserver_upstream_cache_hit_ratio 0.3333333333333333\n");
+  }
+
+  @Test public void testNotStored() throws Exception {
+    start(1);
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "no-store").setBody("one"));
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=60").setBody("two"));
+    mockWebServer.enqueue(new MockResponse().setBody("three"));
+
+    assertThat(get("app.js").body().string()).isEqualTo("one");
+    assertThat(get("app.js").body().string()).isEqualTo("two");
+    // The client doesn't want a stored response.
+    assertThat(get("app.js", "Cache-Control", "no-store").body().string()).isEqualTo("three");
+  }
+
+  @Test public void testVary() throws Exception {
+    start(1);
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=60")
+        .setHeader("Vary", "Accept-Language").setBody("en"));
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=60")
+        .setHeader("Vary", "Accept-Language").setBody("fr"));
+
+    assertThat(get("messages", "Accept-Language", "en").body().string()).isEqualTo("en");
+    assertThat(get("messages", "Accept-Language", "fr").body().string()).isEqualTo("fr");
+    assertThat(get("messages", "Accept-Language", "en").body().string()).isEqualTo("en");
+    assertThat(get("messages", "Accept-Language", "fr").body().string()).isEqualTo("fr");
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void testRevalidation() throws Exception {
+    start(1);
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "no-cache")
+        .setHeader("ETag", "\"v1\"").setBody("one"));
+    mockWebServer.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""));
+    mockWebServer.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""));
+
+    assertThat(get("app.js").body().string()).isEqualTo("one");
+    RecordedRequest request = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(request.getHeader("If-None-Match")).isNull();
+
+    Response revalidated = get("app.js");
+    assertThat(revalidated.code()).isEqualTo(200);
+    assertThat(revalidated.body().string()).isEqualTo("one");
+    request = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(request.getHeader("If-None-Match")).isEqualTo("\"v1\"");
+
+    // The client's own validators are answered by the devserver.
+    try (Response notModified = get("app.js", "If-None-Match", "\"v1\"")) {
+      assertThat(notModified.code()).isEqualTo(304);
+      assertThat(notModified.header("ETag")).isEqualTo("\"v1\"");
+    }
+
+    assertThat(metrics()).contains("devserver_upstream_cache_requests_total{result=\"revalidated\"} 2\n");
+  }
+
+  @Test public void testWeakETag() throws Exception {
+    start(1);
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=60")
+        .setHeader("ETag", "W/\"v1\"").setBody("one"));
+
+    assertThat(get("app.js").body().string()).isEqualTo("one");
+    // If-None-Match uses the weak comparison.
+    try (Response notModified = get("app.js", "If-None-Match", "W/\"v1\"")) {
+      assertThat(notModified.code()).isEqualTo(304);
+      assertThat(notModified.header("ETag")).isEqualTo("W/\"v1\"");
+    }
+    try (Response notModified = get("app.js", "If-None-Match", "\"v1\"")) {
+      assertThat(notModified.code()).isEqualTo(304);
+    }
+    try (Response modified = get("app.js", "If-None-Match", "W/\"v0\"")) {
+      assertThat(modified.code()).isEqualTo(200);
+      assertThat(modified.body().string()).isEqualTo("one");
+    }
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test public void testRevalidationChanged() throws Exception {
+    start(1);
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "no-cache")
+        .setHeader("ETag", "\"v1\"").setBody("one"));
+    mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "no-cache")
+        .setHeader("ETag", "\"v2\"").setBody("two"));
+    mockWebServer.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v2\""));
+
+    assertThat(get("app.js").body().string()).isEqualTo("one");
+    Response changed = get("app.js");
+    assertThat(changed.code()).isEqualTo(200);
+    assertThat(changed.header("ETag")).isEqualTo("\"v2\"");
+    assertThat(changed.body().string()).isEqualTo("two");
+    // The new response replaced the stale one.
+    assertThat(get("app.js").body().string()).isEqualTo("two");
+    mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(mockWebServer.takeRequest(10, TimeUnit.SECONDS).getHeader("If-None-Match")).isEqualTo("\"v1\"");
+    assertThat(mockWebServer.takeRequest(10, TimeUnit.SECONDS).getHeader("If-None-Match")).isEqualTo("\"v2\"");
+
+    String metrics = metrics();
+    assertThat(metrics).contains("devserver_upstream_cache_requests_total{result=\"miss\"} 2\n");
+    assertThat(metrics).contains("devserver_upstream_cache_requests_total{result=\"revalidated\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_cache_requests_total{result=\"hit\"} 0\n");
+  }
+
+  @Test public void testEviction() throws Exception {
+    start(1);
+    String body = new String(new char[400 * 1024]).replace('\0', 'x');
+    for (int i = 0; i < 4; i++) {
+      mockWebServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=60").setBody(body));
+    }
+
+    get("a.js").body().string();
+    get("b.js").body().string();
+    // Makes b.js the least recently used.
+    get("a.js").body().string();
+    get("c.js").body().string();
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+
+    get("a.js").body().string();
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+    get("b.js").body().string();
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(4);
+    assertThat(metrics()).contains("devserver_upstream_cache_evictions_total 2\n");
+  }
+
+  private void start(long proxyCacheSizeMegabytes) throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockWebServer.url("").toString();
+    options.proxyCacheSize = proxyCacheSizeMegabytes * 1024 * 1024;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  private Response get(String pathAndQuery, String... headers) throws IOException {
+    Request.Builder request = new Request.Builder().url(baseUrl.resolve(pathAndQuery));
+    for (int i = 0; i < headers.length; i += 2) {
+      request.header(headers[i], headers[i + 1]);
+    }
+    return client.newCall(request.build()).execute();
+  }
+
+  private String metrics() throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve(DevServer.RESERVED_CONTEXT_PATH + "/metrics"))
+        .build()).execute()) {
+      return response.body().string();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class UpstreamClientsTest {
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testCircuitBreaker() throws Exception {
+    DevServer.Options options = newOptions();
+    options.proxyTimeout = 200;
+    options.proxyBreakerFailures = 2;
+    options.proxyBreakerDelay = 1;
+    start(options);
+    String destination = "destination=\"http://" + mockWebServer.getHostName() + ":" + mockWebServer.getPort() + "\"";
+
+    mockWebServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+    mockWebServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+    assertThat(get("app.js").code()).isEqualTo(504);
+    assertThat(get("app.js").code()).isEqualTo(504);
+
+    // Fails fast, without contacting the upstream.
+    try (Response rejected = get("app.js")) {
+      assertThat(rejected.code()).isEqualTo(503);
+      assertThat(rejected.header("Retry-After")).isEqualTo("1");
+    }
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    String metrics = metrics();
+    assertThat(metrics).contains("devserver_upstream_circuit_state{" + destination + ",state=\"open\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_circuit_rejected_total{" + destination + "} 1\n");
+    assertThat(metrics).contains("devserver_upstream_rejected_total{route=\"upstream\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_failures_total{route=\"upstream\"} 2\n");
+
+    // Probed once the delay has elapsed.
+    Thread.sleep(1100);
+    mockWebServer.enqueue(new MockResponse().setBody("From web server"));
+    try (Response probe = get("app.js")) {
+      assertThat(probe.code()).isEqualTo(200);
+      assertThat(probe.body().string()).isEqualTo("From web server");
+    }
+    metrics = metrics();
+    assertThat(metrics).contains("devserver_upstream_circuit_state{" + destination + ",state=\"closed\"} 1\n");
+    assertThat(metrics).contains("devserver_upstream_connections_max{" + destination + "} 256\n");
+    assertThat(metrics).contains("devserver_upstream_queued_requests{" + destination + "} 0\n");
+  }
+
+  @Test public void testBreakerDisabled() throws Exception {
+    DevServer.Options options = newOptions();
+    options.proxyTimeout = 200;
+    options.proxyBreakerFailures = 0;
+    start(options);
+
+    for (int i = 0; i < 6; i++) {
+      mockWebServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+      assertThat(get("app.js").code()).isEqualTo(504);
+    }
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(6);
+    assertThat(metrics()).doesNotContain("devserver_upstream_circuit_state{");
+  }
+
+  private DevServer.Options newOptions() {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockWebServer.url("").toString();
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    return options;
+  }
+
+  private void start(DevServer.Options options) throws Exception {
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  private Response get(String pathAndQuery) throws IOException {
+    return client.newCall(new Request.Builder().url(baseUrl.resolve(pathAndQuery)).build()).execute();
+  }
+
+  private String metrics() throws IOException {
+    try (Response response = client.newCall(new Request.Builder()
+        .url(baseUrl.resolve(DevServer.RESERVED_CONTEXT_PATH + "/metrics"))
+        .build()).execute()) {
+      return response.body().string();
+    }
+  }
+}
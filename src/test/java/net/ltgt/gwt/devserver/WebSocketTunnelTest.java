@@ -0,0 +1,254 @@
+package net.ltgt.gwt.devserver;
+
+import com.google.gwt.dev.util.arg.ArgHandlerBindAddress;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.internal.tls.SslClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class WebSocketTunnelTest {
+  @Rule public MockWebServer mockCodeServer = new MockWebServer();
+  @Rule public MockWebServer mockWebServer = new MockWebServer();
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().build();
+  private Server server;
+  private HttpUrl baseUrl;
+
+  @After public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test public void testTunnel() throws Exception {
+    start(false);
+    BlockingQueue<String> closing = new LinkedBlockingQueue<>();
+    mockWebServer.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+      @Override
+      public void onOpen(WebSocket webSocket, Response response) {
+        // Sent right after the handshake response.
+        webSocket.send("pushed");
+      }
+
+      @Override
+      public void onMessage(WebSocket webSocket, String text) {
+        webSocket.send("echo: " + text);
+      }
+
+      @Override
+      public void onMessage(WebSocket webSocket, ByteString bytes) {
+        webSocket.send(bytes);
+      }
+
+      @Override
+      public void onClosing(WebSocket webSocket, int code, String reason) {
+        closing.add(code + " " + reason);
+        webSocket.close(code, reason);
+      }
+    }).setHeader("Sec-WebSocket-Protocol", "chat"));
+
+    Messages messages = new Messages();
+    WebSocket webSocket = client.newWebSocket(new Request.Builder()
+        .url(baseUrl.resolve("push?channel=1"))
+        .header("Sec-WebSocket-Protocol", "chat")
+        .build(), messages);
+    assertThat(messages.take()).isEqualTo("open chat");
+    assertThat(messages.take()).isEqualTo("pushed");
+    webSocket.send("hello");
+    assertThat(messages.take()).isEqualTo("echo: hello");
+    // Larger than the tunnel's buffers.
+    byte[] large = new byte[1024 * 1024];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    webSocket.send(ByteString.of(large));
+    assertThat(messages.take()).isEqualTo("bytes " + ByteString.of(large).md5().hex());
+    webSocket.close(1000, "bye");
+    assertThat(closing.poll(10, TimeUnit.SECONDS)).isEqualTo("1000 bye");
+    assertThat(messages.take()).isEqualTo("closed 1000");
+
+    RecordedRequest request = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(request.getPath()).isEqualTo("/push?channel=1");
+    assertThat(request.getHeader("Host")).isEqualTo(mockWebServer.getHostName() + ":" + mockWebServer.getPort());
+    assertThat(request.getHeader("Upgrade")).isEqualTo("websocket");
+    assertThat(request.getHeader("Connection")).isEqualTo("Upgrade");
+    assertThat(request.getHeader("Sec-WebSocket-Protocol")).isEqualTo("chat");
+    assertThat(request.getHeader("Sec-WebSocket-Key")).isNotNull();
+    assertThat(request.getHeader("X-Forwarded-For")).isNotNull();
+  }
+
+  @Test public void testSecureTunnel() throws Exception {
+    SslClient sslClient = SslClient.localhost();
+    mockWebServer.useHttps(sslClient.socketFactory, false);
+    // Have the proxy trust the mock web server.
+    File trustStore = tmp.newFile("truststore.jks");
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setCertificateEntry("localhost", sslClient.trustManager.getAcceptedIssuers()[0]);
+    try (OutputStream out = new FileOutputStream(trustStore)) {
+      keyStore.store(out, "password".toCharArray());
+    }
+    String previousTrustStore = System.setProperty("javax.net.ssl.trustStore", trustStore.getPath());
+    String previousPassword = System.setProperty("javax.net.ssl.trustStorePassword", "password");
+    try {
+      start(false);
+      mockWebServer.enqueue(new MockResponse().withWebSocketUpgrade(new Upstream() {
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+          webSocket.send("echo: " + text);
+        }
+      }));
+
+      Messages messages = new Messages();
+      WebSocket webSocket = client.newWebSocket(new Request.Builder().url(baseUrl.resolve("push")).build(), messages);
+      assertThat(messages.take()).isEqualTo("open null");
+      webSocket.send("hello");
+      assertThat(messages.take()).isEqualTo("echo: hello");
+      close(webSocket, messages);
+    } finally {
+      restore("javax.net.ssl.trustStore", previousTrustStore);
+      restore("javax.net.ssl.trustStorePassword", previousPassword);
+    }
+  }
+
+  @Test public void testPreserveHost() throws Exception {
+    start(true);
+    mockWebServer.enqueue(new MockResponse().withWebSocketUpgrade(new Upstream()));
+
+    Messages messages = new Messages();
+    WebSocket webSocket = client.newWebSocket(new Request.Builder().url(baseUrl.resolve("push")).build(), messages);
+    assertThat(messages.take()).isEqualTo("open null");
+    close(webSocket, messages);
+
+    RecordedRequest request = mockWebServer.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(request.getHeader("Host")).isEqualTo(baseUrl.host() + ":" + baseUrl.port());
+  }
+
+  @Test public void testRefused() throws Exception {
+    start(false);
+    mockWebServer.enqueue(new MockResponse().setResponseCode(403).setBody("Forbidden"));
+
+    Messages messages = new Messages();
+    client.newWebSocket(new Request.Builder().url(baseUrl.resolve("push")).build(), messages);
+    assertThat(messages.take()).isEqualTo("failure 403 Forbidden");
+  }
+
+  @Test public void testUnreachable() throws Exception {
+    start(false);
+    mockWebServer.shutdown();
+
+    Messages messages = new Messages();
+    client.newWebSocket(new Request.Builder().url(baseUrl.resolve("push")).build(), messages);
+    assertThat(messages.take()).isEqualTo("failure 502 ");
+  }
+
+  /**
+   * Closes the WebSocket and waits for the closing handshake to go through the tunnel, rather than cancelling it:
+   * tearing down sockets that OkHttp is still writing to can corrupt Okio's buffers, failing later tests.
+   */
+  private static void close(WebSocket webSocket, Messages messages) throws InterruptedException {
+    webSocket.close(1000, "bye");
+    assertThat(messages.take()).isEqualTo("closed 1000");
+  }
+
+  private static void restore(String key, String value) {
+    if (value == null) {
+      System.clearProperty(key);
+    } else {
+      System.setProperty(key, value);
+    }
+  }
+
+  private void start(boolean preserveHost) throws Exception {
+    DevServer.Options options = new DevServer.Options();
+    options.bindAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.connectAddress = ArgHandlerBindAddress.DEFAULT_BIND_ADDRESS;
+    options.codeServerPort = mockCodeServer.getPort();
+    options.proxyTo = mockWebServer.url("").toString();
+    options.preserveHost = preserveHost;
+    options.moduleNames.add("net.ltgt.gwt.devserver.GWTTestCase");
+    server = DevServer.start(options);
+    baseUrl = new HttpUrl.Builder()
+        .scheme("http")
+        .host(options.connectAddress)
+        .port(((ServerConnector) server.getConnectors()[0]).getLocalPort())
+        .build();
+  }
+
+  /** An upstream WebSocket that completes the closing handshake. */
+  private static class Upstream extends WebSocketListener {
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      webSocket.close(code, reason);
+    }
+  }
+
+  /** Records what happens to a client WebSocket. */
+  private static class Messages extends WebSocketListener {
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    String take() throws InterruptedException {
+      String event = events.poll(10, TimeUnit.SECONDS);
+      assertThat(event).isNotNull();
+      return event;
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+      events.add("open " + response.header("Sec-WebSocket-Protocol"));
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+      events.add(text);
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+      events.add("bytes " + bytes.md5().hex());
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      webSocket.close(code, reason);
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+      events.add("closed " + code);
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+      try {
+        events.add(response == null ? "failure " + t : "failure " + response.code() + " " + response.body().string());
+      } catch (java.io.IOException e) {
+        events.add("failure " + e);
+      }
+    }
+  }
+}